@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.allinone;
+
+import static info.rmapproject.loader.util.ConfigUtil.integer;
+import static info.rmapproject.loader.util.ConfigUtil.string;
+import static info.rmapproject.loader.util.LogUtil.adjustLogLevels;
+import static java.util.stream.Collectors.toList;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.deposit.disco.DiscoDepositConsumer;
+import info.rmapproject.loader.deposit.disco.RdbmsHarvestRecordRegistry;
+import info.rmapproject.loader.impl.file.ArchiveRecordExtractor;
+import info.rmapproject.loader.impl.file.FileCheckpointStore;
+import info.rmapproject.loader.impl.file.OneTimeRecordSource;
+import info.rmapproject.loader.jms.DuplicateFilter;
+import info.rmapproject.loader.jms.HarvestRecordListener;
+import info.rmapproject.loader.jms.HarvestRecordWriter;
+import info.rmapproject.loader.jms.InProcessTransport;
+import info.rmapproject.loader.jms.RetryPolicy;
+import info.rmapproject.loader.transform.xsl.impl.XsltRecordTransformer;
+
+/**
+ * Extracts records from archives, transforms them to DiSCOs, and deposits them, all in one process.
+ * <p>
+ * The stages are the same as those of the extract, XSLT, and deposit services, but records pass between them through
+ * in-process rings rather than a broker.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class Main {
+
+    static final Logger LOG = LoggerFactory.getLogger(Main.class);
+
+    static final String XML_QUEUE = "rmap.harvest.xml";
+
+    static final String DISCO_QUEUE = "rmap.harvest.disco";
+
+    static PathMatcher pathFilter = p -> true;
+
+    public static void main(final String[] args) throws Exception {
+        adjustLogLevels();
+
+        if (string("filter", null) != null) {
+            pathFilter = FileSystems.getDefault().getPathMatcher("glob:" + string("filter", null));
+        }
+
+        final List<Path> cmdLinePaths = commandLineFiles(args);
+
+        final XsltRecordTransformer xslt = new XsltRecordTransformer(string("xslt.file", null))
+                .withOutputContentType(string("xslt.content.type", "application/vnd.rmap-project.disco+rdf+xml"));
+
+        final Consumer<HarvestRecord> depositor = retrying(depositor(), new RetryPolicy()
+                .withMaxRetries(integer("retry.max", 5))
+                .withDelay(integer("retry.delay", 10000), integer("retry.delay.max", 600000)));
+
+        final AtomicLong failures = new AtomicLong();
+
+        try (InProcessTransport transport = new InProcessTransport()
+                .withCapacity(integer("ring.capacity", 1024))
+                .withMaxInMemory(integer("body.memory.max", 16777216))
+                .withExceptionHandler((r, e) -> {
+                    failures.incrementAndGet();
+                    LOG.warn("Failed on record {}: {}", r.getRecordInfo().getId(), e.getMessage());
+                    LOG.debug("Failure of record {}", r.getRecordInfo().getId(), e);
+                })) {
+
+            final HarvestRecordWriter writer = transport.writer();
+
+            transport.listen(XML_QUEUE, new HarvestRecordListener(r -> xslt.apply(r).forEach(
+                    disco -> writer.write(DISCO_QUEUE, disco))), integer("xslt.threads", 1));
+
+            transport.listen(DISCO_QUEUE, new HarvestRecordListener(depositor)
+                    .withDuplicateFilter(duplicateFilter()), integer("threads", 1));
+
+            new OneTimeRecordSource()
+                    .ofDirectory(fromCmdLineOrEnv(cmdLinePaths))
+                    .withFiles(cmdLinePaths.stream().filter(Files::isRegularFile).collect(toList()))
+                    .withFilter(REGEX)
+                    .withThreads(integer("extract.threads", 1))
+                    .withExtractor(new ArchiveRecordExtractor()
+                            .contentType(string("content.type", "application/xml"))
+                            .withMaxInMemory(integer("body.memory.max", 16777216))
+                            .onDone(path -> {
+                                final long failed = awaitIdle(transport);
+                                if (failed > 0) {
+                                    // With no error queue, re-running the archive is the only way to retry them
+                                    LOG.warn("{} records of {} failed, so it is not marked done", failed, path);
+                                } else {
+                                    RENAME_TO_DONE.accept(path);
+                                }
+                            }))
+                    .onRecord(r -> {
+                        try {
+                            writer.write(XML_QUEUE, r);
+                        } finally {
+                            release(r);
+                        }
+                    })
+                    .run();
+
+            // Each stage finishes what it has before the next is closed
+            transport.close(XML_QUEUE);
+            transport.close(DISCO_QUEUE);
+        }
+
+        if (failures.get() > 0) {
+            LOG.warn("Done, but {} records failed", failures.get());
+        } else {
+            LOG.info("Done");
+        }
+    }
+
+    private static DiscoDepositConsumer depositor() {
+        final HikariDataSource ds = new HikariDataSource();
+        ds.setJdbcUrl(string("jdbc.url", "jdbc:sqlite:"));
+        ds.setUsername(string("jdbc.username", null));
+        ds.setPassword(string("jdbc.password", null));
+
+        final RdbmsHarvestRecordRegistry harvestRegistry = new RdbmsHarvestRecordRegistry();
+        harvestRegistry.setDataSource(ds);
+        harvestRegistry.init();
+
+        final DiscoDepositConsumer depositor = new DiscoDepositConsumer();
+        depositor.setAuthToken(string("rmap.api.auth.token", null));
+        depositor.setRmapDiscoEndpoint(URI.create(string("rmap.api.baseuri",
+                "https://test.rmap-hub.org/api/").replaceFirst("/$", "") + "/discos/"));
+        depositor.setHarvestRegistry(harvestRegistry);
+        return depositor;
+    }
+
+    // Without a broker to redeliver it later, a transient failure is retried in place, after the policy's delay
+    private static Consumer<HarvestRecord> retrying(Consumer<HarvestRecord> consumer, RetryPolicy policy) {
+        return r -> {
+            for (int retries = 0;; retries++) {
+                try {
+                    consumer.accept(r);
+                    return;
+                } catch (final RuntimeException e) {
+                    if (!policy.shouldRetry(e, retries)) {
+                        throw e;
+                    }
+
+                    final long delay = policy.delay(retries + 1);
+                    LOG.info("Failed on {}, will retry in {}ms (retry {}): {}", r.getRecordInfo().getId(), delay,
+                            retries + 1, e.getMessage());
+                    try {
+                        Thread.sleep(delay);
+                    } catch (final InterruptedException i) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        };
+    }
+
+    private static DuplicateFilter duplicateFilter() {
+        final int cacheSize = integer("dedup.cache", 0);
+        return cacheSize > 0 ? new DuplicateFilter(cacheSize) : null;
+    }
+
+    // Every record from an archive has been deposited (or failed) before it is marked done
+    private static long awaitIdle(InProcessTransport transport) {
+        try {
+            return transport.awaitIdle();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for records to be deposited", e);
+        }
+    }
+
+    // If there is exactly one path specified and it's a directory, use it.
+    // Otherwise, look to system properties or environment variables
+    private static String fromCmdLineOrEnv(List<Path> candidates) {
+        if (candidates.size() == 1 && Files.isDirectory(candidates.get(0))) {
+            return candidates.get(0).toString();
+        } else {
+            return string("dir", null);
+        }
+    }
+
+    private static List<Path> commandLineFiles(String[] args) {
+
+        return Arrays.asList(args).stream()
+                .map(File::new)
+                .filter(File::exists)
+                .map(File::toPath)
+                .collect(toList());
+    }
+
+    private static Consumer<Path> RENAME_TO_DONE = path -> {
+        final File file = path.toFile();
+        file.renameTo(new File(file.getAbsolutePath() + ".done"));
+    };
+
+    private static Predicate<Path> REGEX = path -> {
+        final String name = path.getFileName().toString();
+        return pathFilter.matches(path) &&
+                !name.endsWith(".done") &&
+                !name.endsWith(FileCheckpointStore.SUFFIX) &&
+                !name.endsWith(FileCheckpointStore.SUFFIX + ".tmp");
+    };
+
+    // Deletes any temporary file the body may have been spooled to
+    private static void release(HarvestRecord record) {
+        if (record.getRecordBody() != null) {
+            try {
+                record.getRecordBody().close();
+            } catch (final IOException e) {
+                LOG.warn("Could not release body of record {}", record.getRecordInfo().getId(), e);
+            }
+        }
+    }
+}
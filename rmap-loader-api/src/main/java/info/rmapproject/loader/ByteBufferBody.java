@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Body backed by a {@link ByteBuffer}, which may be a slice of a larger (e.g. memory-mapped) buffer.
+ *
+ * @author apb@jhu.edu
+ */
+class ByteBufferBody implements RecordBody {
+
+    final ByteBuffer buffer;
+
+    ByteBufferBody(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public InputStream openStream() {
+        final ByteBuffer content = buffer.duplicate();
+
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+
+                final int count = Math.min(len, content.remaining());
+                content.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+
+    @Override
+    public long length() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
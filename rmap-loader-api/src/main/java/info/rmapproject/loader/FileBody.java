@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Body backed by a file, optionally deleted when closed.
+ *
+ * @author apb@jhu.edu
+ */
+class FileBody implements RecordBody {
+
+    final Path file;
+
+    final boolean deleteOnClose;
+
+    FileBody(Path file, boolean deleteOnClose) {
+        this.file = file;
+        this.deleteOnClose = deleteOnClose;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return Files.newInputStream(file);
+    }
+
+    @Override
+    public long length() {
+        try {
+            return Files.size(file);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not determine size of " + file, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deleteOnClose) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
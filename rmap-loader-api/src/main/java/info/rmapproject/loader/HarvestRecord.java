@@ -16,16 +16,25 @@
 
 package info.rmapproject.loader;
 
+import java.io.IOException;
+
 import info.rmapproject.loader.model.RecordInfo;
 
 /**
+ * A record (as a blob of content), plus minimal metadata describing it.
+ * <p>
+ * The content may be accessed either as a byte array via {@link #getBody()}, or incrementally via
+ * {@link #getRecordBody()}. Prefer the latter for potentially large records, as reading a body as a byte array
+ * requires holding it in memory all at once.
+ * </p>
+ *
  * @author apb@jhu.edu
  */
 public class HarvestRecord {
 
     RecordInfo recordInfo;
 
-    byte[] body;
+    RecordBody body;
 
     public RecordInfo getRecordInfo() {
         return recordInfo;
@@ -35,11 +44,39 @@ public class HarvestRecord {
         this.recordInfo = info;
     }
 
+    /**
+     * Get the record's content as a byte array.
+     * <p>
+     * If the body is not already held in memory, it is read fully into memory, and retained as such from then on.
+     * </p>
+     *
+     * @return body content, or null if there is no body.
+     */
     public byte[] getBody() {
-        return body;
+        if (body == null) {
+            return null;
+        } else if (body instanceof ByteArrayBody) {
+            return ((ByteArrayBody) body).bytes;
+        }
+
+        try (RecordBody original = body) {
+            final byte[] bytes = original.toByteArray();
+            this.body = RecordBody.of(bytes);
+            return bytes;
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not read record body", e);
+        }
     }
 
     public void setBody(byte[] body) {
+        this.body = body != null ? RecordBody.of(body) : null;
+    }
+
+    public RecordBody getRecordBody() {
+        return body;
+    }
+
+    public void setRecordBody(RecordBody body) {
         this.body = body;
     }
 }
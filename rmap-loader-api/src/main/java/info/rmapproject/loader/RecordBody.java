@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Content of a {@link HarvestRecord}.
+ * <p>
+ * A body may be backed by a byte array, a {@link ByteBuffer}, a file, or a stream. Consumers that can process
+ * content incrementally should read it via {@link #openStream()}, so that large bodies never need to be held in
+ * memory all at once. Bodies backed by a stream can only be read once; all others may be read repeatedly.
+ * </p>
+ * <p>
+ * Bodies may hold resources (such as temporary files) that are released by {@link #close()}. Whoever is last to
+ * handle a record is responsible for closing its body.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public interface RecordBody extends Closeable {
+
+    /**
+     * Open a stream over the body's content.
+     *
+     * @return Stream of content, which is the caller's responsibility to close.
+     * @throws IOException if the content cannot be read.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Length of the body.
+     *
+     * @return Length in bytes, or -1 if unknown.
+     */
+    long length();
+
+    /**
+     * Read the entire body into a byte array.
+     *
+     * @return body content
+     * @throws IOException if the content cannot be read, or is too large for a byte array.
+     */
+    default byte[] toByteArray() throws IOException {
+        if (length() > Integer.MAX_VALUE) {
+            throw new IOException("Body of " + length() + " bytes is too large for a byte array");
+        }
+
+        try (InputStream in = openStream()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    length() > -1 ? (int) length() : 8192);
+            copy(in, out);
+            return out.toByteArray();
+        }
+    }
+
+    @Override
+    default void close() throws IOException {
+        // Nothing to release by default.
+    }
+
+    /**
+     * Body backed by a byte array.
+     * <p>
+     * The array is not copied, and must not be modified afterwards.
+     * </p>
+     *
+     * @param bytes Body content.
+     * @return the body.
+     */
+    public static RecordBody of(byte[] bytes) {
+        return new ByteArrayBody(bytes);
+    }
+
+    /**
+     * Body backed by the remaining content of a {@link ByteBuffer}.
+     * <p>
+     * The buffer's position and limit are not changed.
+     * </p>
+     *
+     * @param buffer Buffer containing the body content between its position and limit.
+     * @return the body.
+     */
+    public static RecordBody of(ByteBuffer buffer) {
+        return new ByteBufferBody(buffer.slice());
+    }
+
+    /**
+     * Body backed by a file.
+     *
+     * @param file File containing body content.
+     * @param deleteOnClose whether the file should be deleted when the body is closed.
+     * @return the body.
+     */
+    public static RecordBody of(Path file, boolean deleteOnClose) {
+        return new FileBody(file, deleteOnClose);
+    }
+
+    /**
+     * Body backed by a stream, which may be read only once.
+     *
+     * @param in Stream of body content. It will be closed when the body is closed.
+     * @param length Length of content, or -1 if unknown.
+     * @return the body.
+     */
+    public static RecordBody of(InputStream in, long length) {
+        return new StreamBody(in, length);
+    }
+
+    /**
+     * Read content from a stream into a reusable body, keeping it in memory only if it is small.
+     * <p>
+     * Content up to the given threshold is read into memory. If the content is larger than that, it is spooled to a
+     * temporary file, which is deleted when the body is closed. Content whose length is known to exceed the threshold
+     * is spooled without being buffered in memory first. The given stream is read to the end, but not closed.
+     * </p>
+     *
+     * @param in Stream of content.
+     * @param length Length of content, if known in advance, or -1 if not.
+     * @param maxInMemory Maximum number of bytes to hold in memory.
+     * @return the body.
+     * @throws IOException if the content cannot be read, or spooled.
+     */
+    public static RecordBody read(InputStream in, long length, long maxInMemory) throws IOException {
+
+        if (length > -1 && length <= maxInMemory) {
+            final byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            int len;
+            while (offset < bytes.length && (len = in.read(bytes, offset, bytes.length - offset)) > -1) {
+                offset += len;
+            }
+
+            if (offset < bytes.length) {
+                throw new IOException(String.format("Expected %s bytes, but only read %s", length, offset));
+            }
+
+            return of(bytes);
+        }
+
+        // When the length is unknown, content is held in memory until it proves too large
+        ByteArrayOutputStream head = null;
+        if (length < 0) {
+            head = new ByteArrayOutputStream((int) Math.min(maxInMemory, 8192));
+
+            final byte[] buf = new byte[8192];
+            long remaining = maxInMemory;
+            int len;
+            while (remaining >= 0 && (len = in.read(buf, 0, (int) Math.min(buf.length, remaining + 1))) > -1) {
+                head.write(buf, 0, len);
+                remaining -= len;
+            }
+
+            if (remaining >= 0) {
+                return of(head.toByteArray());
+            }
+        }
+
+        final Path spool = Files.createTempFile("rmap-record-", ".body");
+        try (OutputStream out = Files.newOutputStream(spool)) {
+            if (head != null) {
+                head.writeTo(out);
+            }
+            copy(in, out);
+        } catch (final IOException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+
+        return of(spool, true);
+    }
+
+    /**
+     * Copy a stream to another.
+     *
+     * @param in Source stream
+     * @param out Destination stream.
+     * @return Number of bytes copied.
+     * @throws IOException if reading or writing fails.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buf = new byte[8192];
+        long count = 0;
+        int len;
+        while ((len = in.read(buf)) > -1) {
+            out.write(buf, 0, len);
+            count += len;
+        }
+        return count;
+    }
+}
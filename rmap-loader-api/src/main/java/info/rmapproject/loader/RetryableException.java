@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader;
+
+/**
+ * Failure to process a harvest record that is expected to be temporary.
+ * <p>
+ * For example, a service being unavailable, or a request timing out. Processing the same record again later may well
+ * succeed, so it should be retried rather than treated as an error.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class RetryableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RetryableException(String message) {
+        super(message);
+    }
+
+    public RetryableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body backed by a stream, which can be read only once.
+ *
+ * @author apb@jhu.edu
+ */
+class StreamBody implements RecordBody {
+
+    final InputStream in;
+
+    final long length;
+
+    boolean opened = false;
+
+    StreamBody(InputStream in, long length) {
+        this.in = in;
+        this.length = length;
+    }
+
+    @Override
+    public synchronized InputStream openStream() throws IOException {
+        if (opened) {
+            throw new IOException("Body stream has already been read");
+        }
+        opened = true;
+        return in;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
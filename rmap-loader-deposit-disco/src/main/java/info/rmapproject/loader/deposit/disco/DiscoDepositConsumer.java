@@ -21,6 +21,8 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
@@ -36,7 +38,7 @@ import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
@@ -49,6 +51,7 @@ import org.slf4j.LoggerFactory;
 import info.rmapproject.loader.HarvestRecord;
 import info.rmapproject.loader.HarvestRecordRegistry;
 import info.rmapproject.loader.HarvestRecordStatus;
+import info.rmapproject.loader.RetryableException;
 import info.rmapproject.loader.model.RecordInfo;
 
 /**
@@ -146,23 +149,34 @@ public class DiscoDepositConsumer implements Consumer<HarvestRecord> {
         }
         LOG.debug("POSTING to {} ({})", uri, contentType(record));
         post.setHeader(CONTENT_TYPE, contentType(record));
-        post.setEntity(new ByteArrayEntity(record.getBody()));
-
-        try (CloseableHttpResponse response = client.execute(post)) {
-
-            if (response.getStatusLine().getStatusCode() == 201) {
-                LOG.debug("SUCCESSFUL POST to {}", uri);
-                harvestRegistry.register(
-                        record.getRecordInfo(),
-                        URI.create(EntityUtils.toString(response.getEntity())));
-                EntityUtils.consume(response.getEntity());
-            } else {
-                throw new RuntimeException(String.format("Unexpected status code %s; '%s'", response.getStatusLine()
-                        .getStatusCode(), IOUtils.toString(response.getEntity().getContent(), UTF_8)));
+
+        // Stream the body to RMap, rather than copying it into memory first.
+        try (InputStream body = record.getRecordBody().openStream()) {
+            post.setEntity(new InputStreamEntity(body, record.getRecordBody().length()));
+
+            try (CloseableHttpResponse response = client.execute(post)) {
+
+                if (response.getStatusLine().getStatusCode() == 201) {
+                    LOG.debug("SUCCESSFUL POST to {}", uri);
+                    harvestRegistry.register(
+                            record.getRecordInfo(),
+                            URI.create(EntityUtils.toString(response.getEntity())));
+                    EntityUtils.consume(response.getEntity());
+                } else {
+                    final int code = response.getStatusLine().getStatusCode();
+                    final String message = String.format("Unexpected status code %s; '%s'", code,
+                            IOUtils.toString(response.getEntity().getContent(), UTF_8));
+
+                    // Server errors, timeouts, and rate limiting may well pass
+                    if (code >= 500 || code == 408 || code == 429) {
+                        throw new RetryableException(message);
+                    }
+                    throw new RuntimeException(message);
+                }
             }
 
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
+        } catch (final IOException e) {
+            throw new RetryableException("Could not deposit to " + uri + ": " + e.getMessage(), e);
         }
     }
 
@@ -17,24 +17,47 @@
 package info.rmapproject.loader.deposit.disco;
 
 import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 import javax.jms.ConnectionFactory;
-import javax.jms.JMSException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.jms.BlobStore;
+import info.rmapproject.loader.jms.ConsumerOptions;
+import info.rmapproject.loader.jms.DuplicateFilter;
+import info.rmapproject.loader.jms.FairQueueConsumer;
 import info.rmapproject.loader.jms.HarvestRecordListener;
 import info.rmapproject.loader.jms.JmsClient;
+import info.rmapproject.loader.jms.RetryHandler;
+import info.rmapproject.loader.jms.RetryPolicy;
+import info.rmapproject.loader.util.QueueDiscovery;
 
 /**
  * Pulls from a queue, invokes a deposit action, and sends to an error queue if a failure occurs.
  * <p>
  * This manages the messaging aspect of depositing DiSCOs. It consumes messages containing {@link HarvestRecord} from
  * a queue (typically named <code>rmap.harvest.disco.*</code>), and passes it on to a provided {@link Consumer} of
- * harvest records to perform a deposit. If an exception is thrown by the consumer, a stack trace of the exception is
- * added to the message, and the message is routed to an error queue <code>rmap.harvest.error.disco*</code>
+ * harvest records to perform a deposit. If an exception is thrown by the consumer, and it is transient (such as RMap
+ * being unavailable), the message is retried after a delay, according to the {@link RetryPolicy}. Otherwise, or once
+ * out of retries, a stack trace of the exception is added to the message, and the message is routed to an error queue
+ * <code>rmap.harvest.error.disco*</code>
+ * </p>
+ * <p>
+ * If a record within an envelope of several records fails, only that record is retried or routed to the error queue,
+ * in a message of its own.
+ * </p>
+ * <p>
+ * Given a {@link DuplicateFilter}, redelivered records that have already been deposited are dropped before any
+ * registry lookup or RMap request is made for them.
+ * </p>
+ * <p>
+ * By default, messages from all queues matching the queue spec are consumed in whatever order the broker delivers
+ * them, so a large backlog in one queue can hold up the others. With {@link #setFairConsumption(ToIntFunction, int)},
+ * the matching queues are discovered from broker advisories, and consumed from separately, each getting a share of
+ * the deposit threads' time in proportion to its weight (see {@link FairQueueConsumer}).
  * </p>
  *
  * @author apb@jhu.edu
@@ -51,6 +74,23 @@ public class DiscoDepositService implements Runnable, AutoCloseable {
 
     private Consumer<HarvestRecord> discoDeposit;
 
+    private BlobStore blobs;
+
+    /* Null unless set, so that fair consumption can tell whether any were given */
+    private ConsumerOptions consumerOptions;
+
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    private DuplicateFilter duplicates;
+
+    private ToIntFunction<String> weights;
+
+    private int fairThreads;
+
+    private QueueDiscovery discovery;
+
+    private FairQueueConsumer fair;
+
     public void setConnectionFactory(ConnectionFactory factory) {
         this.connectionFactory = factory;
     }
@@ -63,27 +103,83 @@ public class DiscoDepositService implements Runnable, AutoCloseable {
         this.discoDeposit = consumer;
     }
 
-    @Override
-    public void run() {
+    public void setBlobStore(BlobStore store) {
+        this.blobs = store;
+    }
 
-        jms = new JmsClient(connectionFactory);
+    /**
+     * Set how failed deposits are retried.
+     *
+     * @param policy Retry policy. Default is the default {@link RetryPolicy}.
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.retryPolicy = policy;
+    }
 
-        jms.listen(queueSpec,
-                new HarvestRecordListener(discoDeposit)
-                        .withExceptionHandler((m, e) -> {
-                            try {
-                                final String dest = errorDestination(m.getJMSDestination().toString());
+    /**
+     * Set the filter for dropping records that have already been deposited.
+     *
+     * @param filter Duplicate filter. Default is none.
+     */
+    public void setDuplicateFilter(DuplicateFilter filter) {
+        this.duplicates = filter;
+    }
 
-                                if (LOG.isDebugEnabled()) {
-                                    LOG.debug("Record listener threw an exception", e);
-                                }
-                                LOG.info("Record listener threw an exception, routing to {}", dest);
+    /**
+     * Share deposit time fairly among the queues matching the queue spec, rather than consuming from them all at once.
+     * <p>
+     * The consumer options are not used in this case; each message is consumed in a transaction of its own. Consumer
+     * options that partition the queue are rejected, as the partitions would not be honoured.
+     * </p>
+     *
+     * @param weights Gives the weight of each queue.
+     * @param threads Number of deposit threads.
+     */
+    public void setFairConsumption(ToIntFunction<String> weights, int threads) {
+        this.weights = weights;
+        this.fairThreads = threads;
+    }
 
-                                jms.write(dest, m);
-                            } catch (final JMSException j) {
-                                throw new RuntimeException("Error placing into error queue: " + j.getMessage());
-                            }
-                        }));
+    /**
+     * Set how records are consumed from the queue.
+     * <p>
+     * This includes the number of records deposited at once. Each is consumed by a session of its own, all sharing
+     * one connection.
+     * </p>
+     *
+     * @param options Consumer options. Default is a single consumer, with automatic acknowledgement.
+     */
+    public void setConsumerOptions(ConsumerOptions options) {
+        this.consumerOptions = options;
+    }
+
+    @Override
+    public void run() {
+
+        jms = new JmsClient(connectionFactory);
+        final RetryHandler failures = new RetryHandler(jms, retryPolicy, this::errorDestination);
+
+        final HarvestRecordListener listener = new HarvestRecordListener(discoDeposit)
+                .withBlobStore(blobs)
+                .withDuplicateFilter(duplicates)
+                .withExceptionHandler(failures)
+                .withRecordExceptionHandler(failures);
+
+        if (weights != null) {
+            if (consumerOptions != null && consumerOptions.isPartitioned()) {
+                throw new IllegalArgumentException("Partitions cannot be consumed fairly");
+            } else if (consumerOptions != null) {
+                LOG.warn("Consumer options are not used when consuming fairly; ignoring them");
+            }
+            fair = new FairQueueConsumer(jms, listener)
+                    .withWeights(weights)
+                    .withConcurrency(fairThreads);
+            discovery = new QueueDiscovery(connectionFactory, queueSpec);
+            discovery.start(fair::addQueue, fair::removeQueue);
+            fair.start();
+        } else {
+            jms.listen(queueSpec, listener, consumerOptions != null ? consumerOptions : new ConsumerOptions());
+        }
 
         LOG.info("Disco deposit service started for " + queueSpec);
 
@@ -97,12 +193,24 @@ public class DiscoDepositService implements Runnable, AutoCloseable {
     }
 
     private String errorDestination(String src) {
-        return src.replace("queue://", "").replaceFirst("disco", "error.disco");
+        return src.replaceFirst("disco", "error.disco");
     }
 
     @Override
     public void close() throws Exception {
-        jms.close();
+        try {
+            if (discovery != null) {
+                discovery.close();
+            }
+            if (fair != null) {
+                fair.close();
+            }
+            jms.close();
+        } finally {
+            if (duplicates != null) {
+                duplicates.close();
+            }
+        }
 
     }
 }
@@ -22,10 +22,10 @@ import static info.rmapproject.loader.util.ConfigUtil.string;
 import static info.rmapproject.loader.util.LogUtil.adjustLogLevels;
 
 import java.net.URI;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
 
 import javax.jms.ConnectionFactory;
 
@@ -34,6 +34,14 @@ import org.slf4j.LoggerFactory;
 
 import com.zaxxer.hikari.HikariDataSource;
 
+import info.rmapproject.loader.jms.BlobStore;
+import info.rmapproject.loader.jms.ConsumerOptions;
+import info.rmapproject.loader.jms.ConsumerOptions.Acknowledgement;
+import info.rmapproject.loader.jms.DuplicateFilter;
+import info.rmapproject.loader.jms.FileBlobStore;
+import info.rmapproject.loader.jms.RetryPolicy;
+import info.rmapproject.loader.util.QueueDiscovery;
+
 /**
  * @author apb@jhu.edu
  */
@@ -41,13 +49,8 @@ public class Main {
 
     static final Logger LOG = LoggerFactory.getLogger(Main.class);
 
-    @SuppressWarnings("resource")
     public static void main(final String[] args) throws Exception {
 
-        final ExecutorService exe = Executors.newCachedThreadPool();
-
-        final CompletionService<AutoCloseable> tasks = new ExecutorCompletionService<>(exe);
-
         final int nthreads = integer("threads", 1);
 
         adjustLogLevels();
@@ -67,23 +70,99 @@ public class Main {
         depositor.setRmapDiscoEndpoint(makeDiscoEndpointUri());
         depositor.setHarvestRegistry(harvestRegistry);
 
-        for (int i = 0; i < nthreads; i++) {
+        final BlobStore blobs = string("claim.check.dir", null) != null
+                ? new FileBlobStore(Paths.get(string("claim.check.dir", null)))
+                : null;
 
-            LOG.info("Starting deposit thread " + i);
+        final DuplicateFilter duplicates = duplicateFilter();
 
-            final DiscoDepositService depositService = new DiscoDepositService();
+        // One connection, with a session per deposit thread
+        try (DiscoDepositService depositService = new DiscoDepositService()) {
             depositService.setConnectionFactory(factory);
             depositService.setDiscoConsumer(depositor);
+            depositService.setBlobStore(blobs);
+            depositService.setDuplicateFilter(duplicates);
             depositService.setQueueSpec(string("jms.queue.src", "rmap.harvest.disco.>"));
+            depositService.setRetryPolicy(new RetryPolicy()
+                    .withMaxRetries(integer("retry.max", 5))
+                    .withDelay(integer("retry.delay", 10000), integer("retry.delay.max", 600000)));
+            if (Boolean.valueOf(string("jms.fair", "false"))) {
+                checkFairOptions();
+                depositService.setFairConsumption(weights(string("jms.fair.weights", "")), nthreads);
+            } else {
+                depositService.setConsumerOptions(partitions(new ConsumerOptions()
+                        .withConcurrency(nthreads, Math.max(nthreads, integer("threads.max", nthreads)))
+                        .withPrefetch(integer("jms.prefetch", -1))
+                        .withAcknowledgement(
+                                Acknowledgement.valueOf(string("jms.ack", "auto").toUpperCase()),
+                                integer("jms.ack.batch", 100),
+                                integer("jms.ack.time", 1000))));
+            }
+
+            depositService.run();
+        }
+
+        LOG.info("Stopped deposit service");
+    }
+
+    // Weights given like rmap.harvest.disco.datacite.>=10,rmap.harvest.disco.pubmed=1; the first match wins
+    private static ToIntFunction<String> weights(String spec) {
+        final Map<String, Integer> weights = new LinkedHashMap<>();
+        for (final String entry : spec.split(",")) {
+            if (!entry.trim().isEmpty()) {
+                final int eq = entry.lastIndexOf('=');
+                weights.put(entry.substring(0, eq).trim(), Integer.valueOf(entry.substring(eq + 1).trim()));
+            }
+        }
+
+        return queue -> weights.entrySet().stream()
+                .filter(e -> QueueDiscovery.matches(e.getKey(), queue))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(integer("jms.fair.weight.default", 1));
+    }
 
-            tasks.submit(depositService, depositService);
+    // Fair consumption has a transaction per message, and no partitions; say so rather than ignore options silently
+    private static void checkFairOptions() {
+        if (string("jms.partitions", null) != null) {
+            throw new IllegalArgumentException("jms.partitions cannot be used with jms.fair");
         }
 
-        for (int i = 0; i < nthreads; i++) {
-            tasks.take().get().close();
+        for (final String option : new String[] { "threads.max", "jms.prefetch", "jms.ack", "jms.ack.batch",
+                "jms.ack.time" }) {
+            if (string(option, null) != null) {
+                LOG.warn("{} does not apply with jms.fair, ignoring it", option);
+            }
+        }
+    }
+
+    // Consume the partitions given as a range like 0-63, if any
+    private static ConsumerOptions partitions(ConsumerOptions options) {
+        final String range = string("jms.partitions", null);
+        if (range == null) {
+            return options;
+        }
+
+        final String[] bounds = range.split("-");
+        return options.withPartitions(Integer.parseInt(bounds[0].trim()),
+                Integer.parseInt(bounds[bounds.length - 1].trim()));
+    }
+
+    private static DuplicateFilter duplicateFilter() {
+        final int cacheSize = integer("dedup.cache", 0);
+        final String file = string("dedup.file", null);
+
+        if (cacheSize < 1 && file == null) {
+            return null;
+        }
 
-            LOG.info("Stopped deposit thread " + i);
+        final DuplicateFilter filter = new DuplicateFilter(cacheSize);
+        if (file != null) {
+            filter.withBloomFilter(Paths.get(file),
+                    integer("dedup.capacity", 10000000),
+                    Double.parseDouble(string("dedup.fpp", "1e-7")));
         }
+        return filter;
     }
 
     private static URI makeDiscoEndpointUri() {
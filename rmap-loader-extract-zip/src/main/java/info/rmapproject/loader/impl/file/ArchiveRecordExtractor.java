@@ -34,11 +34,11 @@ import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
 import info.rmapproject.loader.model.HarvestInfo;
 import info.rmapproject.loader.model.RecordInfo;
 
@@ -54,6 +54,14 @@ public class ArchiveRecordExtractor implements RecordExtractor {
 
     private String contentType = "application/octet-stream";
 
+    private EntryFilter entryFilter = new EntryFilter();
+
+    private long maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
+    private CheckpointStore checkpoints;
+
+    private int checkpointInterval;
+
     @Override
     public RecordExtractor onDone(Consumer<Path> action) {
         this.doneAction = action;
@@ -72,27 +80,38 @@ public class ArchiveRecordExtractor implements RecordExtractor {
             harvest.setSrc(URI.create("file:" + file.getFileName().toString()));
             harvest.setId(URI.create(harvest.getSrc().toString() + "@" + new Date().getTime()));
 
-            final ArchiveInputStream is = archiveStream(Files.newInputStream(file));
+            final Checkpointer checkpointer = new Checkpointer(checkpoints, file, checkpointInterval);
+            final ArchiveInputStream is = resume(file, checkpointer);
 
             final Iterable<HarvestRecord> records = () -> new Iterator<HarvestRecord>() {
 
                 ArchiveEntry entry;
 
+                long index = checkpointer.start();
+
                 @Override
                 public boolean hasNext() {
                     try {
-                        entry = is.getNextEntry();
+                        // The record from the previous entry has been consumed by now
+                        if (entry != null) {
+                            checkpointer.processed(index, entry.getName(), is.getBytesRead());
+                        }
+
+                        entry = nextEntry();
 
-                        // Skip over directories
-                        while (entry != null && entry.isDirectory()) {
-                            entry = is.getNextEntry();
+                        // Skip over directories, and entries that don't pass the filter
+                        while (entry != null && (entry.isDirectory() || !entryFilter.accept(
+                                entry.getName(), entry.getSize(), entry.getLastModifiedDate()))) {
+                            entry = nextEntry();
                         }
 
                         final boolean hasNext = entry != null;
                         if (!hasNext) {
                             LOG.info("Done extracting from " + file);
                             is.close();
+                            // Only once the done action has succeeded is the checkpoint no longer needed
                             doneAction.accept(file);
+                            checkpointer.done();
                         }
                         return hasNext;
                     } catch (final Exception e) {
@@ -100,6 +119,14 @@ public class ArchiveRecordExtractor implements RecordExtractor {
                     }
                 }
 
+                private ArchiveEntry nextEntry() throws IOException {
+                    final ArchiveEntry next = is.getNextEntry();
+                    if (next != null) {
+                        index++;
+                    }
+                    return next;
+                }
+
                 @Override
                 public HarvestRecord next() {
                     final RecordInfo info = new RecordInfo();
@@ -115,11 +142,7 @@ public class ArchiveRecordExtractor implements RecordExtractor {
                     try {
                         LOG.debug("entry: " + entry);
                         LOG.debug("size: " + entry.getSize());
-                        if (entry.getSize() > -1) {
-                            record.setBody(IOUtils.toByteArray(is, entry.getSize()));
-                        } else {
-                            record.setBody(IOUtils.toByteArray(is));
-                        }
+                        record.setRecordBody(RecordBody.read(is, entry.getSize(), maxInMemory));
                     } catch (final Exception e) {
 
                         try {
@@ -141,6 +164,33 @@ public class ArchiveRecordExtractor implements RecordExtractor {
         }
     }
 
+    // Open an archive, skipping over any entries that have already been processed according to its checkpoint
+    private static ArchiveInputStream resume(Path file, Checkpointer checkpointer) throws Exception {
+        final Checkpoint checkpoint = checkpointer.resumeFrom();
+        final ArchiveInputStream is = archiveStream(Files.newInputStream(file));
+
+        if (checkpoint == null) {
+            return is;
+        }
+
+        ArchiveEntry entry = null;
+        for (long i = 0; i < checkpoint.getIndex(); i++) {
+            if ((entry = is.getNextEntry()) == null) {
+                break;
+            }
+        }
+
+        if (entry != null && entry.getName().equals(checkpoint.getName())) {
+            LOG.info("Resuming {} after {}", file, checkpoint);
+            return is;
+        }
+
+        LOG.warn("Checkpoint {} does not match {}, starting from the beginning", checkpoint, file);
+        is.close();
+        checkpointer.restart();
+        return archiveStream(Files.newInputStream(file));
+    }
+
     private static InputStream buffered(final InputStream in) {
         if (!in.markSupported()) {
             return new BufferedInputStream(in);
@@ -177,4 +227,23 @@ public class ArchiveRecordExtractor implements RecordExtractor {
         this.contentType = type;
         return this;
     }
+
+    @Override
+    public RecordExtractor withEntryFilter(EntryFilter filter) {
+        this.entryFilter = filter;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withMaxInMemory(long bytes) {
+        this.maxInMemory = bytes;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withCheckpoints(CheckpointStore store, int interval) {
+        this.checkpoints = store;
+        this.checkpointInterval = interval;
+        return this;
+    }
 }
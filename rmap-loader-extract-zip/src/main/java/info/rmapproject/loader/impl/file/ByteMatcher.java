@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Searches raw UTF-8 content for any of a set of terms, without decoding it.
+ * <p>
+ * All terms are compiled into a single Aho-Corasick automaton, in the form of a complete state transition table, so
+ * content is scanned in a single pass with one table lookup per byte, no matter how many terms there are. Matching is
+ * case-insensitive for ASCII letters only; any other characters must match exactly.
+ * </p>
+ * <p>
+ * Content is accepted if it contains at least one of the include terms (or if there are none), and none of the
+ * exclude terms. Scanning stops as soon as the outcome is known. Matching allocates nothing per invocation, and
+ * instances may be shared by multiple threads.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class ByteMatcher {
+
+    private static final int INCLUDE = 1;
+
+    private static final int EXCLUDE = 2;
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[65536]);
+
+    /** Transition table; the next state is at (state &lt;&lt; 8 | byte) */
+    private final int[] delta;
+
+    /** Whether an include and/or exclude term ends at each state */
+    private final byte[] output;
+
+    private final boolean anyIncludes;
+
+    private final boolean anyExcludes;
+
+    /**
+     * Compile a matcher.
+     *
+     * @param includes Terms, at least one of which must be present. Empty terms are ignored.
+     * @param excludes Terms, none of which may be present. Empty terms are ignored.
+     */
+    public ByteMatcher(Collection<String> includes, Collection<String> excludes) {
+        final Trie trie = new Trie();
+        includes.stream().filter(t -> !t.isEmpty()).forEach(t -> trie.add(t, INCLUDE));
+        excludes.stream().filter(t -> !t.isEmpty()).forEach(t -> trie.add(t, EXCLUDE));
+
+        this.anyIncludes = includes.stream().anyMatch(t -> !t.isEmpty());
+        this.anyExcludes = excludes.stream().anyMatch(t -> !t.isEmpty());
+        this.output = trie.output();
+        this.delta = trie.compile(output);
+    }
+
+    /**
+     * Determine if content is accepted.
+     *
+     * @param bytes Content.
+     * @param offset Offset of content in the array.
+     * @param length Length of content.
+     * @return true if the content contains an include term (or there are none), and no exclude terms.
+     */
+    public boolean test(byte[] bytes, int offset, int length) {
+        boolean included = !anyIncludes;
+        int state = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            state = delta[state << 8 | bytes[i] & 0xff];
+            final byte out = output[state];
+            if (out != 0) {
+                if ((out & EXCLUDE) != 0) {
+                    return false;
+                }
+                included = true;
+                if (!anyExcludes) {
+                    return true;
+                }
+            }
+        }
+
+        return included;
+    }
+
+    /**
+     * Determine if the content of a stream is accepted.
+     * <p>
+     * The stream is read only as far as necessary to decide, and is not closed.
+     * </p>
+     *
+     * @param in Stream of content.
+     * @return true if the content contains an include term (or there are none), and no exclude terms.
+     * @throws IOException if the stream cannot be read.
+     */
+    public boolean test(InputStream in) throws IOException {
+        final byte[] buf = BUFFER.get();
+        boolean included = !anyIncludes;
+        int state = 0;
+
+        int len;
+        while ((len = in.read(buf)) > -1) {
+            for (int i = 0; i < len; i++) {
+                state = delta[state << 8 | buf[i] & 0xff];
+                final byte out = output[state];
+                if (out != 0) {
+                    if ((out & EXCLUDE) != 0) {
+                        return false;
+                    }
+                    included = true;
+                    if (!anyExcludes) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return included;
+    }
+
+    /** Trie of terms (in lower case), from which the automaton is built */
+    private static class Trie {
+
+        final List<int[]> children = new ArrayList<>();
+
+        final List<Integer> outputs = new ArrayList<>();
+
+        Trie() {
+            newState();
+        }
+
+        void add(String term, int flag) {
+            int state = 0;
+            for (final byte b : term.getBytes(UTF_8)) {
+                final int c = lower(b & 0xff);
+                if (children.get(state)[c] < 0) {
+                    children.get(state)[c] = newState();
+                }
+                state = children.get(state)[c];
+            }
+            outputs.set(state, outputs.get(state) | flag);
+        }
+
+        byte[] output() {
+            final byte[] output = new byte[outputs.size()];
+            for (int i = 0; i < output.length; i++) {
+                output[i] = outputs.get(i).byteValue();
+            }
+            return output;
+        }
+
+        /* Computes failure links breadth-first, filling in the transition table and propagating outputs. */
+        int[] compile(byte[] output) {
+            final int[] delta = new int[children.size() << 8];
+            final int[] fail = new int[children.size()];
+            final Deque<Integer> queue = new ArrayDeque<>();
+
+            for (int c = 0; c < 256; c++) {
+                final int child = children.get(0)[c];
+                if (child > 0) {
+                    delta[c] = child;
+                    queue.add(child);
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                final int state = queue.remove();
+                for (int c = 0; c < 256; c++) {
+                    final int child = children.get(state)[c];
+                    if (child > 0) {
+                        fail[child] = delta[fail[state] << 8 | c];
+                        output[child] |= output[fail[child]];
+                        delta[state << 8 | c] = child;
+                        queue.add(child);
+                    } else {
+                        delta[state << 8 | c] = delta[fail[state] << 8 | c];
+                    }
+                }
+            }
+
+            // Upper case ASCII letters behave like their lower case equivalents.
+            for (int state = 0; state < children.size(); state++) {
+                for (int c = 'A'; c <= 'Z'; c++) {
+                    delta[state << 8 | c] = delta[state << 8 | lower(c)];
+                }
+            }
+
+            return delta;
+        }
+
+        private int newState() {
+            final int[] next = new int[256];
+            Arrays.fill(next, -1);
+            children.add(next);
+            outputs.add(0);
+            return children.size() - 1;
+        }
+
+        private static int lower(int c) {
+            return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+        }
+    }
+}
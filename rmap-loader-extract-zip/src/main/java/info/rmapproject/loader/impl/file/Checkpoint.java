@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+/**
+ * Progress through an archive.
+ * <p>
+ * A checkpoint records how many entries of an archive (directories and filtered entries included) have been fully
+ * processed, and the name of the last of them. On resuming, that many entries are skipped, and the name is used to
+ * verify that the archive has not changed in the meantime.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class Checkpoint {
+
+    private final long index;
+
+    private final String name;
+
+    private final long offset;
+
+    /**
+     * Create a checkpoint.
+     *
+     * @param index Number of entries that have been processed.
+     * @param name Name of the last entry processed.
+     * @param offset Position in the archive stream following the last entry processed, or -1 if unknown.
+     */
+    public Checkpoint(long index, String name, long offset) {
+        this.index = index;
+        this.name = name;
+        this.offset = offset;
+    }
+
+    /**
+     * Number of entries that have been processed.
+     *
+     * @return the index of the next entry to process.
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * Name of the last entry processed.
+     *
+     * @return entry name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Position in the (uncompressed) archive stream following the last entry processed.
+     * <p>
+     * This is informational only, as the state of a decompressor cannot be restored from an offset alone.
+     * </p>
+     *
+     * @return byte offset, or -1 if unknown.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entry %s (%s) at offset %s", index, name, offset);
+    }
+}
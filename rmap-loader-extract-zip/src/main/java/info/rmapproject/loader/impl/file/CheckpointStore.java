@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import java.nio.file.Path;
+
+/**
+ * Persists {@link Checkpoint}s of progress through archives.
+ *
+ * @author apb@jhu.edu
+ */
+public interface CheckpointStore {
+
+    /**
+     * Load the checkpoint for an archive.
+     *
+     * @param archive Archive file.
+     * @return the checkpoint, or null if there is none.
+     */
+    Checkpoint load(Path archive);
+
+    /**
+     * Save the checkpoint for an archive, replacing any existing one.
+     *
+     * @param archive Archive file.
+     * @param checkpoint Checkpoint.
+     */
+    void save(Path archive, Checkpoint checkpoint);
+
+    /**
+     * Remove the checkpoint for an archive, if there is one.
+     *
+     * @param archive Archive file.
+     */
+    void clear(Path archive);
+}
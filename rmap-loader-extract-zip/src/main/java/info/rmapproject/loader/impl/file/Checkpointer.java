@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import java.nio.file.Path;
+
+/**
+ * Saves checkpoints of progress through a single archive at a fixed interval.
+ *
+ * @author apb@jhu.edu
+ */
+class Checkpointer {
+
+    private final CheckpointStore store;
+
+    private final Path archive;
+
+    private final int interval;
+
+    private long start;
+
+    private long saved;
+
+    /**
+     * @param store Checkpoint store, or null if checkpoints are not to be used.
+     * @param archive The archive.
+     * @param interval Number of entries between checkpoints.
+     */
+    Checkpointer(CheckpointStore store, Path archive, int interval) {
+        this.store = interval > 0 ? store : null;
+        this.archive = archive;
+        this.interval = interval;
+    }
+
+    /**
+     * Get the checkpoint to resume from.
+     *
+     * @return the checkpoint, or null if starting from the beginning.
+     */
+    Checkpoint resumeFrom() {
+        if (store == null) {
+            return null;
+        }
+
+        final Checkpoint checkpoint = store.load(archive);
+        if (checkpoint != null) {
+            start = checkpoint.getIndex();
+            saved = start;
+        }
+        return checkpoint;
+    }
+
+    /** Forget about any previous checkpoint, e.g. because it did not match the archive */
+    void restart() {
+        start = 0;
+        saved = 0;
+        if (store != null) {
+            store.clear(archive);
+        }
+    }
+
+    /**
+     * Number of entries to skip, according to the checkpoint being resumed from.
+     *
+     * @return entries to skip, or zero if starting from the beginning.
+     */
+    long start() {
+        return start;
+    }
+
+    /**
+     * Note that the given number of entries have been completely processed, saving a checkpoint if one is due.
+     *
+     * @param index Number of entries processed.
+     * @param name Name of the last entry processed.
+     * @param offset Offset in the archive stream following that entry, or -1 if unknown.
+     */
+    void processed(long index, String name, long offset) {
+        if (store != null && index - saved >= interval) {
+            store.save(archive, new Checkpoint(index, name, offset));
+            saved = index;
+        }
+    }
+
+    /** All entries have been processed, so the checkpoint is no longer needed */
+    void done() {
+        if (store != null) {
+            store.clear(archive);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Date;
+
+/**
+ * Decides whether an archive entry should be extracted, based only on what is known from its header.
+ * <p>
+ * Extractors apply this filter before reading an entry's body, so entries that are rejected never have their content
+ * read into memory. If a property of an entry is unknown (e.g. a zip entry whose size is only given after its data),
+ * criteria involving that property are not applied.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class EntryFilter {
+
+    private PathMatcher names = p -> true;
+
+    private long minSize = 0;
+
+    private long maxSize = Long.MAX_VALUE;
+
+    private Date modifiedSince;
+
+    /**
+     * Only accept entries whose name matches the given glob.
+     * <p>
+     * The glob is matched against the full entry name, including any directories. So <code>**.xml</code> matches
+     * xml files at any depth, whereas <code>*.xml</code> only matches those at the top level.
+     * </p>
+     *
+     * @param glob Glob pattern
+     * @return this filter.
+     */
+    public EntryFilter withNameGlob(String glob) {
+        this.names = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return this;
+    }
+
+    /**
+     * Only accept entries of at least the given size.
+     *
+     * @param bytes minimum uncompressed size, in bytes.
+     * @return this filter.
+     */
+    public EntryFilter withMinSize(long bytes) {
+        this.minSize = bytes;
+        return this;
+    }
+
+    /**
+     * Only accept entries of at most the given size.
+     *
+     * @param bytes maximum uncompressed size, in bytes.
+     * @return this filter.
+     */
+    public EntryFilter withMaxSize(long bytes) {
+        this.maxSize = bytes;
+        return this;
+    }
+
+    /**
+     * Only accept entries modified on or after the given date.
+     *
+     * @param date Earliest modification date.
+     * @return this filter.
+     */
+    public EntryFilter modifiedSince(Date date) {
+        this.modifiedSince = date;
+        return this;
+    }
+
+    /**
+     * Determine if an entry should be extracted.
+     *
+     * @param name Entry name
+     * @param size Uncompressed entry size, or -1 if unknown.
+     * @param modified Entry modification date, or null if unknown.
+     * @return true if the entry should be extracted.
+     */
+    public boolean accept(String name, long size, Date modified) {
+        if (!names.matches(Paths.get(name))) {
+            return false;
+        }
+
+        if (size > -1 && (size < minSize || size > maxSize)) {
+            return false;
+        }
+
+        if (modifiedSince != null && modified != null && modified.before(modifiedSince)) {
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Stores checkpoints in a file alongside each archive.
+ * <p>
+ * The checkpoint for <code>archive.zip</code> is kept in <code>archive.zip.checkpoint</code>. Checkpoints are written
+ * to a temporary file, synced to disk, and then moved into place, so a crash never leaves a partially written
+ * checkpoint behind.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class FileCheckpointStore implements CheckpointStore {
+
+    /** Suffix of checkpoint files */
+    public static final String SUFFIX = ".checkpoint";
+
+    private static final String INDEX = "index";
+
+    private static final String NAME = "name";
+
+    private static final String OFFSET = "offset";
+
+    @Override
+    public Checkpoint load(Path archive) {
+        final Path file = checkpointFile(archive);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        final Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+            return new Checkpoint(
+                    Long.parseLong(props.getProperty(INDEX)),
+                    props.getProperty(NAME),
+                    Long.parseLong(props.getProperty(OFFSET, "-1")));
+        } catch (final Exception e) {
+            throw new RuntimeException("Could not read checkpoint " + file, e);
+        }
+    }
+
+    @Override
+    public void save(Path archive, Checkpoint checkpoint) {
+        final Path file = checkpointFile(archive);
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        final Properties props = new Properties();
+        props.setProperty(INDEX, Long.toString(checkpoint.getIndex()));
+        props.setProperty(NAME, checkpoint.getName());
+        props.setProperty(OFFSET, Long.toString(checkpoint.getOffset()));
+
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+                    Writer writer = new OutputStreamWriter(out, UTF_8)) {
+                props.store(writer, "Checkpoint for " + archive.getFileName());
+                writer.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not write checkpoint " + file, e);
+        }
+    }
+
+    @Override
+    public void clear(Path archive) {
+        try {
+            Files.deleteIfExists(checkpointFile(archive));
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not remove checkpoint for " + archive, e);
+        }
+    }
+
+    private static Path checkpointFile(Path archive) {
+        return archive.resolveSibling(archive.getFileName() + SUFFIX);
+    }
+}
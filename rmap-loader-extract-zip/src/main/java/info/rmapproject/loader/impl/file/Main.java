@@ -18,19 +18,29 @@ package info.rmapproject.loader.impl.file;
 
 import static info.rmapproject.loader.util.ActiveMQConfig.buildConnectionFactory;
 import static info.rmapproject.loader.util.ConfigProperties.JMS_QUEUE_DEST;
+import static info.rmapproject.loader.util.ConfigUtil.integer;
 import static info.rmapproject.loader.util.ConfigUtil.string;
 import static info.rmapproject.loader.util.LogUtil.adjustLogLevels;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -38,6 +48,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.jms.BatchingHarvestRecordWriter;
+import info.rmapproject.loader.jms.EnvelopingHarvestRecordWriter;
+import info.rmapproject.loader.jms.FileOutbox;
+import info.rmapproject.loader.jms.FileBlobStore;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Compression;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Encoding;
 import info.rmapproject.loader.jms.HarvestRecordWriter;
 import info.rmapproject.loader.jms.JmsClient;
 import info.rmapproject.loader.util.CloseableConnectionFactory;
@@ -53,6 +69,8 @@ public class Main {
 
     static Predicate<HarvestRecord> grep = setupGrep();
 
+    static final AtomicReference<Throwable> asyncFailure = new AtomicReference<>();
+
     public static void main(final String[] args) throws Exception {
         adjustLogLevels();
 
@@ -63,26 +81,271 @@ public class Main {
         final List<Path> cmdLinePaths = commandLineFiles(args);
 
         try (CloseableConnectionFactory factory = buildConnectionFactory();
-                JmsClient client = new JmsClient(factory)) {
-
-            final HarvestRecordWriter writer = new HarvestRecordWriter(client);
+                JmsClient client = client(factory);
+                FileOutbox outbox = outbox();
+                RecordVersionIndex versions = indexVersions(cmdLinePaths);
+                BatchingHarvestRecordWriter batches = batchingWriter(client);
+                EnvelopingHarvestRecordWriter envelopes = envelopingWriter(client, batches);
+                RecordPipeline pipeline = new RecordPipeline(sender(client, batches, envelopes, outbox))
+                        .withQueueDepth(integer("writer.queue", 100))
+                        .withThreads(integer("writer.threads", 1))
+                        .onDiscard(Main::release)) {
 
-            final String queue = string(JMS_QUEUE_DEST, "rmap.harvest.xml.zip");
+            // An archive's checkpoints and completion wait only for the records its own thread has extracted
+            final Runnable flushArchive = () -> flush(pipeline::flushThread, client, batches, envelopes, outbox);
+            final Runnable flush = () -> flush(pipeline::flush, client, batches, envelopes, outbox);
 
-            new OneTimeRecordSource()
-                    .ofDirectory(fromCmdLineOrEnv(cmdLinePaths))
-                    .withFiles(cmdLinePaths.stream().filter(Files::isRegularFile).collect(toList()))
-                    .withFilter(REGEX)
+            recordSource(cmdLinePaths)
                     .withExtractor(extractor()
                             .contentType(string("content.type", "application/xml"))
-                            .onDone(RENAME_TO_DONE))
+                            .withEntryFilter(entryFilter())
+                            .withMaxInMemory(integer("body.memory.max", (int) RecordExtractor.DEFAULT_MAX_IN_MEMORY))
+                            .withCheckpoints(flushing(new FileCheckpointStore(), flushArchive),
+                                    integer("checkpoint.interval", 1000))
+                            .onDone(path -> {
+                                flushArchive.run();
+                                RENAME_TO_DONE.accept(path);
+                            }))
                     .onRecord(r -> {
-                        if (grep.test(r)) {
-                            writer.write(queue, r);
+                        if ((versions == null || versions.claim(r)) && grep.test(r)) {
+                            pipeline.accept(r);
+                        } else {
+                            release(r);
                         }
                     })
                     .run();
+
+            flush.run();
+
+            if (outbox != null && !outbox.isEmpty()) {
+                LOG.info("Waiting for {} records in the outbox to be sent", outbox.size());
+                outbox.awaitEmpty();
+            }
+        }
+    }
+
+    // With an outbox, records can be written before the broker is reached, so don't wait for it
+    private static JmsClient client(CloseableConnectionFactory factory) {
+        if (string("outbox.dir", null) == null) {
+            return new JmsClient(factory);
+        }
+
+        final JmsClient client = new JmsClient();
+        client.setConnectionFactory(factory);
+        client.initInBackground();
+        return client;
+    }
+
+    private static FileOutbox outbox() {
+        if (string("outbox.dir", null) == null) {
+            return null;
+        } else if (integer("batch.size", 0) > 0 || integer("envelope.size", 0) > 0) {
+            throw new IllegalArgumentException("outbox.dir cannot be used with batch.size or envelope.size");
+        }
+
+        return new FileOutbox(Paths.get(string("outbox.dir", null)))
+                .withMaxSize(integer("outbox.max", 1073741824));
+    }
+
+    // Write in transacted batches, if a batch size is given
+    private static BatchingHarvestRecordWriter batchingWriter(JmsClient client) {
+        final int size = integer("batch.size", 0);
+        if (size <= 0) {
+            return null;
+        }
+
+        return new BatchingHarvestRecordWriter(client)
+                .withBatchSize(size)
+                .withBatchTime(integer("batch.time", 1000));
+    }
+
+    // Pack small records into envelopes, if an envelope size is given
+    private static EnvelopingHarvestRecordWriter envelopingWriter(JmsClient client,
+            BatchingHarvestRecordWriter batches) {
+        final int size = integer("envelope.size", 0);
+        if (size <= 0) {
+            return null;
+        } else if (batches != null) {
+            throw new IllegalArgumentException("envelope.size and batch.size cannot be used together");
+        }
+
+        return new EnvelopingHarvestRecordWriter(client)
+                .withEnvelopeSize(size)
+                .withEnvelopeTime(integer("envelope.time", 1000))
+                .withMaxRecordSize(integer("envelope.record.max", 65536));
+    }
+
+    private static Encoding encoding() {
+        return Encoding.valueOf(string("writer.encoding", "text").toUpperCase());
+    }
+
+    private static Compression compression() {
+        final String type = string("writer.compression", "none");
+        if (!type.equals("none") && encoding() != Encoding.BYTES) {
+            throw new IllegalArgumentException("writer.compression requires writer.encoding=bytes");
+        }
+        if (!type.equals("none") && compressedQueues().isEmpty()) {
+            throw new IllegalArgumentException("writer.compression requires writer.compression.queues");
         }
+        final long threshold = integer("writer.compression.min", 1024);
+        switch (type) {
+        case "none":
+            return Compression.NONE;
+        case "deflate":
+            return Compression.deflate(threshold);
+        case "fast":
+            return Compression.fast(threshold);
+        default:
+            throw new IllegalArgumentException("Unknown compression " + type);
+        }
+    }
+
+    // Queues whose consumers can all inflate compressed records
+    private static List<String> compressedQueues() {
+        return Arrays.stream(string("writer.compression.queues", "").split(","))
+                .map(String::trim)
+                .filter(q -> !q.isEmpty())
+                .collect(toList());
+    }
+
+    // Writes each record to the queue, then releases it
+    private static Consumer<HarvestRecord> sender(JmsClient client, BatchingHarvestRecordWriter batches,
+            EnvelopingHarvestRecordWriter envelopes, FileOutbox outbox) {
+        final HarvestRecordWriter writer = batches != null ? batches
+                : envelopes != null ? envelopes : new HarvestRecordWriter(client);
+        writer.setEncoding(encoding());
+        writer.setCompression(compression(), compressedQueues()::contains);
+        writer.setPartitions(integer("writer.partitions", 0));
+        if (string("claim.check.dir", null) != null) {
+            writer.setClaimCheck(new FileBlobStore(Paths.get(string("claim.check.dir", null))),
+                    integer("claim.check.min", 1048576));
+        }
+        if (outbox != null) {
+            writer.setOutbox(outbox);
+        }
+        final String queue = string(JMS_QUEUE_DEST, "rmap.harvest.xml.zip");
+
+        if (writer.getClass() == HarvestRecordWriter.class && Boolean.valueOf(string("writer.async", "false"))) {
+            client.setMaxInFlight(integer("writer.async.max", 100));
+
+            // The message is created (and the body read) before writeAsync returns, so the body can be released.
+            return r -> {
+                try {
+                    rethrowAsyncFailure();
+                    writer.writeAsync(queue, r).whenComplete((v, e) -> {
+                        if (e != null && asyncFailure.compareAndSet(null, e)) {
+                            LOG.warn("Asynchronous write of {} failed", r.getRecordInfo().getId(), e);
+                        }
+                    });
+                } finally {
+                    release(r);
+                }
+            };
+        }
+
+        return r -> {
+            try {
+                writer.write(queue, r);
+            } finally {
+                release(r);
+            }
+        };
+    }
+
+    private static void rethrowAsyncFailure() {
+        final Throwable e = asyncFailure.get();
+        if (e != null) {
+            throw new RuntimeException("Could not write records: " + e.getMessage(), e);
+        }
+    }
+
+    // Make sure every record extracted so far has been sent (or is safely in the outbox), and acknowledged if async,
+    // or committed if batching
+    private static void flush(Runnable pipelineFlush, JmsClient client, BatchingHarvestRecordWriter batches,
+            EnvelopingHarvestRecordWriter envelopes, FileOutbox outbox) {
+        pipelineFlush.run();
+        if (outbox != null) {
+            outbox.flush();
+        }
+        if (envelopes != null) {
+            envelopes.flush();
+        }
+        client.awaitAsyncWrites();
+        rethrowAsyncFailure();
+        if (batches != null) {
+            batches.commit();
+        }
+    }
+
+    // Records before a checkpoint may still be in the pipeline, in flight, or in an open batch or envelope, so make
+    // sure they have been sent (and committed) before saving it
+    private static CheckpointStore flushing(CheckpointStore store, Runnable flush) {
+        return new CheckpointStore() {
+
+            @Override
+            public Checkpoint load(Path archive) {
+                return store.load(archive);
+            }
+
+            @Override
+            public void save(Path archive, Checkpoint checkpoint) {
+                flush.run();
+                store.save(archive, checkpoint);
+            }
+
+            @Override
+            public void clear(Path archive) {
+                store.clear(archive);
+            }
+        };
+    }
+
+    // If only the latest version of each record is wanted, make a first pass through all the archives, to find them
+    private static RecordVersionIndex indexVersions(List<Path> cmdLinePaths) {
+        if (!Boolean.valueOf(string("latest.only", "false"))) {
+            return null;
+        } else if (Boolean.valueOf(string("watch", "false"))) {
+            LOG.warn("latest.only has no effect when watching a directory");
+            return null;
+        }
+
+        LOG.info("Finding the latest version of each record");
+
+        final RecordVersionIndex versions = new RecordVersionIndex(integer("latest.memory.max", 268435456));
+        recordSource(cmdLinePaths)
+                .withExtractor(extractor()
+                        .withEntryFilter(entryFilter())
+                        .withMaxInMemory(integer("body.memory.max", (int) RecordExtractor.DEFAULT_MAX_IN_MEMORY)))
+                .onRecord(r -> {
+                    try {
+                        versions.offer(r);
+                    } finally {
+                        release(r);
+                    }
+                })
+                .run();
+
+        LOG.info("Found {} distinct records", versions.size());
+        return versions;
+    }
+
+    private static RecordSource recordSource(List<Path> cmdLinePaths) {
+        if (Boolean.valueOf(string("watch", "false"))) {
+            return new WatchingRecordSource()
+                    .ofDirectory(fromCmdLineOrEnv(cmdLinePaths))
+                    .withFilter(REGEX)
+                    .withThreads(integer("threads", 1))
+                    .withPolling(Boolean.valueOf(string("watch.poll", "false")))
+                    .withPollInterval(integer("watch.poll.interval", 10000))
+                    .withSettleTime(integer("watch.settle", 5000))
+                    .withRetryInterval(integer("watch.retry", 60000));
+        }
+
+        return new OneTimeRecordSource()
+                .ofDirectory(fromCmdLineOrEnv(cmdLinePaths))
+                .withFiles(cmdLinePaths.stream().filter(Files::isRegularFile).collect(toList()))
+                .withFilter(REGEX)
+                .withThreads(integer("threads", 1));
     }
 
     // If there is exactly one path specified and it's a directory, use it.
@@ -110,23 +373,88 @@ public class Main {
     };
 
     private static Predicate<Path> REGEX = path -> {
+        final String name = path.getFileName().toString();
         return pathFilter.matches(path) &&
-                !path.getFileName().toString().endsWith(".done");
+                !name.endsWith(".done") &&
+                !name.endsWith(FileCheckpointStore.SUFFIX) &&
+                !name.endsWith(FileCheckpointStore.SUFFIX + ".tmp");
     };
 
     private static RecordExtractor extractor() {
-        return new ArchiveRecordExtractor();
+        final String type = string("extractor", "archive");
+        switch (type) {
+        case "archive":
+            return new ArchiveRecordExtractor();
+        case "zip":
+            return new ZipFileRecordExtractor()
+                    .withThreads(integer("extractor.threads", Runtime.getRuntime().availableProcessors()));
+        case "xml":
+            final XmlRecordExtractor xml = new XmlRecordExtractor()
+                    .withRecordPath(string("xml.record.path", "record"))
+                    .withIdPrefix(string("xml.id.prefix", ""));
+            Optional.ofNullable(string("xml.id.path", null)).ifPresent(xml::withIdPath);
+            Optional.ofNullable(string("xml.date.path", null)).ifPresent(xml::withDatePath);
+            return xml;
+        default:
+            throw new IllegalArgumentException("Unknown extractor type " + type);
+        }
+    }
+
+    // Deletes any temporary file the body may have been spooled to
+    private static void release(HarvestRecord record) {
+        if (record.getRecordBody() != null) {
+            try {
+                record.getRecordBody().close();
+            } catch (final IOException e) {
+                LOG.warn("Could not release body of record {}", record.getRecordInfo().getId(), e);
+            }
+        }
+    }
+
+    private static EntryFilter entryFilter() {
+        final EntryFilter filter = new EntryFilter();
+
+        Optional.ofNullable(string("entry.filter", null)).ifPresent(filter::withNameGlob);
+        Optional.ofNullable(string("entry.size.min", null)).map(Long::valueOf).ifPresent(filter::withMinSize);
+        Optional.ofNullable(string("entry.size.max", null)).map(Long::valueOf).ifPresent(filter::withMaxSize);
+        Optional.ofNullable(string("entry.modified.since", null)).map(Main::parseDate).ifPresent(
+                filter::modifiedSince);
+
+        return filter;
+    }
+
+    // Accepts either a full ISO-8601 instant (2018-01-11T00:00:00Z), or a date (2018-01-11), taken as UTC.
+    private static Date parseDate(String date) {
+        try {
+            return Date.from(Instant.parse(date));
+        } catch (final DateTimeParseException e) {
+            return Date.from(LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant());
+        }
     }
 
     private static Predicate<HarvestRecord> setupGrep() {
-        final String grep = Optional.ofNullable(string("grep", null)).map(String::toLowerCase).orElse(null);
+        final List<String> include = terms(string("grep", null));
+        final List<String> exclude = terms(string("grep.exclude", null));
+
+        if (include.isEmpty() && exclude.isEmpty()) {
+            return r -> true;
+        }
+
+        final ByteMatcher matcher = new ByteMatcher(include, exclude);
 
         return r -> {
-            if (grep == null) {
-                return true;
-            } else {
-                return new String(r.getBody(), UTF_8).toLowerCase().contains(grep);
+            try (InputStream body = r.getRecordBody().openStream()) {
+                return matcher.test(body);
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not read body of " + r.getRecordInfo().getId(), e);
             }
         };
     }
+
+    // Terms are separated by '|'
+    private static List<String> terms(String terms) {
+        return Optional.ofNullable(terms)
+                .map(t -> Arrays.stream(t.split("\\|")).filter(term -> !term.isEmpty()).collect(toList()))
+                .orElse(Collections.emptyList());
+    }
 }
@@ -22,9 +22,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -33,6 +40,15 @@ import org.slf4j.LoggerFactory;
 import info.rmapproject.loader.HarvestRecord;
 
 /**
+ * Walks a directory (or a given list of files) once, extracting records from each archive found.
+ * <p>
+ * By default, archives are processed one at a time on the calling thread. If a thread count greater than one is
+ * given via {@link #withThreads(int)}, each archive is extracted on its own worker, up to that many archives at once.
+ * Records from any single archive are always delivered in order, by the same worker, so per-archive
+ * {@link RecordExtractor#onDone(Consumer)} semantics are unchanged. In parallel mode, the record consumer will be
+ * invoked concurrently and must be thread safe.
+ * </p>
+ *
  * @author apb@jhu.edu
  */
 public class OneTimeRecordSource implements RecordSource {
@@ -49,6 +65,8 @@ public class OneTimeRecordSource implements RecordSource {
 
     private Path dir = null;
 
+    private int threads = 1;
+
     @Override
     public void run() {
 
@@ -61,10 +79,14 @@ public class OneTimeRecordSource implements RecordSource {
 
         try (Stream<Path> fileStream = streamFiles()) {
 
-            fileStream
-                    .filter(Files::isRegularFile)
-                    .flatMap(extractor::recordsFrom)
-                    .forEach(processRecord);
+            if (threads > 1) {
+                runParallel(fileStream.filter(Files::isRegularFile).collect(Collectors.toList()));
+            } else {
+                fileStream
+                        .filter(Files::isRegularFile)
+                        .flatMap(extractor::recordsFrom)
+                        .forEach(processRecord);
+            }
 
         } catch (final IOException e) {
             throw new RuntimeException(e);
@@ -73,6 +95,43 @@ public class OneTimeRecordSource implements RecordSource {
         LOG.info("Done");
     }
 
+    private void runParallel(List<Path> archives) {
+
+        LOG.info("Extracting {} archives using {} threads", archives.size(), threads);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService exe = Executors.newFixedThreadPool(Math.min(threads, Math.max(archives.size(), 1)),
+                r -> new Thread(r, "extractor-" + threadCount.incrementAndGet()));
+
+        try {
+            final List<Future<?>> tasks = archives.stream()
+                    .map(archive -> exe.submit(() -> {
+                        try (Stream<HarvestRecord> records = extractor.recordsFrom(archive)) {
+                            records.forEach(processRecord);
+                        }
+                    }))
+                    .collect(Collectors.toList());
+
+            for (final Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (final ExecutionException e) {
+                    tasks.forEach(t -> t.cancel(true));
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    tasks.forEach(t -> t.cancel(true));
+                    throw new RuntimeException("Interrupted while extracting archives", e);
+                }
+            }
+        } finally {
+            exe.shutdownNow();
+        }
+    }
+
     private Stream<Path> streamFiles() throws IOException {
         if (!files.isEmpty()) {
             return files.stream().filter(filter::test);
@@ -109,4 +168,15 @@ public class OneTimeRecordSource implements RecordSource {
         this.files = files;
         return this;
     }
+
+    /**
+     * Set the number of archives to extract concurrently.
+     *
+     * @param threads Maximum number of concurrent extractor threads. Values less than two extract sequentially.
+     * @return this record source.
+     */
+    public OneTimeRecordSource withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
 }
@@ -27,9 +27,46 @@ import info.rmapproject.loader.HarvestRecord;
  */
 public interface RecordExtractor {
 
+    /** Default maximum size of a record body held in memory; larger bodies are spooled to temporary files */
+    static final long DEFAULT_MAX_IN_MEMORY = 16 * 1024 * 1024;
+
     RecordExtractor contentType(String type);
 
     RecordExtractor onDone(Consumer<Path> finish);
 
+    /**
+     * Skip entries rejected by the given filter, without reading their content.
+     *
+     * @param filter Entry filter.
+     * @return this extractor.
+     */
+    RecordExtractor withEntryFilter(EntryFilter filter);
+
+    /**
+     * Set the largest record body that will be held in memory.
+     * <p>
+     * Bodies larger than this are spooled to temporary files, which are deleted when the body is closed.
+     * </p>
+     *
+     * @param bytes Maximum body size, in bytes.
+     * @return this extractor.
+     */
+    RecordExtractor withMaxInMemory(long bytes);
+
+    /**
+     * Save checkpoints of progress through each archive, and resume from them.
+     * <p>
+     * Every <code>interval</code> entries, the number of entries processed so far is saved to the given store. An
+     * entry has been processed once the consumer of its record has returned. If an archive has a checkpoint when
+     * extraction starts, the entries it covers are skipped without their content being read. An archive's checkpoint
+     * is removed once the archive has been completely extracted.
+     * </p>
+     *
+     * @param store Checkpoint store.
+     * @param interval Number of entries between checkpoints. Values less than one disable checkpoints.
+     * @return this extractor.
+     */
+    RecordExtractor withCheckpoints(CheckpointStore store, int interval);
+
     Stream<HarvestRecord> recordsFrom(Path file);
 }
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+
+/**
+ * Hands records off to a sink running in its own threads.
+ * <p>
+ * This allows records to be extracted while previous ones are being sent, rather than one after the other in the
+ * same thread. Records are held in a bounded queue in the meantime; when it is full, {@link #accept(HarvestRecord)}
+ * blocks until there is room, so that extraction can never get arbitrarily far ahead of the sink.
+ * </p>
+ * <p>
+ * If the sink fails, the pipeline stops: the failure is re-thrown by the next call to {@link #accept(HarvestRecord)}
+ * or {@link #flush()}, and any records still queued are passed to the discard consumer instead.
+ * </p>
+ * <p>
+ * Each record is given a sequence number as it is accepted, so that flushing waits only for the records accepted up
+ * to some point (a watermark), and not for those accepted since. With several producers, such as one thread per
+ * archive, {@link #flushThread()} waits only for the records accepted by the calling thread, and those before them.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class RecordPipeline implements Consumer<HarvestRecord>, AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(RecordPipeline.class);
+
+    private final Consumer<HarvestRecord> sink;
+
+    private Consumer<HarvestRecord> discard = r -> {
+    };
+
+    private int queueDepth = 100;
+
+    private int threads = 1;
+
+    private BlockingQueue<Queued> queue;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final Object lock = new Object();
+
+    /* Sequence numbers of records accepted, but not yet done with; guarded by lock */
+    private final TreeSet<Long> pending = new TreeSet<>();
+
+    /* Sequence number of the last record accepted; guarded by lock */
+    private long sequence;
+
+    /* Sequence number of the last record accepted by each thread */
+    private final ThreadLocal<Long> lastAccepted = ThreadLocal.withInitial(() -> 0L);
+
+    private volatile boolean closed;
+
+    /**
+     * Create a pipeline feeding the given sink.
+     *
+     * @param sink Consumer of records, called by the pipeline's threads.
+     */
+    public RecordPipeline(Consumer<HarvestRecord> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Number of records that may be waiting for the sink.
+     *
+     * @param depth Queue depth. Default is 100.
+     * @return configured pipeline.
+     */
+    public RecordPipeline withQueueDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Queue depth must be at least 1");
+        }
+        this.queueDepth = depth;
+        return this;
+    }
+
+    /**
+     * Number of threads calling the sink.
+     * <p>
+     * With more than one, records may reach the sink in a different order than they were accepted.
+     * </p>
+     *
+     * @param threads Number of threads. Default is 1.
+     * @return configured pipeline.
+     */
+    public RecordPipeline withThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Must have at least one thread");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Consumer of records that will not be given to the sink, because it has failed.
+     *
+     * @param discard Consumer of discarded records.
+     * @return configured pipeline.
+     */
+    public RecordPipeline onDiscard(Consumer<HarvestRecord> discard) {
+        this.discard = discard;
+        return this;
+    }
+
+    /**
+     * Queue a record for the sink, waiting for room if necessary.
+     *
+     * @param record The record.
+     */
+    @Override
+    public void accept(HarvestRecord record) {
+        start();
+        rethrow();
+
+        final long seq;
+        synchronized (lock) {
+            seq = ++sequence;
+            pending.add(seq);
+        }
+        lastAccepted.set(seq);
+
+        try {
+            queue.put(new Queued(seq, record));
+        } catch (final InterruptedException e) {
+            done(seq);
+            discard.accept(record);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queuing record", e);
+        }
+    }
+
+    /**
+     * Wait until every record accepted so far has been through the sink.
+     * <p>
+     * Used before anything that must not happen until earlier records are sent, such as marking an archive as done.
+     * </p>
+     */
+    public void flush() {
+        final long watermark;
+        synchronized (lock) {
+            watermark = sequence;
+        }
+        flush(watermark);
+    }
+
+    /**
+     * Wait until every record accepted so far by the calling thread has been through the sink.
+     * <p>
+     * Records accepted before them by other threads are waited for too, but not those accepted since; so one archive
+     * can be checkpointed or marked done while others keep the pipeline busy.
+     * </p>
+     */
+    public void flushThread() {
+        flush(lastAccepted.get());
+    }
+
+    // Wait until no record up to the given sequence number is pending
+    private void flush(long watermark) {
+        synchronized (lock) {
+            while (!pending.isEmpty() && pending.first() <= watermark) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while flushing records", e);
+                }
+            }
+        }
+        rethrow();
+    }
+
+    /**
+     * Flush, then stop the pipeline's threads.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            workers.forEach(Thread::interrupt);
+            for (final Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private synchronized void start() {
+        if (queue != null) {
+            return;
+        } else if (closed) {
+            throw new IllegalStateException("Pipeline is closed");
+        }
+
+        queue = new ArrayBlockingQueue<>(queueDepth);
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(this::work, "record-pipeline-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    private void work() {
+        while (!closed) {
+            final Queued queued;
+            try {
+                queued = queue.poll(1, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                continue;
+            }
+
+            if (queued == null) {
+                continue;
+            }
+
+            try {
+                if (failure.get() == null) {
+                    sink.accept(queued.record);
+                } else {
+                    discard.accept(queued.record);
+                }
+            } catch (final Throwable e) {
+                // Errors too, or the worker would die with records pending, and flush() would never return
+                if (failure.compareAndSet(null, e)) {
+                    LOG.warn("Sending records failed, stopping", e);
+                }
+            } finally {
+                done(queued.seq);
+            }
+        }
+    }
+
+    private void done(long seq) {
+        synchronized (lock) {
+            pending.remove(seq);
+            lock.notifyAll();
+        }
+    }
+
+    private void rethrow() {
+        final Throwable e = failure.get();
+        if (e != null) {
+            throw new RuntimeException("Could not send records: " + e.getMessage(), e);
+        }
+    }
+
+    /** A record, and the sequence number it was accepted with */
+    private static class Queued {
+
+        final long seq;
+
+        final HarvestRecord record;
+
+        Queued(long seq, HarvestRecord record) {
+            this.seq = seq;
+            this.record = record;
+        }
+    }
+}
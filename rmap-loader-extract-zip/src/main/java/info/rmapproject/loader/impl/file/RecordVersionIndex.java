@@ -0,0 +1,519 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+
+/**
+ * Tracks the newest version of each record seen, so that older versions can be dropped.
+ * <p>
+ * This is used in two passes. First, every record is {@link #offer(HarvestRecord) offered}, so that the newest date
+ * of each record id is known. Then, as records are encountered again, each is {@link #claim(HarvestRecord) claimed}.
+ * Only the first record bearing the newest date for its id may be claimed; all others are older or duplicate
+ * versions.
+ * </p>
+ * <p>
+ * The index is an open addressing hash table of (hash, id, date) entries, keyed by a 64 bit hash of the record id.
+ * Each id is stored once, alongside the table, and compared whenever hashes match, so distinct ids that happen to
+ * share a hash are never mistaken for versions of each other. The table and ids are held on the heap until they
+ * outgrow the given memory limit. From then on, they are held in temporary files (the table memory mapped), which are
+ * deleted when the index is closed.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class RecordVersionIndex implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(RecordVersionIndex.class);
+
+    /** Bytes used per slot; a hash, the position of the id, and a value */
+    private static final int SLOT_BYTES = 24;
+
+    /** Date used for records that have none; older than any real date */
+    private static final long NO_DATE = Long.MIN_VALUE >> 2;
+
+    /** Largest table that fits in a single array */
+    private static final long MAX_HEAP_SLOTS = 1 << 29;
+
+    private final long maxInMemory;
+
+    private Table table;
+
+    private final Ids ids = new Ids();
+
+    private long size;
+
+    /**
+     * Create an index.
+     *
+     * @param maxInMemory Largest size of index, in bytes, to keep on the heap.
+     */
+    public RecordVersionIndex(long maxInMemory) {
+        this.maxInMemory = maxInMemory;
+        this.table = new HeapTable(1 << 10);
+    }
+
+    /**
+     * Note a version of a record.
+     *
+     * @param record The record.
+     */
+    public synchronized void offer(HarvestRecord record) {
+        final long date = date(record);
+        final byte[] id = id(record);
+        final long hash = hash(id);
+        final long slot = find(hash, id);
+
+        if (table.key(slot) == 0) {
+            table.put(slot, hash, add(id), date << 1);
+            grow();
+        } else if (date > table.value(slot) >> 1) {
+            table.put(slot, table.key(slot), table.id(slot), date << 1);
+        }
+    }
+
+    /**
+     * Claim the newest version of a record.
+     * <p>
+     * Records that were not offered beforehand (or are newer than any that were) are treated as being the newest
+     * version.
+     * </p>
+     *
+     * @param record The record.
+     * @return true if the record is the newest version of its id, and has not been claimed before.
+     */
+    public synchronized boolean claim(HarvestRecord record) {
+        final long date = date(record);
+        final byte[] id = id(record);
+        final long hash = hash(id);
+        final long slot = find(hash, id);
+
+        if (table.key(slot) == 0) {
+            table.put(slot, hash, add(id), date << 1 | 1);
+            grow();
+            return true;
+        }
+
+        final long value = table.value(slot);
+        if (date > value >> 1 || date == value >> 1 && (value & 1) == 0) {
+            table.put(slot, table.key(slot), table.id(slot), date << 1 | 1);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Number of distinct record ids in the index.
+     *
+     * @return the number of ids.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            table.close();
+        } finally {
+            ids.close();
+        }
+    }
+
+    // Find the slot holding the given id, or the empty slot where it belongs.
+    private long find(long hash, byte[] id) {
+        final long mask = table.slots() - 1;
+        long slot = hash & mask;
+        while (table.key(slot) != 0 && (table.key(slot) != hash || !ids.matches(table.id(slot), id))) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    // Find the empty slot where an id known not to be in the table belongs.
+    private long findEmpty(long hash) {
+        final long mask = table.slots() - 1;
+        long slot = hash & mask;
+        while (table.key(slot) != 0) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    // Store a new id, moving the ids to disk if they no longer fit in memory alongside the table.
+    private long add(byte[] id) {
+        try {
+            final long position = ids.add(id);
+            if (ids.inMemory() && table.heapBytes() + ids.size() > maxInMemory) {
+                LOG.info("Record ids have outgrown memory, moving them to disk");
+                ids.spill();
+            }
+            return position;
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not store record id", e);
+        }
+    }
+
+    // Account for a newly occupied slot, doubling the size of the table when it is 3/4 full.
+    private void grow() {
+        size++;
+        if (size * 4 < table.slots() * 3) {
+            return;
+        }
+
+        final Table old = table;
+        final long slots = old.slots() * 2;
+
+        try {
+            final long idBytes = ids.inMemory() ? ids.size() : 0;
+            if (slots * SLOT_BYTES + idBytes <= maxInMemory && slots <= MAX_HEAP_SLOTS) {
+                table = new HeapTable((int) slots);
+            } else {
+                if (old instanceof HeapTable) {
+                    LOG.info("Record version index has outgrown memory, moving it to disk");
+                }
+                table = new MappedTable(slots);
+            }
+
+            for (long i = 0; i < old.slots(); i++) {
+                final long key = old.key(i);
+                if (key != 0) {
+                    table.put(findEmpty(key), key, old.id(i), old.value(i));
+                }
+            }
+
+            old.close();
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not grow record version index", e);
+        }
+    }
+
+    private static long date(HarvestRecord record) {
+        final Date date = record.getRecordInfo().getDate();
+        return date != null ? date.getTime() : NO_DATE;
+    }
+
+    private static byte[] id(HarvestRecord record) {
+        return record.getRecordInfo().getId().toString().getBytes(UTF_8);
+    }
+
+    // 64 bit FNV-1a of the record id, with a final avalanche. Zero is reserved for empty slots.
+    private static long hash(byte[] id) {
+        long h = 0xcbf29ce484222325L;
+        for (final byte b : id) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h != 0 ? h : 1;
+    }
+
+    /** Storage of (hash, id, value) slots */
+    private interface Table extends Closeable {
+
+        long slots();
+
+        long key(long slot);
+
+        long id(long slot);
+
+        long value(long slot);
+
+        void put(long slot, long key, long id, long value);
+
+        long heapBytes();
+    }
+
+    private static class HeapTable implements Table {
+
+        final long[] data;
+
+        HeapTable(int slots) {
+            data = new long[slots * 3];
+        }
+
+        @Override
+        public long slots() {
+            return data.length / 3;
+        }
+
+        @Override
+        public long key(long slot) {
+            return data[(int) slot * 3];
+        }
+
+        @Override
+        public long id(long slot) {
+            return data[(int) slot * 3 + 1];
+        }
+
+        @Override
+        public long value(long slot) {
+            return data[(int) slot * 3 + 2];
+        }
+
+        @Override
+        public void put(long slot, long key, long id, long value) {
+            data[(int) slot * 3] = key;
+            data[(int) slot * 3 + 1] = id;
+            data[(int) slot * 3 + 2] = value;
+        }
+
+        @Override
+        public long heapBytes() {
+            return data.length * 8L;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+
+    /**
+     * Table in a memory mapped file.
+     * <p>
+     * A single mapping is limited to 2GB, so the file is mapped in segments.
+     * </p>
+     */
+    private static class MappedTable implements Table {
+
+        static final int SEGMENT_SHIFT = 26;
+
+        static final long SEGMENT_SLOTS = 1L << SEGMENT_SHIFT;
+
+        final long slots;
+
+        final Path file;
+
+        final LongBuffer[] segments;
+
+        MappedTable(long slots) throws IOException {
+            this.slots = slots;
+            this.file = Files.createTempFile("rmap-versions-", ".idx");
+
+            final int count = (int) ((slots + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS);
+            this.segments = new LongBuffer[count];
+
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                    FileChannel channel = raf.getChannel()) {
+                raf.setLength(slots * SLOT_BYTES);
+                for (int i = 0; i < count; i++) {
+                    final long start = i * SEGMENT_SLOTS * SLOT_BYTES;
+                    segments[i] = channel.map(MapMode.READ_WRITE, start,
+                            Math.min(SEGMENT_SLOTS, slots - i * SEGMENT_SLOTS) * SLOT_BYTES).asLongBuffer();
+                }
+            } catch (final IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+        }
+
+        @Override
+        public long slots() {
+            return slots;
+        }
+
+        @Override
+        public long key(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)].get((int) (slot & SEGMENT_SLOTS - 1) * 3);
+        }
+
+        @Override
+        public long id(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)].get((int) (slot & SEGMENT_SLOTS - 1) * 3 + 1);
+        }
+
+        @Override
+        public long value(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)].get((int) (slot & SEGMENT_SLOTS - 1) * 3 + 2);
+        }
+
+        @Override
+        public void put(long slot, long key, long id, long value) {
+            final LongBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+            final int i = (int) (slot & SEGMENT_SLOTS - 1) * 3;
+            segment.put(i, key);
+            segment.put(i + 1, id);
+            segment.put(i + 2, value);
+        }
+
+        @Override
+        public long heapBytes() {
+            return 0;
+        }
+
+        /* The mappings themselves are released once garbage collected; the file is removed now */
+        @Override
+        public void close() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Record ids, each stored as its length and UTF-8 bytes, and referred to by position.
+     * <p>
+     * Ids are appended to an array until they are spilled, then to a temporary file. Positions are the same either
+     * way.
+     * </p>
+     */
+    private static class Ids implements Closeable {
+
+        byte[] heap = new byte[1 << 12];
+
+        long size;
+
+        Path file;
+
+        FileChannel channel;
+
+        ByteBuffer scratch = ByteBuffer.allocate(256);
+
+        boolean inMemory() {
+            return channel == null;
+        }
+
+        long size() {
+            return size;
+        }
+
+        long add(byte[] id) throws IOException {
+            final long position = size;
+            if (inMemory()) {
+                if (size + 4 + id.length > heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.max(heap.length * 2L, size + 4 + id.length));
+                }
+                final ByteBuffer buf = ByteBuffer.wrap(heap, (int) size, 4 + id.length);
+                buf.putInt(id.length).put(id);
+            } else {
+                final ByteBuffer buf = buffer(4 + id.length);
+                buf.putInt(id.length).put(id).flip();
+                write(buf, size);
+            }
+            size += 4 + id.length;
+            return position;
+        }
+
+        boolean matches(long position, byte[] id) {
+            try {
+                final ByteBuffer buf;
+                if (inMemory()) {
+                    buf = ByteBuffer.wrap(heap, (int) position, (int) Math.min(4 + id.length, size - position))
+                            .slice();
+                } else {
+                    buf = buffer(4 + id.length);
+                    buf.limit(4);
+                    read(buf, position);
+                    if (buf.getInt(0) != id.length) {
+                        return false;
+                    }
+                    buf.limit(4 + id.length);
+                    read(buf, position);
+                }
+
+                if (buf.getInt(0) != id.length) {
+                    return false;
+                }
+                for (int i = 0; i < id.length; i++) {
+                    if (buf.get(4 + i) != id[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not read record id", e);
+            }
+        }
+
+        // Move the ids to a temporary file
+        void spill() throws IOException {
+            file = Files.createTempFile("rmap-versions-", ".ids");
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                write(ByteBuffer.wrap(heap, 0, (int) size), 0);
+            } catch (final IOException e) {
+                close();
+                throw e;
+            }
+            heap = null;
+        }
+
+        // Scratch buffer of at least the given size, cleared
+        private ByteBuffer buffer(int capacity) {
+            if (scratch.capacity() < capacity) {
+                scratch = ByteBuffer.allocate(capacity);
+            }
+            scratch.clear();
+            return scratch;
+        }
+
+        private void write(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+        }
+
+        private void read(ByteBuffer buf, long position) throws IOException {
+            position += buf.position();
+            while (buf.hasRemaining()) {
+                final int read = channel.read(buf, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                position += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
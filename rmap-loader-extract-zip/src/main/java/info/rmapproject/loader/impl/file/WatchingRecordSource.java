@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+
+/**
+ * Watches a directory (and its subdirectories), extracting records from archives as they appear.
+ * <p>
+ * Unlike {@link OneTimeRecordSource}, this runs until stopped. Existing archives are found by a single walk of the
+ * directory when starting. From then on, new archives are discovered via a {@link WatchService}, or by periodically
+ * listing the directory if polling is enabled. Polling is necessary on network filesystems such as NFS, where changes
+ * made by other hosts do not produce watch events. If a watch service cannot be created, polling is used instead.
+ * </p>
+ * <p>
+ * An archive is only extracted once it is fully written, which is taken to be when its size and modification time
+ * have not changed for the configured settle time. Archives that are moved into the directory once complete are
+ * picked up as soon as they appear if the settle time is zero.
+ * </p>
+ * <p>
+ * Archives are extracted by a fixed pool of worker threads. At most twice as many archives as there are threads are
+ * ever handed to the pool at once; the rest wait until workers are free. Each archive is extracted at most once
+ * while this source is running, and is forgotten once it has been removed or renamed (e.g. by an
+ * {@link RecordExtractor#onDone(Consumer)} action that renames it to <code>.done</code>). Files ending in
+ * <code>.done</code> are never considered. An archive whose extraction fails is tried again once the retry interval
+ * has passed, unless it has been removed in the meantime. The record consumer is
+ * invoked concurrently if there is more than one thread, so it must be thread safe.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class WatchingRecordSource implements RecordSource {
+
+    static final Logger LOG = LoggerFactory.getLogger(WatchingRecordSource.class);
+
+    /** How often pending archives are checked to see if they have settled */
+    static final long TICK = 250;
+
+    private RecordExtractor extractor;
+
+    private Consumer<HarvestRecord> processRecord;
+
+    private Predicate<Path> filter = path -> true;
+
+    private Path dir = null;
+
+    private int threads = 1;
+
+    private boolean polling = false;
+
+    private long pollInterval = 10000;
+
+    private long settleTime = 5000;
+
+    private long retryInterval = 60000;
+
+    private volatile boolean stopped;
+
+    /** Archives that have been seen, but have not yet settled. Only accessed by the watching thread */
+    private final Map<Path, Candidate> pending = new HashMap<>();
+
+    /** Archives that have been handed to workers, and have not yet disappeared */
+    private final Set<Path> seen = ConcurrentHashMap.newKeySet();
+
+    /** Archives whose extraction failed, and when, to be tried again once the retry interval has passed */
+    private final Map<Path, Long> failed = new ConcurrentHashMap<>();
+
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+
+    @Override
+    public void run() {
+
+        if (dir == null || !Files.isDirectory(dir)) {
+            LOG.warn("Directory " + dir + " does not exist, exiting");
+            return;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService workers = Executors.newFixedThreadPool(threads,
+                r -> new Thread(r, "extractor-" + threadCount.incrementAndGet()));
+        final Semaphore slots = new Semaphore(threads * 2);
+
+        try (WatchService watcher = polling ? null : openWatchService()) {
+
+            if (watcher == null) {
+                LOG.info("Polling {} for archives every {}ms", dir, pollInterval);
+            } else {
+                LOG.info("Watching {} for archives", dir);
+                register(watcher, dir);
+            }
+
+            scan();
+            long lastScan = System.currentTimeMillis();
+
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+
+                if (watcher != null) {
+                    final WatchKey key = watcher.poll(TICK, MILLISECONDS);
+                    if (key != null) {
+                        handleEvents(watcher, key);
+                    }
+                } else if (System.currentTimeMillis() - lastScan >= pollInterval) {
+                    scan();
+                    lastScan = System.currentTimeMillis();
+                } else {
+                    Thread.sleep(TICK);
+                }
+
+                retryFailed();
+                submitSettled(workers, slots);
+            }
+
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ClosedWatchServiceException e) {
+            LOG.info("Watch service closed");
+        } catch (final IOException e) {
+            throw new RuntimeException("Error watching " + dir, e);
+        } finally {
+            workers.shutdown();
+            try {
+                LOG.info("Waiting for in-progress archives to finish");
+                workers.awaitTermination(Long.MAX_VALUE, MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workers.shutdownNow();
+            }
+        }
+
+        LOG.info("Done");
+    }
+
+    /**
+     * Stop watching for new archives.
+     * <p>
+     * Archives that are currently being extracted will be finished before {@link #run()} returns.
+     * </p>
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    private WatchService openWatchService() {
+        try {
+            return dir.getFileSystem().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Cannot watch {}, falling back to polling", dir, e);
+            return null;
+        }
+    }
+
+    private void register(WatchService watcher, Path root) throws IOException {
+        try (Stream<Path> dirs = Files.walk(root)) {
+            for (final Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                watched.put(d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+            }
+        }
+    }
+
+    private void handleEvents(WatchService watcher, WatchKey key) throws IOException {
+        final Path parent = watched.get(key);
+
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                LOG.warn("Missed some events watching {}, rescanning", dir);
+                scan();
+                continue;
+            }
+
+            final Path path = parent.resolve((Path) event.context());
+
+            if (event.kind() == ENTRY_DELETE) {
+                forget(path);
+            } else if (Files.isDirectory(path)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    register(watcher, path);
+                    scan(path);
+                }
+            } else {
+                offer(path);
+            }
+        }
+
+        if (!key.reset()) {
+            watched.remove(key);
+        }
+    }
+
+    private void scan() {
+        final Set<Path> present = scan(dir);
+
+        // Archives that have disappeared (e.g. renamed to .done) need no longer be remembered.
+        seen.retainAll(present);
+        failed.keySet().retainAll(present);
+    }
+
+    private Set<Path> scan(Path root) {
+        final Set<Path> present = new HashSet<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(p -> !isDone(p))
+                    .filter(p -> filter.test(dir.relativize(p)))
+                    .filter(Files::isRegularFile)
+                    .forEach(p -> {
+                        present.add(p);
+                        offer(p);
+                    });
+        } catch (final IOException e) {
+            LOG.warn("Error scanning " + root, e);
+        }
+        return present;
+    }
+
+    private void offer(Path path) {
+        if (!isDone(path) && !seen.contains(path) && !failed.containsKey(path)
+                && filter.test(dir.relativize(path))) {
+            pending.computeIfAbsent(path, p -> new Candidate());
+        }
+    }
+
+    // Archives already consumed, which are never extracted again. Decided by name alone, as there may be many.
+    private static boolean isDone(Path path) {
+        return path.getFileName().toString().endsWith(".done");
+    }
+
+    private void forget(Path path) {
+        pending.remove(path);
+        seen.remove(path);
+        failed.remove(path);
+    }
+
+    // Offer archives whose extraction failed once more, if the retry interval has passed.
+    private void retryFailed() {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<Path, Long> entry : failed.entrySet()) {
+            if (now - entry.getValue() >= retryInterval && failed.remove(entry.getKey(), entry.getValue())) {
+                offer(entry.getKey());
+            }
+        }
+    }
+
+    // Hand archives whose size and modification time have stopped changing to workers, while there is room.
+    private void submitSettled(ExecutorService workers, Semaphore slots) {
+        final long now = System.currentTimeMillis();
+
+        for (final Iterator<Map.Entry<Path, Candidate>> i = pending.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry<Path, Candidate> entry = i.next();
+            final Path archive = entry.getKey();
+            final Candidate candidate = entry.getValue();
+
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(archive, BasicFileAttributes.class);
+                if (attrs.size() != candidate.size || attrs.lastModifiedTime().toMillis() != candidate.modified) {
+                    candidate.size = attrs.size();
+                    candidate.modified = attrs.lastModifiedTime().toMillis();
+                    candidate.since = now;
+                }
+            } catch (final NoSuchFileException e) {
+                i.remove();
+                continue;
+            } catch (final IOException e) {
+                LOG.warn("Could not read attributes of " + archive, e);
+                continue;
+            }
+
+            if (now - candidate.since < settleTime) {
+                continue;
+            }
+
+            if (!slots.tryAcquire()) {
+                return;
+            }
+
+            i.remove();
+            seen.add(archive);
+            workers.execute(() -> {
+                try (Stream<HarvestRecord> records = extractor.recordsFrom(archive)) {
+                    records.forEach(processRecord);
+                } catch (final Exception e) {
+                    LOG.error("Error extracting records from {}, retrying in {}ms", archive, retryInterval, e);
+                    failed.put(archive, System.currentTimeMillis());
+                    seen.remove(archive);
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+    }
+
+    @Override
+    public RecordSource withExtractor(RecordExtractor extractor) {
+        this.extractor = extractor;
+        return this;
+    }
+
+    @Override
+    public RecordSource onRecord(Consumer<HarvestRecord> sink) {
+        this.processRecord = sink;
+        return this;
+    }
+
+    public WatchingRecordSource ofDirectory(String dir) {
+        this.dir = Optional.ofNullable(dir).map(File::new).map(File::toPath).orElse(null);
+        return this;
+    }
+
+    public WatchingRecordSource withFilter(Predicate<Path> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Set the number of archives to extract concurrently.
+     *
+     * @param threads Number of extractor threads.
+     * @return this record source.
+     */
+    public WatchingRecordSource withThreads(int threads) {
+        this.threads = Math.max(threads, 1);
+        return this;
+    }
+
+    /**
+     * Discover new archives by listing the directory periodically, rather than via a watch service.
+     *
+     * @param polling true to poll.
+     * @return this record source.
+     */
+    public WatchingRecordSource withPolling(boolean polling) {
+        this.polling = polling;
+        return this;
+    }
+
+    /**
+     * Set how often to list the directory, when polling.
+     *
+     * @param millis Poll interval, in milliseconds.
+     * @return this record source.
+     */
+    public WatchingRecordSource withPollInterval(long millis) {
+        this.pollInterval = millis;
+        return this;
+    }
+
+    /**
+     * Set how long an archive's size and modification time must remain unchanged before it is considered complete.
+     *
+     * @param millis Settle time, in milliseconds.
+     * @return this record source.
+     */
+    public WatchingRecordSource withSettleTime(long millis) {
+        this.settleTime = millis;
+        return this;
+    }
+
+    /**
+     * Set how long to wait before trying again to extract an archive whose extraction failed.
+     *
+     * @param millis Retry interval, in milliseconds.
+     * @return this record source.
+     */
+    public WatchingRecordSource withRetryInterval(long millis) {
+        this.retryInterval = millis;
+        return this;
+    }
+
+    /** Last observed state of an archive that has not yet settled */
+    private static class Candidate {
+
+        long size = -1;
+
+        long modified = -1;
+
+        long since;
+    }
+}
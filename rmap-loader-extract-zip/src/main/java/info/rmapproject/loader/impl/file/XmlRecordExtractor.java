@@ -0,0 +1,601 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
+import info.rmapproject.loader.model.HarvestInfo;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * Splits a single large XML file into records, one per element matching a given path.
+ * <p>
+ * The file is read with StAX, one event at a time, so only a single record is ever held in memory, no matter how
+ * large the file is. Records larger than the {@link #withMaxInMemory(long) limit} are spooled to a temporary file as
+ * they are serialized, rather than held in memory. Each matching element is written out as its own document, with
+ * any namespaces it uses declared on it. Files whose name ends in <code>.gz</code> are decompressed as they are read.
+ * </p>
+ * <p>
+ * Paths are sequences of element local names separated by <code>/</code>; namespaces are not considered. A record
+ * path beginning with <code>/</code> is matched from the document root (e.g. <code>/OAI-PMH/ListRecords/record</code>
+ * ), and otherwise matches elements at any depth whose ancestry ends with it (e.g. <code>record</code>). The id and
+ * date paths are relative to the record element (e.g. <code>header/identifier</code> and
+ * <code>header/datestamp</code>).
+ * </p>
+ * <p>
+ * For the purposes of the {@link EntryFilter}, each record's name is its id, its size is the size of the serialized
+ * record, and its modification date is its date. Records are counted as entries for checkpoints.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class XmlRecordExtractor implements RecordExtractor {
+
+    static final Logger LOG = LoggerFactory.getLogger(XmlRecordExtractor.class);
+
+    private static final String URI_CHARS = "-._~:/?#[]@!$&'()*+,;=";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+    private Consumer<Path> doneAction = path -> {
+    };
+
+    private String contentType = "application/xml";
+
+    private EntryFilter entryFilter = new EntryFilter();
+
+    private CheckpointStore checkpoints;
+
+    private int checkpointInterval;
+
+    private List<String> recordPath = Collections.singletonList("record");
+
+    private boolean absolute = false;
+
+    private List<String> idPath;
+
+    private List<String> datePath;
+
+    private String idPrefix = "";
+
+    private long maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
+    @Override
+    public RecordExtractor onDone(Consumer<Path> action) {
+        this.doneAction = action;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor contentType(String type) {
+        this.contentType = type;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withEntryFilter(EntryFilter filter) {
+        this.entryFilter = filter;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withMaxInMemory(long bytes) {
+        this.maxInMemory = bytes;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withCheckpoints(CheckpointStore store, int interval) {
+        this.checkpoints = store;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    /**
+     * Set the path of elements to be extracted as records.
+     *
+     * @param path Record element path. Default is <code>record</code>.
+     * @return this extractor.
+     */
+    public XmlRecordExtractor withRecordPath(String path) {
+        this.absolute = path.startsWith("/");
+        this.recordPath = segments(path);
+        return this;
+    }
+
+    /**
+     * Set the path, relative to each record element, of the element containing the record's id.
+     *
+     * @param path Id element path. If not given, records are identified by file name and position.
+     * @return this extractor.
+     */
+    public XmlRecordExtractor withIdPath(String path) {
+        this.idPath = segments(path);
+        return this;
+    }
+
+    /**
+     * Set the path, relative to each record element, of the element containing the record's date.
+     * <p>
+     * The date may be an ISO-8601 timestamp like <code>2018-01-11T00:00:00Z</code>, or a date like
+     * <code>2018-01-11</code> (taken as midnight UTC).
+     * </p>
+     *
+     * @param path Date element path. If not given, the date of each record is the file's modification date.
+     * @return this extractor.
+     */
+    public XmlRecordExtractor withDatePath(String path) {
+        this.datePath = segments(path);
+        return this;
+    }
+
+    /**
+     * Set a prefix to be prepended to each record's id, to form a URI.
+     *
+     * @param prefix Id prefix, e.g. <code>info:pmid/</code>. Default is none.
+     * @return this extractor.
+     */
+    public XmlRecordExtractor withIdPrefix(String prefix) {
+        this.idPrefix = prefix;
+        return this;
+    }
+
+    @Override
+    public Stream<HarvestRecord> recordsFrom(Path file) {
+
+        LOG.info("Extracting from xml file " + file);
+
+        try {
+            final HarvestInfo harvest = new HarvestInfo();
+            harvest.setDate(new Date(Files.getLastModifiedTime(file).toMillis()));
+            harvest.setSrc(URI.create("file:" + file.getFileName().toString()));
+            harvest.setId(URI.create(harvest.getSrc().toString() + "@" + new Date().getTime()));
+
+            final Records records = new Records(file, harvest);
+
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records,
+                    Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(records::close);
+
+        } catch (final Exception e) {
+            throw new RuntimeException("Error reading " + file, e);
+        }
+    }
+
+    private static List<String> segments(String path) {
+        final List<String> segments = new ArrayList<>(Arrays.asList(path.split("/")));
+        segments.removeIf(String::isEmpty);
+        return segments;
+    }
+
+    private static boolean endsWith(List<String> path, List<String> suffix) {
+        return path.size() >= suffix.size() &&
+                path.subList(path.size() - suffix.size(), path.size()).equals(suffix);
+    }
+
+    // Percent-encode (as UTF-8) any character that may not appear in a URI, leaving those that may as they are
+    private static String encode(String id) {
+        final byte[] bytes = id.getBytes(UTF_8);
+        final StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            final char c = (char) (bytes[i] & 0xff);
+            if (c < 0x80 && (Character.isLetterOrDigit(c) || URI_CHARS.indexOf(c) > -1)) {
+                encoded.append(c);
+            } else if (c == '%' && i + 2 < bytes.length && isHex(bytes[i + 1]) && isHex(bytes[i + 2])) {
+                // Already encoded
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static boolean isHex(byte b) {
+        return Character.digit((char) b, 16) > -1;
+    }
+
+    private static Date parseDate(String date) {
+        try {
+            return Date.from(Instant.parse(date));
+        } catch (final DateTimeParseException e) {
+            try {
+                return Date.from(LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant());
+            } catch (final DateTimeParseException x) {
+                LOG.debug("Could not parse date '{}'", date);
+                return null;
+            }
+        }
+    }
+
+    /** A record element that has been read */
+    private static class Element {
+
+        String id;
+
+        String date;
+
+        RecordBody body;
+
+        long size;
+    }
+
+    /** Serialized record, held in memory until it outgrows the limit, then spooled to a temporary file */
+    private static class Spool extends OutputStream {
+
+        final long maxInMemory;
+
+        ByteArrayOutputStream head;
+
+        Path file;
+
+        OutputStream out;
+
+        long size;
+
+        Spool(long maxInMemory) {
+            this.maxInMemory = maxInMemory;
+            this.head = new ByteArrayOutputStream((int) Math.min(maxInMemory, 8192));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file == null && size + len > maxInMemory) {
+                file = Files.createTempFile("rmap-record-", ".body");
+                out = new BufferedOutputStream(Files.newOutputStream(file), 65536);
+                head.writeTo(out);
+                head = null;
+            }
+
+            if (file == null) {
+                head.write(b, off, len);
+            } else {
+                out.write(b, off, len);
+            }
+            size += len;
+        }
+
+        RecordBody body() throws IOException {
+            if (file == null) {
+                return RecordBody.of(head.toByteArray());
+            }
+            out.close();
+            return RecordBody.of(file, true);
+        }
+
+        // Remove the spooled content, if any, of a record that will not be used
+        void discard() {
+            try {
+                if (file != null) {
+                    out.close();
+                    Files.deleteIfExists(file);
+                }
+            } catch (final IOException e) {
+                LOG.warn("Could not delete " + file, e);
+            }
+        }
+    }
+
+    /** Reads records from an xml file, one at a time */
+    private class Records implements Iterator<HarvestRecord> {
+
+        final Path file;
+
+        final HarvestInfo harvest;
+
+        final Checkpointer checkpointer;
+
+        final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+        final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+        /** Local names of the current element and its ancestors */
+        final List<String> path = new ArrayList<>();
+
+        InputStream in;
+
+        XMLEventReader reader;
+
+        long index;
+
+        Element current;
+
+        Element next;
+
+        boolean done;
+
+        Records(Path file, HarvestInfo harvest) throws IOException, XMLStreamException {
+            this.file = file;
+            this.harvest = harvest;
+            this.checkpointer = new Checkpointer(checkpoints, file, checkpointInterval);
+
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+
+            open();
+            resume();
+        }
+
+        private void open() throws IOException, XMLStreamException {
+            final InputStream raw = new BufferedInputStream(Files.newInputStream(file), 65536);
+            in = file.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(raw, 65536) : raw;
+            reader = inputFactory.createXMLEventReader(in);
+            path.clear();
+            index = 0;
+        }
+
+        // Skip records that have already been processed according to the file's checkpoint
+        private void resume() throws IOException, XMLStreamException {
+            final Checkpoint checkpoint = checkpointer.resumeFrom();
+            if (checkpoint == null) {
+                return;
+            }
+
+            Element skipped = null;
+            while (index < checkpoint.getIndex() && (skipped = nextElement(false)) != null) {
+                // Just skip
+            }
+
+            if (skipped != null && name(skipped).equals(checkpoint.getName())) {
+                LOG.info("Resuming {} after {}", file, checkpoint);
+                return;
+            }
+
+            LOG.warn("Checkpoint {} does not match {}, starting from the beginning", checkpoint, file);
+            close();
+            checkpointer.restart();
+            open();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            } else if (done) {
+                return false;
+            }
+
+            try {
+                // The record from the previous element has been consumed by now
+                if (current != null) {
+                    checkpointer.processed(index, name(current), -1);
+                }
+
+                next = nextElement(true);
+                while (next != null && !entryFilter.accept(name(next), next.size, date(next))) {
+                    next.body.close();
+                    next = nextElement(true);
+                }
+
+                if (next == null) {
+                    LOG.info("Done extracting from " + file);
+                    done = true;
+                    close();
+                    // Only once the done action has succeeded is the checkpoint no longer needed
+                    doneAction.accept(file);
+                    checkpointer.done();
+                    return false;
+                }
+
+                return true;
+            } catch (final Exception e) {
+                close();
+                throw new RuntimeException("Error reading from " + file, e);
+            }
+        }
+
+        @Override
+        public HarvestRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            current = next;
+            next = null;
+
+            final RecordInfo info = new RecordInfo();
+            info.setContentType(contentType);
+            info.setDate(Optional.ofNullable(date(current)).orElse(harvest.getDate()));
+            info.setId(id(current));
+            info.setSrc(URI.create(harvest.getSrc().toString() + "#" + index));
+            info.setHarvestInfo(harvest);
+
+            final HarvestRecord record = new HarvestRecord();
+            record.setRecordInfo(info);
+            record.setRecordBody(current.body);
+
+            return record;
+        }
+
+        private String name(Element element) {
+            return element.id != null ? element.id : Long.toString(index);
+        }
+
+        private Date date(Element element) {
+            return element.date != null ? parseDate(element.date) : null;
+        }
+
+        // Ids may contain characters not allowed in URIs (e.g. spaces), so these are percent-encoded
+        private URI id(Element element) {
+            final URI positional = URI.create("file:" + file.getFileName() + "#" + index);
+            if (element.id == null) {
+                return positional;
+            }
+
+            try {
+                return URI.create(idPrefix + encode(element.id));
+            } catch (final IllegalArgumentException e) {
+                LOG.warn("Record id '{}' in {} does not form a URI, using {} instead", element.id, file, positional);
+                return positional;
+            }
+        }
+
+        // Advance to the next record element, and read it (serializing it only if it is to be kept)
+        private Element nextElement(boolean keep) throws XMLStreamException, IOException {
+            while (reader.hasNext()) {
+                final XMLEvent event = reader.nextEvent();
+
+                if (event.isStartElement()) {
+                    path.add(event.asStartElement().getName().getLocalPart());
+                    if (absolute ? path.equals(recordPath) : endsWith(path, recordPath)) {
+                        path.remove(path.size() - 1);
+                        index++;
+                        return read(event.asStartElement(), keep);
+                    }
+                } else if (event.isEndElement()) {
+                    path.remove(path.size() - 1);
+                }
+            }
+
+            return null;
+        }
+
+        private Element read(StartElement start, boolean keep) throws XMLStreamException, IOException {
+            final Element element = new Element();
+            final List<String> relative = new ArrayList<>();
+            final StringBuilder id = new StringBuilder();
+            final StringBuilder date = new StringBuilder();
+            boolean inId = false;
+            boolean inDate = false;
+
+            final Spool out = keep ? new Spool(maxInMemory) : null;
+            final XMLEventWriter writer = keep ? outputFactory.createXMLEventWriter(out, "UTF-8") : null;
+            try {
+                if (keep) {
+                    writer.add(EVENTS.createStartDocument("UTF-8", "1.0"));
+                    writer.add(start);
+                }
+
+                int depth = 1;
+                while (depth > 0) {
+                    final XMLEvent event = reader.nextEvent();
+                    if (keep) {
+                        writer.add(event);
+                    }
+
+                    if (event.isStartElement()) {
+                        depth++;
+                        relative.add(event.asStartElement().getName().getLocalPart());
+                    } else if (event.isEndElement()) {
+                        depth--;
+                        if (depth > 0) {
+                            relative.remove(relative.size() - 1);
+                        }
+                    } else if (event.isCharacters()) {
+                        if (inId) {
+                            id.append(event.asCharacters().getData());
+                        } else if (inDate) {
+                            date.append(event.asCharacters().getData());
+                        }
+                        continue;
+                    } else {
+                        continue;
+                    }
+
+                    inId = relative.equals(idPath);
+                    inDate = relative.equals(datePath);
+                }
+
+                if (keep) {
+                    writer.add(EVENTS.createEndDocument());
+                    writer.flush();
+                    writer.close();
+                    element.body = out.body();
+                    element.size = out.size;
+                }
+            } catch (XMLStreamException | IOException | RuntimeException e) {
+                if (out != null) {
+                    out.discard();
+                }
+                throw e;
+            }
+
+            element.id = idPath != null && id.length() > 0 ? id.toString().trim() : null;
+            element.date = datePath != null && date.length() > 0 ? date.toString().trim() : null;
+
+            return element;
+        }
+
+        void close() {
+            try {
+                // A record read ahead, but never handed out
+                if (next != null) {
+                    next.body.close();
+                    next = null;
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+                if (in != null) {
+                    in.close();
+                }
+            } catch (XMLStreamException | IOException e) {
+                LOG.debug("Error closing " + file, e);
+            }
+        }
+    }
+}
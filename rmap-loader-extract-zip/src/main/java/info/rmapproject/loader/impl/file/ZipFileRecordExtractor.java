@@ -0,0 +1,444 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl.file;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
+import info.rmapproject.loader.model.HarvestInfo;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * Extracts records from a zip file via its central directory.
+ * <p>
+ * Unlike {@link ZipRecordExtractor}, which reads through a zip file one entry at a time, this reads the list of
+ * entries from the zip's central directory up front, and inflates entries in parallel. When the resulting stream is
+ * consumed sequentially, entries are inflated ahead of the consumer by a pool of worker threads, and records are
+ * returned in central directory order. The stream's spliterator also splits by entry index, so a parallel stream
+ * inflates entries on the stream's own worker threads.
+ * </p>
+ * <p>
+ * Checkpoints are only saved while records are being consumed in order, i.e. not once the stream has been split.
+ * </p>
+ * <p>
+ * The done action is invoked once every entry has been extracted. Entries are inflated fully before being handed to
+ * the consumer, so bodies larger than the in-memory limit are inflated into temporary files.
+ * </p>
+ * <p>
+ * The worker pool is started when an archive is first read ahead, and shut down once no open archive is using it.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class ZipFileRecordExtractor implements RecordExtractor {
+
+    static final Logger LOG = LoggerFactory.getLogger(ZipFileRecordExtractor.class);
+
+    private Consumer<Path> doneAction = path -> {
+    };
+
+    private String contentType = "application/octet-stream";
+
+    private EntryFilter entryFilter = new EntryFilter();
+
+    private long maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
+    private CheckpointStore checkpoints;
+
+    private int checkpointInterval;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private ExecutorService workers;
+
+    /** Number of open archives that may read ahead using the worker pool */
+    private int reading;
+
+    @Override
+    public RecordExtractor onDone(Consumer<Path> action) {
+        this.doneAction = action;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor contentType(String type) {
+        this.contentType = type;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withEntryFilter(EntryFilter filter) {
+        this.entryFilter = filter;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withMaxInMemory(long bytes) {
+        this.maxInMemory = bytes;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withCheckpoints(CheckpointStore store, int interval) {
+        this.checkpoints = store;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to inflate entries ahead of a sequential consumer.
+     *
+     * @param threads Number of inflater threads. Values less than two inflate entries on the consuming thread.
+     * @return this extractor.
+     */
+    public ZipFileRecordExtractor withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    @Override
+    public Stream<HarvestRecord> recordsFrom(Path file) {
+
+        LOG.info("Extracting from zip file " + file);
+
+        try {
+            final HarvestInfo harvest = new HarvestInfo();
+            harvest.setDate(new Date(Files.getLastModifiedTime(file).toMillis()));
+            harvest.setSrc(URI.create("file:" + file.getFileName().toString()));
+            harvest.setId(URI.create(harvest.getSrc().toString() + "@" + new Date().getTime()));
+
+            final Archive archive = new Archive(file, harvest);
+
+            return StreamSupport.stream(
+                    new EntrySpliterator(archive, 0, archive.entries.size(), archive.readAhead), false)
+                    .onClose(archive::close);
+
+        } catch (final Exception e) {
+            throw new RuntimeException("Error reading " + file, e);
+        }
+    }
+
+    private synchronized ExecutorService workers() {
+        if (workers == null) {
+            final AtomicInteger count = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(threads, r -> {
+                final Thread t = new Thread(r, "zip-inflater-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return workers;
+    }
+
+    private synchronized void acquireWorkers() {
+        reading++;
+    }
+
+    private synchronized void releaseWorkers() {
+        if (--reading == 0 && workers != null) {
+            workers.shutdown();
+            workers = null;
+        }
+    }
+
+    /** An open zip file, its entries, and an account of how many remain to be extracted */
+    private class Archive {
+
+        final Path file;
+
+        final HarvestInfo harvest;
+
+        final ZipFile zip;
+
+        final List<ZipEntry> entries;
+
+        /** Position of each entry to be extracted, in the central directory */
+        final int[] positions;
+
+        final AtomicInteger remaining;
+
+        final AtomicBoolean closed = new AtomicBoolean(false);
+
+        final Checkpointer checkpointer;
+
+        /** Whether entries may be delivered out of order, in which case checkpoints can't be saved */
+        volatile boolean split;
+
+        /** Whether entries are inflated ahead of the consumer by the worker pool */
+        final boolean readAhead = threads > 1;
+
+        /** Entries submitted for inflation ahead of the consumer, in order */
+        final Deque<Future<HarvestRecord>> pending = new ConcurrentLinkedDeque<>();
+
+        Archive(Path file, HarvestInfo harvest) throws IOException {
+            this.file = file;
+            this.harvest = harvest;
+            this.zip = new ZipFile(file.toFile());
+            this.checkpointer = new Checkpointer(checkpoints, file, checkpointInterval);
+
+            final List<? extends ZipEntry> all = Collections.list(zip.entries());
+
+            // Skip over entries already processed, directories, and entries that don't pass the filter
+            this.positions = IntStream.range(resume(all), all.size())
+                    .filter(i -> !all.get(i).isDirectory())
+                    .filter(i -> entryFilter.accept(all.get(i).getName(), all.get(i).getSize(),
+                            all.get(i).getTime() > -1 ? new Date(all.get(i).getTime()) : null))
+                    .toArray();
+            this.entries = Arrays.stream(positions).mapToObj(all::get).collect(toList());
+            this.remaining = new AtomicInteger(entries.size());
+
+            if (readAhead) {
+                acquireWorkers();
+            }
+
+            if (entries.isEmpty()) {
+                finished();
+            }
+        }
+
+        // Determine where to start, according to the archive's checkpoint
+        private int resume(List<? extends ZipEntry> all) {
+            final Checkpoint checkpoint = checkpointer.resumeFrom();
+            if (checkpoint == null) {
+                return 0;
+            }
+
+            final long index = checkpoint.getIndex();
+            if (index > 0 && index <= all.size() && all.get((int) index - 1).getName().equals(checkpoint
+                    .getName())) {
+                LOG.info("Resuming {} after {}", file, checkpoint);
+                return (int) index;
+            }
+
+            LOG.warn("Checkpoint {} does not match {}, starting from the beginning", checkpoint, file);
+            checkpointer.restart();
+            return 0;
+        }
+
+        HarvestRecord extract(int index) {
+            final ZipEntry entry = entries.get(index);
+
+            final RecordInfo info = new RecordInfo();
+            info.setContentType(contentType);
+            info.setDate(new Date(entry.getTime()));
+            info.setId(URI.create("file:" + entry.getName()));
+            info.setSrc(URI.create(harvest.getSrc().toString() + "#" + entry.getName()));
+            info.setHarvestInfo(harvest);
+
+            final HarvestRecord record = new HarvestRecord();
+            record.setRecordInfo(info);
+
+            LOG.debug("entry: " + entry);
+            try (InputStream in = zip.getInputStream(entry)) {
+                record.setRecordBody(RecordBody.read(in, entry.getSize(), maxInMemory));
+            } catch (final Exception e) {
+                throw new RuntimeException("Could not read entry " + entry.getName() + " from " + file, e);
+            }
+
+            return record;
+        }
+
+        void delivered(int index) {
+            if (!split) {
+                checkpointer.processed(positions[index] + 1, entries.get(index).getName(), -1);
+            }
+
+            if (remaining.decrementAndGet() == 0) {
+                finished();
+            }
+        }
+
+        private void finished() {
+            LOG.info("Done extracting from " + file);
+            close();
+            // Only once the done action has succeeded is the checkpoint no longer needed
+            doneAction.accept(file);
+            checkpointer.done();
+        }
+
+        void readAhead(int index) {
+            pending.add(workers().submit(() -> closed.get() ? null : extract(index)));
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                // Workers may still be inflating from the zip, so wait for them before closing it
+                discard();
+                try {
+                    zip.close();
+                } catch (final IOException e) {
+                    LOG.debug("Error closing " + file, e);
+                }
+                if (readAhead) {
+                    releaseWorkers();
+                }
+            }
+        }
+
+        /** Wait for entries read ahead but never delivered, and close their bodies, which may be temporary files */
+        private void discard() {
+            boolean interrupted = false;
+            Future<HarvestRecord> f;
+            while ((f = pending.poll()) != null) {
+                while (true) {
+                    try {
+                        final HarvestRecord record = f.get();
+                        if (record != null) {
+                            record.getRecordBody().close();
+                        }
+                        break;
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    } catch (final Exception e) {
+                        LOG.debug("Discarding entry read ahead from " + file, e);
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Spliterator over a range of entry indexes.
+     * <p>
+     * When reading ahead, up to twice the number of worker threads' worth of entries are submitted for inflation
+     * ahead of the consumer. Once split, each half inflates entries inline on whichever thread consumes it.
+     * </p>
+     */
+    private class EntrySpliterator implements Spliterator<HarvestRecord> {
+
+        final Archive archive;
+
+        int index;
+
+        final int fence;
+
+        boolean readAhead;
+
+        int submitted;
+
+        EntrySpliterator(Archive archive, int index, int fence, boolean readAhead) {
+            this.archive = archive;
+            this.index = index;
+            this.fence = fence;
+            this.readAhead = readAhead;
+            this.submitted = index;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super HarvestRecord> action) {
+            if (index >= fence) {
+                return false;
+            }
+
+            final int current = index++;
+            final HarvestRecord record;
+            try {
+                record = readAhead ? nextReadAhead() : archive.extract(current);
+            } catch (final RuntimeException e) {
+                // Once split, other threads may still be inflating entries; closing the stream closes the archive
+                if (!archive.split) {
+                    archive.close();
+                }
+                throw e;
+            }
+
+            action.accept(record);
+            archive.delivered(current);
+            return true;
+        }
+
+        private HarvestRecord nextReadAhead() {
+            while (submitted < fence && archive.pending.size() < threads * 2) {
+                archive.readAhead(submitted++);
+            }
+
+            try {
+                final HarvestRecord record = archive.pending.remove().get();
+                if (record == null) {
+                    throw new IllegalStateException(archive.file + " has been closed");
+                }
+                return record;
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading " + archive.file, e);
+            }
+        }
+
+        @Override
+        public Spliterator<HarvestRecord> trySplit() {
+            final int mid = (index + fence) >>> 1;
+            if (!archive.pending.isEmpty() || mid <= index) {
+                return null;
+            }
+
+            readAhead = false;
+            archive.split = true;
+            final EntrySpliterator prefix = new EntrySpliterator(archive, index, mid, false);
+            index = mid;
+            submitted = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+}
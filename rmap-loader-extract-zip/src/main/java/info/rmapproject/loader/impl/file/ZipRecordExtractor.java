@@ -28,11 +28,11 @@ import java.util.stream.StreamSupport;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
 import info.rmapproject.loader.model.HarvestInfo;
 import info.rmapproject.loader.model.RecordInfo;
 
@@ -48,6 +48,14 @@ public class ZipRecordExtractor implements RecordExtractor {
 
     private String contentType = "application/octet-stream";
 
+    private EntryFilter entryFilter = new EntryFilter();
+
+    private long maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
+    private CheckpointStore checkpoints;
+
+    private int checkpointInterval;
+
     @Override
     public RecordExtractor onDone(Consumer<Path> action) {
         this.doneAction = action;
@@ -65,28 +73,40 @@ public class ZipRecordExtractor implements RecordExtractor {
             harvest.setSrc(URI.create("file:" + file.getFileName().toString()));
             harvest.setId(URI.create(harvest.getSrc().toString() + "@" + new Date().getTime()));
 
-            final ZipInputStream is = new ZipInputStream(Files.newInputStream(file));
+            final Checkpointer checkpointer = new Checkpointer(checkpoints, file, checkpointInterval);
+            final ZipInputStream is = resume(file, checkpointer);
 
             final Iterable<HarvestRecord> records = () -> new Iterator<HarvestRecord>() {
 
                 ZipEntry entry;
 
+                long index = checkpointer.start();
+
                 @Override
                 public boolean hasNext() {
                     try {
 
-                        entry = is.getNextEntry();
+                        // The record from the previous entry has been consumed by now
+                        if (entry != null) {
+                            checkpointer.processed(index, entry.getName(), -1);
+                        }
+
+                        entry = nextEntry();
 
-                        // Skip over directories
-                        while (entry != null && entry.isDirectory()) {
-                            entry = is.getNextEntry();
+                        // Skip over directories, and entries that don't pass the filter
+                        while (entry != null && (entry.isDirectory() || !entryFilter.accept(
+                                entry.getName(), entry.getSize(), entry.getTime() > -1 ? new Date(entry.getTime())
+                                        : null))) {
+                            entry = nextEntry();
                         }
 
                         final boolean hasNext = entry != null;
                         if (!hasNext) {
                             LOG.info("Done extracting from " + file);
                             is.close();
+                            // Only once the done action has succeeded is the checkpoint no longer needed
                             doneAction.accept(file);
+                            checkpointer.done();
                         }
                         return hasNext;
                     } catch (final Exception e) {
@@ -99,6 +119,14 @@ public class ZipRecordExtractor implements RecordExtractor {
                     }
                 }
 
+                private ZipEntry nextEntry() throws IOException {
+                    final ZipEntry next = is.getNextEntry();
+                    if (next != null) {
+                        index++;
+                    }
+                    return next;
+                }
+
                 @Override
                 public HarvestRecord next() {
                     final RecordInfo info = new RecordInfo();
@@ -113,11 +141,7 @@ public class ZipRecordExtractor implements RecordExtractor {
 
                     try {
                         LOG.debug("entry: " + entry);
-                        if (entry.getSize() > -1) {
-                            record.setBody(IOUtils.toByteArray(is, entry.getSize()));
-                        } else {
-                            record.setBody(IOUtils.toByteArray(is));
-                        }
+                        record.setRecordBody(RecordBody.read(is, entry.getSize(), maxInMemory));
                     } catch (final Exception e) {
 
                         try {
@@ -140,9 +164,55 @@ public class ZipRecordExtractor implements RecordExtractor {
         }
     }
 
+    // Open a zip file, skipping over any entries that have already been processed according to its checkpoint
+    private static ZipInputStream resume(Path file, Checkpointer checkpointer) throws IOException {
+        final Checkpoint checkpoint = checkpointer.resumeFrom();
+        final ZipInputStream is = new ZipInputStream(Files.newInputStream(file));
+
+        if (checkpoint == null) {
+            return is;
+        }
+
+        ZipEntry entry = null;
+        for (long i = 0; i < checkpoint.getIndex(); i++) {
+            if ((entry = is.getNextEntry()) == null) {
+                break;
+            }
+        }
+
+        if (entry != null && entry.getName().equals(checkpoint.getName())) {
+            LOG.info("Resuming {} after {}", file, checkpoint);
+            return is;
+        }
+
+        LOG.warn("Checkpoint {} does not match {}, starting from the beginning", checkpoint, file);
+        is.close();
+        checkpointer.restart();
+        return new ZipInputStream(Files.newInputStream(file));
+    }
+
     @Override
     public RecordExtractor contentType(String type) {
         this.contentType = type;
         return this;
     }
+
+    @Override
+    public RecordExtractor withEntryFilter(EntryFilter filter) {
+        this.entryFilter = filter;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withMaxInMemory(long bytes) {
+        this.maxInMemory = bytes;
+        return this;
+    }
+
+    @Override
+    public RecordExtractor withCheckpoints(CheckpointStore store, int interval) {
+        this.checkpoints = store;
+        this.checkpointInterval = interval;
+        return this;
+    }
 }
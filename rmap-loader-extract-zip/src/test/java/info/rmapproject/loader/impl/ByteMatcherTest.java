@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import info.rmapproject.loader.impl.file.ByteMatcher;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class ByteMatcherTest {
+
+    @Test
+    public void caseInsensitiveTest() {
+        final ByteMatcher matcher = new ByteMatcher(asList("To Be"), emptyList());
+
+        assertTrue(matches(matcher, "whether tO bE or not"));
+        assertFalse(matches(matcher, "whether to or not"));
+    }
+
+    @Test
+    public void multipleIncludeTest() {
+        final ByteMatcher matcher = new ByteMatcher(asList("she", "he", "hers", "his"), emptyList());
+
+        assertTrue(matches(matcher, "ushers"));
+        assertTrue(matches(matcher, "this"));
+        assertFalse(matches(matcher, "hrs shhh"));
+    }
+
+    @Test
+    public void overlappingTermsTest() {
+        // "abcd" fails partway, and must fall back to find "bcx"
+        final ByteMatcher matcher = new ByteMatcher(asList("abcd", "bcx"), emptyList());
+
+        assertTrue(matches(matcher, "zabcx"));
+        assertFalse(matches(matcher, "zabcbx"));
+    }
+
+    @Test
+    public void excludeTest() {
+        final ByteMatcher matcher = new ByteMatcher(asList("disco"), asList("draft", "deleted"));
+
+        assertTrue(matches(matcher, "a disco"));
+        assertFalse(matches(matcher, "a DISCO draft"));
+        assertFalse(matches(matcher, "a deleted disco"));
+        assertFalse(matches(matcher, "a draft"));
+
+        final ByteMatcher excludeOnly = new ByteMatcher(emptyList(), asList("draft"));
+        assertTrue(matches(excludeOnly, "anything else"));
+        assertFalse(matches(excludeOnly, "a draft"));
+    }
+
+    @Test
+    public void nonAsciiTest() {
+        final ByteMatcher matcher = new ByteMatcher(asList("Z\u00fcrich"), emptyList());
+
+        assertTrue(matches(matcher, "ETH z\u00fcrich"));
+        assertFalse(matches(matcher, "ETH z\u00dcrich"));
+    }
+
+    @Test
+    public void streamAcrossBuffersTest() throws IOException {
+        final ByteMatcher matcher = new ByteMatcher(asList("needle"), emptyList());
+
+        // Straddle the 64k buffer boundary
+        final byte[] content = new byte[65536 + 10];
+        final byte[] needle = "needle".getBytes(UTF_8);
+        System.arraycopy(needle, 0, content, 65536 - 3, needle.length);
+
+        try (InputStream in = new ByteArrayInputStream(content)) {
+            assertTrue(matcher.test(in));
+        }
+
+        try (InputStream in = new ByteArrayInputStream(new byte[200000])) {
+            assertFalse(matcher.test(in));
+        }
+    }
+
+    private static boolean matches(ByteMatcher matcher, String content) {
+        final byte[] bytes = content.getBytes(UTF_8);
+        return matcher.test(bytes, 0, bytes.length);
+    }
+}
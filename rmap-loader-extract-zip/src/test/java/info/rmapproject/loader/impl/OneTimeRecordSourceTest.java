@@ -17,23 +17,37 @@
 package info.rmapproject.loader.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
+import java.net.URI;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.impl.file.CheckpointStore;
+import info.rmapproject.loader.impl.file.EntryFilter;
 import info.rmapproject.loader.impl.file.OneTimeRecordSource;
 import info.rmapproject.loader.impl.file.RecordExtractor;
+import info.rmapproject.loader.model.RecordInfo;
 
 /**
  * @author apb@jhu.edu
@@ -66,4 +80,88 @@ public class OneTimeRecordSourceTest {
         assertEquals(1, encounteredRecords.size());
         assertEquals(RECORD, encounteredRecords.get(0));
     }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parallelExtractionTest() throws Exception {
+
+        final int ARCHIVES = 8;
+        final int RECORDS_PER_ARCHIVE = 500;
+
+        for (int i = 0; i < ARCHIVES; i++) {
+            folder.newFile(i + ".zip");
+        }
+
+        final Map<String, List<Integer>> encountered = new HashMap<>();
+        final Map<Path, Boolean> done = new ConcurrentHashMap<>();
+
+        final RecordExtractor extractor = new RecordExtractor() {
+
+            Consumer<Path> onDone;
+
+            @Override
+            public RecordExtractor contentType(String type) {
+                return this;
+            }
+
+            @Override
+            public RecordExtractor onDone(Consumer<Path> finish) {
+                this.onDone = finish;
+                return this;
+            }
+
+            @Override
+            public RecordExtractor withEntryFilter(EntryFilter filter) {
+                return this;
+            }
+
+            @Override
+            public RecordExtractor withMaxInMemory(long bytes) {
+                return this;
+            }
+
+            @Override
+            public RecordExtractor withCheckpoints(CheckpointStore store, int interval) {
+                return this;
+            }
+
+            @Override
+            public Stream<HarvestRecord> recordsFrom(Path file) {
+                return IntStream.range(0, RECORDS_PER_ARCHIVE).mapToObj(i -> {
+                    final RecordInfo info = new RecordInfo();
+                    info.setId(URI.create("file:" + file.getFileName() + "#" + i));
+                    final HarvestRecord record = new HarvestRecord();
+                    record.setRecordInfo(info);
+                    if (i == RECORDS_PER_ARCHIVE - 1) {
+                        onDone.accept(file);
+                    }
+                    return record;
+                });
+            }
+        };
+
+        new OneTimeRecordSource()
+                .ofDirectory(folder.getRoot().toString())
+                .withThreads(4)
+                .withExtractor(extractor.onDone(p -> done.put(p, true)))
+                .onRecord(r -> {
+                    final URI id = r.getRecordInfo().getId();
+                    synchronized (encountered) {
+                        encountered.computeIfAbsent(id.getSchemeSpecificPart(), k -> new ArrayList<>())
+                                .add(Integer.valueOf(id.getFragment()));
+                    }
+                })
+                .run();
+
+        assertEquals(ARCHIVES, done.size());
+        assertEquals(ARCHIVES, encountered.size());
+        for (final List<Integer> archiveRecords : encountered.values()) {
+            final List<Integer> sorted = new ArrayList<>(archiveRecords);
+            Collections.sort(sorted);
+            assertEquals(RECORDS_PER_ARCHIVE, archiveRecords.size());
+            assertTrue("Records out of order", archiveRecords.equals(sorted));
+        }
+    }
 }
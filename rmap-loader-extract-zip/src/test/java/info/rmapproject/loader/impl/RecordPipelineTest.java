@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.impl.file.RecordPipeline;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class RecordPipelineTest {
+
+    @Test
+    public void backpressureTest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<HarvestRecord> sent = new CopyOnWriteArrayList<>();
+        final AtomicInteger accepted = new AtomicInteger();
+
+        try (RecordPipeline pipeline = new RecordPipeline(r -> {
+            await(release);
+            sent.add(r);
+        }).withQueueDepth(2)) {
+
+            final Thread producer = new Thread(() -> {
+                for (int i = 0; i < 10; i++) {
+                    pipeline.accept(new HarvestRecord());
+                    accepted.incrementAndGet();
+                }
+            });
+            producer.start();
+
+            // One record held by the (blocked) sink, two in the queue, and the producer stuck on the fourth
+            Thread.sleep(500);
+            assertEquals(3, accepted.get());
+
+            release.countDown();
+            producer.join(10000);
+
+            pipeline.flush();
+            assertEquals(10, sent.size());
+        }
+    }
+
+    @Test
+    public void failureTest() throws Exception {
+        final AtomicInteger discarded = new AtomicInteger();
+
+        final RecordPipeline pipeline = new RecordPipeline(r -> {
+            throw new IllegalStateException("broker is down");
+        }).withThreads(2).onDiscard(r -> discarded.incrementAndGet());
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                pipeline.accept(new HarvestRecord());
+                Thread.sleep(10);
+            }
+            fail("Should have re-thrown the failure");
+        } catch (final RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        try {
+            pipeline.close();
+            fail("Should have re-thrown the failure");
+        } catch (final RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void errorTest() throws Exception {
+        final CountDownLatch queued = new CountDownLatch(1);
+        final AtomicInteger discarded = new AtomicInteger();
+
+        final RecordPipeline pipeline = new RecordPipeline(r -> {
+            await(queued);
+            throw new AssertionError("sink is broken");
+        }).withQueueDepth(10).onDiscard(r -> discarded.incrementAndGet());
+
+        for (int i = 0; i < 5; i++) {
+            pipeline.accept(new HarvestRecord());
+        }
+        queued.countDown();
+
+        // Does not hang waiting for records that will never be sent
+        try {
+            pipeline.flush();
+            fail("Should have re-thrown the failure");
+        } catch (final RuntimeException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(4, discarded.get());
+
+        try {
+            pipeline.close();
+            fail("Should have re-thrown the failure");
+        } catch (final RuntimeException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void watermarkTest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final HarvestRecord stuck = new HarvestRecord();
+        final List<HarvestRecord> sent = new CopyOnWriteArrayList<>();
+
+        try (RecordPipeline pipeline = new RecordPipeline(r -> {
+            if (r == stuck) {
+                await(release);
+            }
+            sent.add(r);
+        }).withThreads(2)) {
+
+            final HarvestRecord mine = new HarvestRecord();
+            pipeline.accept(mine);
+
+            // Another thread's record, accepted later, holds up one of the pipeline's threads
+            final Thread other = new Thread(() -> pipeline.accept(stuck));
+            other.start();
+            other.join();
+
+            // Does not wait for the other thread's record
+            pipeline.flushThread();
+            assertTrue(sent.contains(mine));
+            assertFalse(sent.contains(stuck));
+
+            release.countDown();
+            pipeline.flush();
+            assertEquals(2, sent.size());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Date;
+
+import org.junit.Test;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.impl.file.RecordVersionIndex;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class RecordVersionIndexTest {
+
+    @Test
+    public void latestVersionTest() throws Exception {
+        try (RecordVersionIndex versions = new RecordVersionIndex(1024 * 1024)) {
+            versions.offer(record("a", 1));
+            versions.offer(record("a", 3));
+            versions.offer(record("a", 2));
+            versions.offer(record("b", 1));
+
+            assertEquals(2, versions.size());
+
+            assertFalse(versions.claim(record("a", 1)));
+            assertTrue(versions.claim(record("a", 3)));
+            assertFalse(versions.claim(record("a", 2)));
+
+            // Only the first of identical versions
+            assertFalse(versions.claim(record("a", 3)));
+
+            assertTrue(versions.claim(record("b", 1)));
+
+            // Never offered
+            assertTrue(versions.claim(record("c", 1)));
+            assertFalse(versions.claim(record("c", 1)));
+        }
+    }
+
+    @Test
+    public void spillToDiskTest() throws Exception {
+        final int COUNT = 100000;
+
+        // Small enough that the index must move to disk
+        try (RecordVersionIndex versions = new RecordVersionIndex(64 * 1024)) {
+            for (int version = 0; version < 3; version++) {
+                for (int i = 0; i < COUNT; i++) {
+                    versions.offer(record(Integer.toString(i), (i + version) % 3));
+                }
+            }
+
+            assertEquals(COUNT, versions.size());
+
+            int claimed = 0;
+            for (int version = 0; version < 3; version++) {
+                for (int i = 0; i < COUNT; i++) {
+                    if (versions.claim(record(Integer.toString(i), (i + version) % 3))) {
+                        assertEquals(2, (i + version) % 3);
+                        claimed++;
+                    }
+                }
+            }
+
+            assertEquals(COUNT, claimed);
+        }
+    }
+
+    private static HarvestRecord record(String id, long date) {
+        final RecordInfo info = new RecordInfo();
+        info.setId(URI.create("test:" + id));
+        info.setDate(new Date(date));
+
+        final HarvestRecord record = new HarvestRecord();
+        record.setRecordInfo(info);
+        return record;
+    }
+}
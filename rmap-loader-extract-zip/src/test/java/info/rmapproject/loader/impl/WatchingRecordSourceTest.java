@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl;
+
+import static info.rmapproject.loader.jms.JmsTestUtil.awaitCount;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.impl.file.CheckpointStore;
+import info.rmapproject.loader.impl.file.EntryFilter;
+import info.rmapproject.loader.impl.file.RecordExtractor;
+import info.rmapproject.loader.impl.file.WatchingRecordSource;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class WatchingRecordSourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void watchTest() throws Exception {
+        verifyWatching(new WatchingRecordSource());
+    }
+
+    @Test
+    public void pollingTest() throws Exception {
+        verifyWatching(new WatchingRecordSource()
+                .withPolling(true)
+                .withPollInterval(100));
+    }
+
+    /* An archive whose extraction fails is extracted again, but .done files are never looked at */
+    @Test(timeout = 30000)
+    public void retryTest() throws Exception {
+        final List<String> encountered = new CopyOnWriteArrayList<>();
+        final AtomicInteger attempts = new AtomicInteger();
+
+        folder.newFile("failing.zip");
+        folder.newFile("finished.zip.done");
+
+        final WatchingRecordSource source = new WatchingRecordSource()
+                .withSettleTime(0)
+                .withRetryInterval(200);
+
+        source.ofDirectory(folder.getRoot().toString())
+                .withExtractor(new OneRecordExtractor() {
+
+                    @Override
+                    public Stream<HarvestRecord> recordsFrom(Path file) {
+                        if (attempts.incrementAndGet() == 1) {
+                            throw new RuntimeException("Expected failure");
+                        }
+                        return super.recordsFrom(file);
+                    }
+                }.onDone(RENAME_TO_DONE))
+                .onRecord(r -> encountered.add(r.getRecordInfo().getId().getSchemeSpecificPart()));
+
+        final Thread watcher = new Thread(source);
+        watcher.start();
+
+        try {
+            awaitCount(encountered, 1);
+            Thread.sleep(500);
+        } finally {
+            source.stop();
+            watcher.join(10000);
+        }
+
+        assertEquals(2, attempts.get());
+        assertEquals(1, encountered.size());
+        assertTrue(encountered.contains("failing.zip"));
+    }
+
+    private void verifyWatching(WatchingRecordSource source) throws Exception {
+
+        final List<String> encountered = new CopyOnWriteArrayList<>();
+
+        folder.newFile("existing.zip");
+
+        source.ofDirectory(folder.getRoot().toString())
+                .withFilter(p -> !p.toString().endsWith(".done"))
+                .withSettleTime(200)
+                .withThreads(2)
+                .withExtractor(new OneRecordExtractor().onDone(RENAME_TO_DONE))
+                .onRecord(r -> encountered.add(r.getRecordInfo().getId().getSchemeSpecificPart()));
+
+        final Thread watcher = new Thread(source);
+        watcher.start();
+
+        try {
+            awaitCount(encountered, 1);
+
+            folder.newFolder("sub");
+            Thread.sleep(500);
+            Files.write(folder.getRoot().toPath().resolve("sub/new.zip"), "partial".getBytes());
+
+            awaitCount(encountered, 2);
+
+            // Give it a chance to (incorrectly) pick up anything twice
+            Thread.sleep(1000);
+        } finally {
+            source.stop();
+            watcher.join(10000);
+        }
+
+        assertEquals(2, encountered.size());
+        assertTrue(encountered.contains("existing.zip"));
+        assertTrue(encountered.contains("new.zip"));
+        assertTrue(new File(folder.getRoot(), "sub/new.zip.done").exists());
+    }
+
+    private static final Consumer<Path> RENAME_TO_DONE = path -> {
+        final File file = path.toFile();
+        file.renameTo(new File(file.getAbsolutePath() + ".done"));
+    };
+
+    /* Produces one record per archive, named after the archive */
+    private static class OneRecordExtractor implements RecordExtractor {
+
+        Consumer<Path> onDone;
+
+        @Override
+        public RecordExtractor contentType(String type) {
+            return this;
+        }
+
+        @Override
+        public RecordExtractor onDone(Consumer<Path> finish) {
+            this.onDone = finish;
+            return this;
+        }
+
+        @Override
+        public RecordExtractor withEntryFilter(EntryFilter filter) {
+            return this;
+        }
+
+        @Override
+        public RecordExtractor withMaxInMemory(long bytes) {
+            return this;
+        }
+
+        @Override
+        public RecordExtractor withCheckpoints(CheckpointStore store, int interval) {
+            return this;
+        }
+
+        @Override
+        public Stream<HarvestRecord> recordsFrom(Path file) {
+            final RecordInfo info = new RecordInfo();
+            info.setId(URI.create("file:" + file.getFileName()));
+            final HarvestRecord record = new HarvestRecord();
+            record.setRecordInfo(info);
+            return Stream.of(record).onClose(() -> onDone.accept(file));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.impl.file.EntryFilter;
+import info.rmapproject.loader.impl.file.XmlRecordExtractor;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class XmlRecordExtractorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void oaiRecordsTest() throws Exception {
+        final Path file = oai("ListRecords.xml.gz", 3);
+
+        final List<HarvestRecord> records = new XmlRecordExtractor()
+                .withRecordPath("/OAI-PMH/ListRecords/record")
+                .withIdPath("header/identifier")
+                .withDatePath("header/datestamp")
+                .recordsFrom(file)
+                .collect(Collectors.toList());
+
+        assertEquals(3, records.size());
+
+        final HarvestRecord first = records.get(0);
+        assertEquals(URI.create("oai:test:0"), first.getRecordInfo().getId());
+        assertEquals(Date.from(Instant.parse("2018-01-10T00:00:00Z")), first.getRecordInfo().getDate());
+        assertEquals("application/xml", first.getRecordInfo().getContentType());
+
+        // Each record is a standalone document, with the namespaces it uses declared
+        final String body = new String(first.getBody(), UTF_8);
+        assertTrue(body, body.startsWith("<?xml"));
+        assertTrue(body, body.contains("http://www.openarchives.org/OAI/2.0/"));
+        assertTrue(body, body.contains("http://purl.org/dc/elements/1.1/"));
+        assertTrue(body, body.contains("Title 0"));
+        assertTrue(body, !body.contains("Title 1"));
+    }
+
+    @Test
+    public void relativePathTest() throws Exception {
+        final Path file = oai("ListRecords.xml", 5);
+
+        final List<URI> ids = new XmlRecordExtractor()
+                .withIdPath("metadata/dc/identifier")
+                .withIdPrefix("info:test/")
+                .recordsFrom(file)
+                .map(r -> r.getRecordInfo().getId())
+                .collect(Collectors.toList());
+
+        assertEquals(5, ids.size());
+        assertEquals(URI.create("info:test/4"), ids.get(4));
+    }
+
+    @Test
+    public void idEncodingTest() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("ids.xml");
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file), UTF_8)) {
+            writer.write("<records>");
+            for (final String id : new String[] { "a b", "a&lt;b&gt;", "100%", "50%20off", "x#y#z" }) {
+                writer.write("<record><id>" + id + "</id></record>");
+            }
+            writer.write("</records>");
+        }
+
+        final List<URI> ids = new XmlRecordExtractor()
+                .withIdPath("id")
+                .withIdPrefix("info:test/")
+                .recordsFrom(file)
+                .map(r -> r.getRecordInfo().getId())
+                .collect(Collectors.toList());
+
+        assertEquals(URI.create("info:test/a%20b"), ids.get(0));
+        assertEquals(URI.create("info:test/a%3Cb%3E"), ids.get(1));
+        assertEquals(URI.create("info:test/100%25"), ids.get(2));
+        assertEquals(URI.create("info:test/50%20off"), ids.get(3));
+
+        // Cannot form a URI at all, so identified by position instead
+        assertEquals(URI.create("file:ids.xml#5"), ids.get(4));
+    }
+
+    /* Records larger than the memory limit are spooled, and the spool removed once closed or filtered out */
+    @Test
+    public void spoolTest() throws Exception {
+        final Path file = oai("ListRecords.xml", 3);
+        final Set<Path> spooled = spooled();
+
+        try (Stream<HarvestRecord> records = new XmlRecordExtractor()
+                .withRecordPath("/OAI-PMH/ListRecords/record")
+                .withIdPath("header/identifier")
+                .withEntryFilter(new EntryFilter().withNameGlob("oai:test:[02]"))
+                .withMaxInMemory(64)
+                .recordsFrom(file)) {
+            final Iterator<HarvestRecord> i = records.iterator();
+
+            final HarvestRecord first = i.next();
+            assertEquals(spooled.size() + 1, spooled().size());
+
+            final String body = new String(first.getBody(), UTF_8);
+            assertTrue(body, body.startsWith("<?xml"));
+            assertTrue(body, body.contains("Title 0"));
+            first.getRecordBody().close();
+
+            // The second record is filtered out
+            final HarvestRecord third = i.next();
+            assertEquals(URI.create("oai:test:2"), third.getRecordInfo().getId());
+            assertEquals(spooled.size() + 1, spooled().size());
+            third.getRecordBody().close();
+        }
+
+        assertEquals(spooled, spooled());
+    }
+
+    private Set<Path> spooled() throws Exception {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith("rmap-record-")).collect(Collectors.toSet());
+        }
+    }
+
+    private Path oai(String name, int count) throws Exception {
+        final Path file = folder.getRoot().toPath().resolve(name);
+        try (OutputStream out = name.endsWith(".gz")
+                ? new GZIPOutputStream(Files.newOutputStream(file))
+                : Files.newOutputStream(file);
+                Writer writer = new OutputStreamWriter(out, UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\" ");
+            writer.write("xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n");
+            writer.write("<responseDate>2018-01-11T00:00:00Z</responseDate>\n<ListRecords>\n");
+            for (int i = 0; i < count; i++) {
+                writer.write("<record><header><identifier>oai:test:" + i + "</identifier>");
+                writer.write("<datestamp>2018-01-10</datestamp></header>");
+                writer.write("<metadata><dc><dc:title>Title " + i + "</dc:title>");
+                writer.write("<dc:identifier>" + i + "</dc:identifier></dc></metadata></record>\n");
+            }
+            writer.write("</ListRecords>\n</OAI-PMH>\n");
+        }
+        return file;
+    }
+}
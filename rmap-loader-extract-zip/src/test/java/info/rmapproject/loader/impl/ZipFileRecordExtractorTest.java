@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.impl.file.CheckpointStore;
+import info.rmapproject.loader.impl.file.EntryFilter;
+import info.rmapproject.loader.impl.file.FileCheckpointStore;
+import info.rmapproject.loader.impl.file.ZipFileRecordExtractor;
+
+public class ZipFileRecordExtractorTest {
+
+    final File zipfile = new File(getClass().getResource("/fileDriver/data.zip").getFile());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordBodyTest() throws Exception {
+
+        final List<String> expectedBodies = Arrays.asList("1.txt", "2.txt", "3.txt");
+
+        final Set<String> zippedBodies = new ZipFileRecordExtractor()
+                .recordsFrom(zipfile.toPath())
+                .map(r -> new String(r.getBody()))
+                .collect(Collectors.toSet());
+
+        assertEquals(expectedBodies.size(), zippedBodies.size());
+        assertTrue(zippedBodies.containsAll(expectedBodies));
+    }
+
+    @Test
+    public void contentTypeTest() throws Exception {
+
+        final String CONTENT_TYPE = "test/contentTypeTest";
+
+        final Set<String> zippedcontentTypes = new ZipFileRecordExtractor()
+                .contentType(CONTENT_TYPE)
+                .recordsFrom(zipfile.toPath())
+                .map(r -> new String(r.getRecordInfo().getContentType()))
+                .collect(Collectors.toSet());
+
+        assertEquals(1, zippedcontentTypes.size());
+        assertEquals(CONTENT_TYPE, zippedcontentTypes.iterator().next());
+    }
+
+    @Test
+    public void orderedReadAheadTest() throws Exception {
+        final Path zip = manyEntries(500);
+
+        final List<Path> done = new ArrayList<>();
+
+        final List<String> bodies = new ZipFileRecordExtractor()
+                .withThreads(4)
+                .onDone(done::add)
+                .recordsFrom(zip)
+                .map(r -> new String(r.getBody(), UTF_8))
+                .collect(Collectors.toList());
+
+        assertEquals(IntStream.range(0, 500).mapToObj(Integer::toString).collect(Collectors.toList()), bodies);
+        assertEquals(Arrays.asList(zip), done);
+    }
+
+    @Test
+    public void parallelStreamTest() throws Exception {
+        final Path zip = manyEntries(500);
+
+        final List<Path> done = new ArrayList<>();
+
+        final Set<String> bodies = new ZipFileRecordExtractor()
+                .onDone(done::add)
+                .recordsFrom(zip)
+                .parallel()
+                .map(r -> new String(r.getBody(), UTF_8))
+                .collect(Collectors.toSet());
+
+        assertEquals(500, bodies.size());
+        assertEquals(Arrays.asList(zip), done);
+    }
+
+    @Test
+    public void entryFilterTest() throws Exception {
+        final Path zip = manyEntries(500);
+
+        final List<String> bodies = new ZipFileRecordExtractor()
+                .withEntryFilter(new EntryFilter()
+                        .withNameGlob("entry/4*.txt")
+                        .withMinSize(2))
+                .recordsFrom(zip)
+                .map(r -> new String(r.getBody(), UTF_8))
+                .collect(Collectors.toList());
+
+        assertEquals(IntStream.range(40, 50).mapToObj(Integer::toString).collect(Collectors.toList()),
+                bodies.subList(0, 10));
+        assertEquals(110, bodies.size());
+    }
+
+    @Test
+    public void checkpointResumeTest() throws Exception {
+        final Path zip = folder.newFile("checkpointed.zip").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip.toFile()))) {
+            for (int i = 0; i < 100; i++) {
+                out.putNextEntry(new ZipEntry("entry/" + i + ".txt"));
+                out.write(Integer.toString(i).getBytes(UTF_8));
+                out.closeEntry();
+            }
+        }
+
+        final CheckpointStore checkpoints = new FileCheckpointStore();
+        final List<String> bodies = new ArrayList<>();
+
+        // Simulate a crash while processing the 36th record
+        try {
+            new ZipFileRecordExtractor()
+                    .withCheckpoints(checkpoints, 10)
+                    .recordsFrom(zip)
+                    .map(r -> new String(r.getBody(), UTF_8))
+                    .forEach(body -> {
+                        if (bodies.size() == 35) {
+                            throw new IllegalStateException("crash");
+                        }
+                        bodies.add(body);
+                    });
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(30, checkpoints.load(zip).getIndex());
+        assertEquals("entry/29.txt", checkpoints.load(zip).getName());
+
+        final List<String> resumed = new ZipFileRecordExtractor()
+                .withCheckpoints(checkpoints, 10)
+                .recordsFrom(zip)
+                .map(r -> new String(r.getBody(), UTF_8))
+                .collect(Collectors.toList());
+
+        assertEquals(IntStream.range(30, 100).mapToObj(Integer::toString).collect(Collectors.toList()), resumed);
+        assertNull(checkpoints.load(zip));
+    }
+
+    /* A crash in the done action (e.g. before the archive is renamed) leaves the checkpoint in place */
+    @Test
+    public void checkpointKeptUntilDoneTest() throws Exception {
+        final Path zip = manyEntries(20);
+        final CheckpointStore checkpoints = new FileCheckpointStore();
+
+        try {
+            new ZipFileRecordExtractor()
+                    .withCheckpoints(checkpoints, 10)
+                    .onDone(path -> {
+                        throw new IllegalStateException("crash");
+                    })
+                    .recordsFrom(zip)
+                    .forEach(r -> {
+                    });
+        } catch (final RuntimeException e) {
+            // expected
+        }
+
+        assertEquals(20, checkpoints.load(zip).getIndex());
+    }
+
+    @Test(timeout = 10000)
+    public void earlyCloseTest() throws Exception {
+        final Path zip = manyEntries(50);
+        final Set<Path> spooled = spooled();
+
+        try (Stream<HarvestRecord> records = new ZipFileRecordExtractor()
+                .withThreads(4)
+                .withMaxInMemory(0)
+                .recordsFrom(zip)) {
+            records.iterator().next().getRecordBody().close();
+        }
+
+        // Bodies read ahead but never consumed are closed, and the worker pool is shut down
+        assertEquals(spooled, spooled());
+        while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().startsWith("zip-inflater"))) {
+            Thread.sleep(10);
+        }
+    }
+
+    private Set<Path> spooled() throws Exception {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith("rmap-record-")).collect(Collectors.toSet());
+        }
+    }
+
+    private Path manyEntries(int count) throws Exception {
+        final File file = folder.newFile("many.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < count; i++) {
+                out.putNextEntry(new ZipEntry("entry/" + i + ".txt"));
+                out.write(Integer.toString(i).getBytes(UTF_8));
+                out.closeEntry();
+            }
+        }
+        return file.toPath();
+    }
+}
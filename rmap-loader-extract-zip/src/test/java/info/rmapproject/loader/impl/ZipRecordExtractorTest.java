@@ -16,18 +16,30 @@
 
 package info.rmapproject.loader.impl;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import info.rmapproject.loader.impl.file.ArchiveRecordExtractor;
+import info.rmapproject.loader.impl.file.CheckpointStore;
+import info.rmapproject.loader.impl.file.FileCheckpointStore;
 import info.rmapproject.loader.impl.file.ZipRecordExtractor;
 
 /**
@@ -37,6 +49,9 @@ public class ZipRecordExtractorTest {
 
     final File zipfile = new File(getClass().getResource("/fileDriver/data.zip").getFile());
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void recordBodyTest() throws Exception {
 
@@ -76,4 +91,47 @@ public class ZipRecordExtractorTest {
         assertEquals(3, zippedRecordIDs.size());
 
     }
+
+    @Test
+    public void checkpointResumeTest() throws Exception {
+        final Path zip = folder.newFile("checkpointed.zip").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip.toFile()))) {
+            for (int i = 0; i < 100; i++) {
+                out.putNextEntry(new ZipEntry("entry/" + i + ".txt"));
+                out.write(Integer.toString(i).getBytes(UTF_8));
+                out.closeEntry();
+            }
+        }
+
+        final CheckpointStore checkpoints = new FileCheckpointStore();
+        final List<String> bodies = new ArrayList<>();
+
+        // Simulate a crash while processing the 36th record
+        try {
+            new ZipRecordExtractor()
+                    .withCheckpoints(checkpoints, 10)
+                    .recordsFrom(zip)
+                    .map(r -> new String(r.getBody(), UTF_8))
+                    .forEach(body -> {
+                        if (bodies.size() == 35) {
+                            throw new IllegalStateException("crash");
+                        }
+                        bodies.add(body);
+                    });
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(30, checkpoints.load(zip).getIndex());
+        assertEquals("entry/29.txt", checkpoints.load(zip).getName());
+
+        final List<String> resumed = new ZipRecordExtractor()
+                .withCheckpoints(checkpoints, 10)
+                .recordsFrom(zip)
+                .map(r -> new String(r.getBody(), UTF_8))
+                .collect(Collectors.toList());
+
+        assertEquals(IntStream.range(30, 100).mapToObj(Integer::toString).collect(Collectors.toList()), resumed);
+        assertNull(checkpoints.load(zip));
+    }
 }
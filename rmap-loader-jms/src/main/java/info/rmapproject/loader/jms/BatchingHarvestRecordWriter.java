@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+
+/**
+ * Writes harvest records in transactions, committing a batch of them at a time.
+ * <p>
+ * Records are sent on a transacted session, which is committed once a given number of records have been written, or
+ * once the oldest uncommitted record has waited a given time. The broker only needs to sync its store once per
+ * commit, rather than once per record, which makes a great difference when writing many small records.
+ * </p>
+ * <p>
+ * Written records are not guaranteed to be delivered until {@link #commit()} returns. Uncommitted messages are kept,
+ * so that if the connection is lost (which rolls back the transaction), they can be sent again in a new one.
+ * {@link #close()} commits any records that remain.
+ * </p>
+ * <p>
+ * A transacted session only allows one transaction at a time, so writes by multiple threads are serialized.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class BatchingHarvestRecordWriter extends HarvestRecordWriter implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(BatchingHarvestRecordWriter.class);
+
+    private final JmsClient jms;
+
+    private int batchSize = 1000;
+
+    private long batchTime = 1000;
+
+    private int maxRetries = 5;
+
+    private Session session;
+
+    private MessageProducer producer;
+
+    private final List<Pending> batch = new ArrayList<>();
+
+    private long batchStart;
+
+    private ScheduledExecutorService timer;
+
+    public BatchingHarvestRecordWriter(JmsClient client) {
+        super(client);
+        this.jms = client;
+    }
+
+    /**
+     * Number of records per transaction.
+     *
+     * @param size Batch size. Default is 1000.
+     * @return configured writer.
+     */
+    public BatchingHarvestRecordWriter withBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = size;
+        return this;
+    }
+
+    /**
+     * Longest time a record may wait before its batch is committed, even if the batch is not full.
+     *
+     * @param millis Time in milliseconds. Default is 1000.
+     * @return configured writer.
+     */
+    public BatchingHarvestRecordWriter withBatchTime(long millis) {
+        this.batchTime = millis;
+        return this;
+    }
+
+    /**
+     * Number of times to re-try a failed batch, in a new session, before giving up.
+     *
+     * @param retries Number of retries. Default is 5.
+     * @return configured writer.
+     */
+    public BatchingHarvestRecordWriter withMaxRetries(int retries) {
+        this.maxRetries = retries;
+        return this;
+    }
+
+    @Override
+    public synchronized void write(String queue, HarvestRecord record) {
+        startTimer();
+
+        if (batch.isEmpty()) {
+            batchStart = System.currentTimeMillis();
+        }
+
+        final String ref = checkIn(record);
+        final Pending pending;
+        try {
+            pending = new Pending(queue, message(queue, record, ref, session()));
+        } catch (final JMSException e) {
+            release(ref);
+            throw new RuntimeException("Could not write harvest record", e);
+        }
+
+        batch.add(pending);
+
+        try {
+            send(pending);
+        } catch (final JMSException e) {
+            LOG.info("Sending record failed, will re-try the batch: {}", e.getMessage());
+            retry(e);
+        }
+
+        if (batch.size() >= batchSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit all records written so far.
+     * <p>
+     * When this returns, every record written beforehand has been delivered to the broker.
+     * </p>
+     */
+    public synchronized void commit() {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            session.commit();
+            LOG.debug("Committed {} records", batch.size());
+            batch.clear();
+        } catch (final JMSException e) {
+            LOG.info("Commit failed, will re-try the batch: {}", e.getMessage());
+            retry(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            commit();
+        } finally {
+            if (timer != null) {
+                timer.shutdownNow();
+            }
+            closeSession();
+        }
+    }
+
+    // Send the whole batch again, in a new session, and commit it. Once committed, the batch is done with
+    private void retry(JMSException cause) {
+        JMSException last = cause;
+        for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            closeSession();
+            try {
+                for (final Pending pending : batch) {
+                    send(pending);
+                }
+                session.commit();
+                LOG.info("Re-sent batch of {} records", batch.size());
+                batch.clear();
+                return;
+            } catch (final JMSException e) {
+                LOG.debug("Re-try {} of batch failed", attempt, e);
+                last = e;
+            }
+        }
+
+        throw new RuntimeException("Could not write batch of " + batch.size() + " harvest records", last);
+    }
+
+    private void send(Pending pending) throws JMSException {
+        final Session s = session();
+        producer.send(s.createQueue(pending.queue), pending.message);
+    }
+
+    private Session session() throws JMSException {
+        if (session == null) {
+            session = jms.createSession(true);
+            producer = session.createProducer(null);
+        }
+        return session;
+    }
+
+    private void closeSession() {
+        if (session != null) {
+            try {
+                session.close();
+            } catch (final JMSException e) {
+                LOG.debug("Exception while closing session", e);
+            }
+            session = null;
+            producer = null;
+        }
+    }
+
+    private void startTimer() {
+        if (timer == null && batchTime > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "batch-commit");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(this::commitIfDue, batchTime, Math.max(batchTime / 4, 1),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void commitIfDue() {
+        try {
+            if (!batch.isEmpty() && System.currentTimeMillis() - batchStart >= batchTime) {
+                commit();
+            }
+        } catch (final RuntimeException e) {
+            LOG.warn("Timed commit failed", e);
+        }
+    }
+
+    private static class Pending {
+
+        final String queue;
+
+        final Message message;
+
+        Pending(String queue, Message message) {
+            this.queue = queue;
+            this.message = message;
+        }
+    }
+}
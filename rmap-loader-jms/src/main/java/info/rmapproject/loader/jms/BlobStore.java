@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import info.rmapproject.loader.RecordBody;
+
+/**
+ * Holds record bodies that are too large to send through the broker.
+ * <p>
+ * Instead of the body, a message carries a reference (a claim check) that consumers use to retrieve it from the
+ * store. Every reference must eventually be released, after which the body may be removed.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public interface BlobStore {
+
+    /**
+     * Store a body.
+     * <p>
+     * Each call returns a distinct reference, even if the same content has been stored before.
+     * </p>
+     *
+     * @param body Content to store.
+     * @return reference to the stored content.
+     */
+    String put(RecordBody body);
+
+    /**
+     * Retrieve a body.
+     * <p>
+     * The content is not read until the body is opened.
+     * </p>
+     *
+     * @param ref Reference returned by {@link #put(RecordBody)}.
+     * @return the body.
+     */
+    RecordBody get(String ref);
+
+    /**
+     * Release a reference, once the body is no longer needed by its holder.
+     * <p>
+     * Content is removed once all references to it are released.
+     * </p>
+     *
+     * @param ref Reference returned by {@link #put(RecordBody)}.
+     */
+    void release(String ref);
+}
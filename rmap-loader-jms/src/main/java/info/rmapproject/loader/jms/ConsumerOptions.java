@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+/**
+ * How {@link JmsClient#listen(String, javax.jms.MessageListener, ConsumerOptions)} consumes messages.
+ * <p>
+ * By default, there is one consumer, which uses the broker's default prefetch, and acknowledges each message
+ * automatically once the listener returns.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class ConsumerOptions {
+
+    /**
+     * How consumed messages are acknowledged.
+     */
+    public enum Acknowledgement {
+
+        /** Each message is acknowledged once the listener returns. If the listener throws, it is redelivered. */
+        AUTO,
+
+        /**
+         * Messages are acknowledged (with {@link javax.jms.Session#CLIENT_ACKNOWLEDGE}) a batch at a time. If the
+         * listener throws, the session is recovered, which redelivers every unacknowledged message in the batch. Those
+         * the listener had already processed are acknowledged as they are redelivered, without being processed again,
+         * before the failed message is.
+         */
+        CLIENT,
+
+        /**
+         * Messages are consumed in a transaction, committed a batch at a time. If the listener throws, the transaction
+         * is rolled back, so every message in the batch is redelivered (subject to the broker's redelivery policy).
+         * Those the listener had already processed are committed as they are redelivered, without being processed
+         * again, before the failed message is.
+         */
+        TRANSACTED
+    }
+
+    int concurrency = 1;
+
+    int maxConcurrency = 1;
+
+    int prefetch = -1;
+
+    Acknowledgement acknowledgement = Acknowledgement.AUTO;
+
+    int ackBatch = 1;
+
+    long ackTime = 1000;
+
+    int firstPartition = -1;
+
+    int lastPartition = -1;
+
+    /**
+     * Number of consumers, each with a session of its own.
+     *
+     * @param concurrency Number of consumers to start with, and keep at least. Default is 1.
+     * @param max Largest number of consumers, added while there is a backlog. Default is 1.
+     * @return configured options.
+     * @see JmsClient#listen(String, javax.jms.MessageListener, int, int)
+     */
+    public ConsumerOptions withConcurrency(int concurrency, int max) {
+        if (concurrency < 1 || max < concurrency) {
+            throw new IllegalArgumentException("Concurrency must be at least 1, and no more than the max");
+        }
+        this.concurrency = concurrency;
+        this.maxConcurrency = max;
+        return this;
+    }
+
+    /**
+     * Number of messages the broker may send each consumer ahead of the one being processed.
+     * <p>
+     * Messages prefetched by one consumer cannot be consumed by any other, so when each message takes long to process,
+     * a small prefetch spreads them fairly across consumers. When messages are quick to process, a large prefetch
+     * saves waiting for each to arrive.
+     * </p>
+     *
+     * @param prefetch Number of messages, or -1 for the broker's default (1000, for ActiveMQ). Default is -1.
+     * @return configured options.
+     */
+    public ConsumerOptions withPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * Acknowledge messages a batch at a time, rather than one at a time.
+     * <p>
+     * A batch is acknowledged once the listener has processed the given number of messages, or once the oldest
+     * unacknowledged message was processed the given time ago.
+     * </p>
+     *
+     * @param acknowledgement How to acknowledge messages. Default is {@link Acknowledgement#AUTO}, which ignores the
+     *        batch size and time.
+     * @param batch Number of messages per acknowledgement.
+     * @param millis Longest time, in milliseconds, that a processed message may remain unacknowledged, or 0 for no
+     *        limit.
+     * @return configured options.
+     */
+    public ConsumerOptions withAcknowledgement(Acknowledgement acknowledgement, int batch, long millis) {
+        if (batch < 1) {
+            throw new IllegalArgumentException("Acknowledgement batch must be at least 1");
+        }
+        this.acknowledgement = acknowledgement;
+        this.ackBatch = batch;
+        this.ackTime = millis;
+        return this;
+    }
+
+    /**
+     * Consume only the given range of partitions, dividing them among the consumers.
+     * <p>
+     * Each consumer is given a contiguous share of the range, and consumes only messages in its share, by a selector
+     * on the {@link JmsHeaders#PROP_GROUP_ID} header (the partition header itself cannot be used in a selector, as its
+     * name contains dots). Every version of a record is in the same partition, so is consumed by the same consumer, in
+     * order. Several processes may consume the same queue, each with its own range; together, their ranges must cover
+     * every partition, or some messages will never be consumed. Messages that are not partitioned are not consumed
+     * either.
+     * </p>
+     * <p>
+     * Partitions are assigned when consumers are created, so the number of consumers is fixed; the maximum
+     * concurrency must be the same as the starting concurrency, and no more than the number of partitions.
+     * </p>
+     * <p>
+     * Message groups (see {@link HarvestRecordConverter}) order messages without this, and let any consumer take any
+     * partition. Selectors suit consumers that cannot use groups, or that need a fixed share of the partitions.
+     * </p>
+     *
+     * @param first First partition, counting from 0.
+     * @param last Last partition, inclusive.
+     * @return configured options.
+     */
+    public ConsumerOptions withPartitions(int first, int last) {
+        if (first < 0 || last < first) {
+            throw new IllegalArgumentException("Partitions must be a range of at least one, counting from 0");
+        }
+        this.firstPartition = first;
+        this.lastPartition = last;
+        return this;
+    }
+
+    /**
+     * Whether consumers take only a range of partitions.
+     *
+     * @return true if {@link #withPartitions(int, int)} was given.
+     */
+    public boolean isPartitioned() {
+        return firstPartition > -1;
+    }
+
+    // The message selector of the given consumer, or null if consumers are not partitioned
+    String selector(int consumer) {
+        if (firstPartition < 0) {
+            return null;
+        }
+
+        final int count = lastPartition - firstPartition + 1;
+        final int first = firstPartition + consumer * count / concurrency;
+        final int last = firstPartition + (consumer + 1) * count / concurrency - 1;
+
+        final StringBuilder selector = new StringBuilder(JmsHeaders.PROP_GROUP_ID).append(" IN (");
+        for (int p = first; p <= last; p++) {
+            selector.append(p > first ? ", '" : "'").append(p).append("'");
+        }
+        return selector.append(")").toString();
+    }
+
+    void validate() {
+        if (firstPartition > -1) {
+            if (maxConcurrency != concurrency) {
+                throw new IllegalArgumentException("Partitioned consumers cannot be added or removed");
+            } else if (concurrency > lastPartition - firstPartition + 1) {
+                throw new IllegalArgumentException("More consumers than partitions");
+            }
+        }
+    }
+
+    // The queue, with options for ActiveMQ to create consumers of it with
+    String destination(String queue) {
+        return prefetch > -1 ? queue + "?consumer.prefetchSize=" + prefetch : queue;
+    }
+
+    boolean batched() {
+        return acknowledgement != Acknowledgement.AUTO;
+    }
+}
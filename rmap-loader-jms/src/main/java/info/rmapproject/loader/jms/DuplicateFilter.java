@@ -0,0 +1,294 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
+
+/**
+ * Recognizes records that have already been consumed successfully, so that redeliveries can be dropped.
+ * <p>
+ * A record is identified by its id, its date, and a hash of its body; a record with the same id and date, but
+ * different content, is not a duplicate. Only records that have been {@link #add(Key) added} after being consumed are
+ * recognized, so a record that failed is never mistaken for a duplicate when it is retried.
+ * </p>
+ * <p>
+ * Recently added records are kept in a bounded LRU cache in memory, which recognizes them exactly. Optionally, every
+ * record is also added to a Bloom filter in a memory mapped file, which persists across restarts and can hold far
+ * more records than the cache, in a fixed amount of space. A Bloom filter has false positives: at the given rate, a
+ * record that was never added is thought to be a duplicate, and dropped. The rate only holds up to the filter's
+ * capacity; beyond that, it grows quickly.
+ * </p>
+ * <p>
+ * Record bodies are read in order to hash them, so they must be readable more than once. All bodies of records
+ * received from messages are.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class DuplicateFilter implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(DuplicateFilter.class);
+
+    /** Bytes of the Bloom filter file header; the number of bits, and of hashes */
+    private static final int HEADER_BYTES = 16;
+
+    private final Map<Key, Boolean> cache;
+
+    private BloomFilter bloom;
+
+    /**
+     * Create a filter with an LRU cache of the given size.
+     *
+     * @param cacheSize Number of records to keep in memory.
+     */
+    public DuplicateFilter(int cacheSize) {
+        this.cache = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Also add records to a Bloom filter in the given file.
+     * <p>
+     * If the file exists, it is opened as is, with the capacity and false positive rate it was created with.
+     * Otherwise, it is created, sized for the given capacity and rate.
+     * </p>
+     *
+     * @param file Bloom filter file.
+     * @param capacity Number of records the filter is sized for.
+     * @param falsePositiveRate Chance of a record being mistaken for a duplicate, e.g. 1e-7.
+     * @return configured filter.
+     */
+    public DuplicateFilter withBloomFilter(Path file, long capacity, double falsePositiveRate) {
+        if (capacity < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, and false positive rate between 0 and 1");
+        }
+
+        try {
+            this.bloom = new BloomFilter(file, capacity, falsePositiveRate);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not open Bloom filter " + file, e);
+        }
+        return this;
+    }
+
+    /**
+     * Compute the key identifying a record.
+     *
+     * @param record The record.
+     * @return the key.
+     */
+    Key key(HarvestRecord record) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+
+        if (record.getRecordInfo() != null) {
+            if (record.getRecordInfo().getId() != null) {
+                digest.update(record.getRecordInfo().getId().toString().getBytes(UTF_8));
+            }
+            digest.update((byte) 0);
+            if (record.getRecordInfo().getDate() != null) {
+                digest.update(Long.toString(record.getRecordInfo().getDate().getTime()).getBytes(UTF_8));
+            }
+        }
+        digest.update((byte) 0);
+
+        final RecordBody body = record.getRecordBody();
+        if (body != null) {
+            final byte[] buf = new byte[8192];
+            try (InputStream in = body.openStream()) {
+                int len;
+                while ((len = in.read(buf)) > -1) {
+                    digest.update(buf, 0, len);
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not read record body", e);
+            }
+        }
+
+        final byte[] hash = digest.digest();
+        return new Key(toLong(hash, 0), toLong(hash, 8));
+    }
+
+    /**
+     * Determine if a record with the given key has been added.
+     *
+     * @param key Record key.
+     * @return true if it was, or if the Bloom filter gives a false positive.
+     */
+    synchronized boolean contains(Key key) {
+        return cache.get(key) != null || bloom != null && bloom.contains(key);
+    }
+
+    /**
+     * Add a record that has been consumed successfully.
+     *
+     * @param key Record key.
+     */
+    synchronized void add(Key key) {
+        cache.put(key, Boolean.TRUE);
+        if (bloom != null) {
+            bloom.add(key);
+        }
+    }
+
+    /**
+     * Write the Bloom filter, if any, to its file.
+     */
+    @Override
+    public synchronized void close() {
+        if (bloom != null) {
+            bloom.force();
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | bytes[i] & 0xff;
+        }
+        return value;
+    }
+
+    /** Hash of a record's id, date, and body */
+    static final class Key {
+
+        final long high;
+
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (low ^ low >>> 32);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).high == high && ((Key) o).low == low;
+        }
+    }
+
+    /**
+     * Bloom filter in a memory mapped file.
+     * <p>
+     * Bit positions are derived from the two halves of a key, by double hashing. Bits reach the file as the operating
+     * system writes out the mapping, even if the JVM exits abruptly; {@link #force()} writes them immediately.
+     * </p>
+     */
+    private static class BloomFilter {
+
+        final long bits;
+
+        final int hashes;
+
+        final MappedByteBuffer mapping;
+
+        final LongBuffer words;
+
+        BloomFilter(Path file, long capacity, double rate) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                    FileChannel channel = raf.getChannel()) {
+
+                if (raf.length() >= HEADER_BYTES) {
+                    bits = raf.readLong();
+                    hashes = raf.readInt();
+                    if (raf.length() != HEADER_BYTES + bits / 8) {
+                        throw new IOException("Bloom filter file is truncated or corrupt");
+                    }
+                    LOG.info("Opened Bloom filter of {} bits, with {} hashes", bits, hashes);
+                } else {
+                    final double optimal = -capacity * Math.log(rate) / (Math.log(2) * Math.log(2));
+                    bits = ((long) Math.ceil(optimal) + 63) / 64 * 64;
+                    hashes = (int) Math.max(1, Math.round((double) bits / capacity * Math.log(2)));
+                    if (bits / 8 > Integer.MAX_VALUE - HEADER_BYTES) {
+                        throw new IllegalArgumentException("Bloom filter for " + capacity +
+                                " records at a false positive rate of " + rate + " would exceed 2GB");
+                    }
+
+                    raf.setLength(HEADER_BYTES + bits / 8);
+                    raf.writeLong(bits);
+                    raf.writeInt(hashes);
+                    LOG.info("Created Bloom filter of {} bits, with {} hashes", bits, hashes);
+                }
+
+                mapping = channel.map(MapMode.READ_WRITE, HEADER_BYTES, bits / 8);
+                words = mapping.asLongBuffer();
+            }
+        }
+
+        boolean contains(Key key) {
+            for (int i = 0; i < hashes; i++) {
+                final long bit = bit(key, i);
+                if ((words.get((int) (bit >>> 6)) & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(Key key) {
+            for (int i = 0; i < hashes; i++) {
+                final long bit = bit(key, i);
+                final int word = (int) (bit >>> 6);
+                words.put(word, words.get(word) | 1L << bit);
+            }
+        }
+
+        void force() {
+            mapping.force();
+        }
+
+        private long bit(Key key, int i) {
+            return Math.floorMod(key.high + i * key.low, bits);
+        }
+    }
+}
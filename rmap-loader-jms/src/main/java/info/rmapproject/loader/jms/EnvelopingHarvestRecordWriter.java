@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.HarvestRecordConverter.setPartition;
+import static info.rmapproject.loader.jms.HarvestRecordConverter.toEnvelope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
+
+/**
+ * Writes small harvest records several to a message.
+ * <p>
+ * Records written to the same queue are collected into an envelope message (see {@link HarvestRecordConverter}),
+ * which is sent once it holds a given number of records or bytes, or once its oldest record has waited a given time.
+ * When records are small, the cost of sending, persisting, and acknowledging each message dwarfs that of the record
+ * itself; packing many into one spreads that cost over all of them.
+ * </p>
+ * <p>
+ * Records larger than a given size, or whose size is not known, are sent in their own message as usual (by claim
+ * check, if so configured), after any records waiting for the same queue, so that order is preserved within a queue.
+ * </p>
+ * <p>
+ * If records are {@link #setPartitions(int) partitioned}, each envelope holds records of a single partition, and is
+ * stamped with it. Records are collected separately for each partition, so the fewer partitions, the fuller the
+ * envelopes.
+ * </p>
+ * <p>
+ * Records are not guaranteed to be delivered until {@link #flush()} returns. {@link #close()} sends any that remain.
+ * An envelope that could not be sent is kept, and sent again by the next flush, so a failure is never lost: if it
+ * persists, the flush fails too.
+ * Collected records are copied into memory, so the originals may be released as soon as they have been written.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class EnvelopingHarvestRecordWriter extends HarvestRecordWriter implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(EnvelopingHarvestRecordWriter.class);
+
+    private final JmsClient jms;
+
+    private int envelopeSize = 100;
+
+    private long envelopeBytes = 1024 * 1024;
+
+    private long envelopeTime = 1000;
+
+    private long maxRecordSize = 64 * 1024;
+
+    private final Map<String, Envelope> envelopes = new LinkedHashMap<>();
+
+    private ScheduledExecutorService timer;
+
+    public EnvelopingHarvestRecordWriter(JmsClient client) {
+        super(client);
+        this.jms = client;
+    }
+
+    /**
+     * Largest number of records per envelope.
+     *
+     * @param size Number of records. Default is 100.
+     * @return configured writer.
+     */
+    public EnvelopingHarvestRecordWriter withEnvelopeSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Envelope size must be at least 1");
+        }
+        this.envelopeSize = size;
+        return this;
+    }
+
+    /**
+     * Largest total size of the record bodies in an envelope.
+     * <p>
+     * An envelope is sent as soon as it reaches this size, so may exceed it by up to one record.
+     * </p>
+     *
+     * @param bytes Size in bytes. Default is 1048576 (1MB).
+     * @return configured writer.
+     */
+    public EnvelopingHarvestRecordWriter withEnvelopeBytes(long bytes) {
+        this.envelopeBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Longest time a record may wait before its envelope is sent, even if the envelope is not full.
+     *
+     * @param millis Time in milliseconds. Default is 1000.
+     * @return configured writer.
+     */
+    public EnvelopingHarvestRecordWriter withEnvelopeTime(long millis) {
+        this.envelopeTime = millis;
+        return this;
+    }
+
+    /**
+     * Size of the largest record to put in an envelope.
+     *
+     * @param bytes Size in bytes. Default is 65536 (64KB).
+     * @return configured writer.
+     */
+    public EnvelopingHarvestRecordWriter withMaxRecordSize(long bytes) {
+        this.maxRecordSize = bytes;
+        return this;
+    }
+
+    @Override
+    public synchronized void write(String queue, HarvestRecord record) {
+        final long length = record.getRecordBody() != null ? record.getRecordBody().length() : 0;
+
+        final int partition = partitionOf(record);
+        final String key = partition > -1 ? queue + "#" + partition : queue;
+
+        if (length < 0 || length > maxRecordSize) {
+            send(key);
+            super.write(queue, record);
+            return;
+        }
+
+        startTimer();
+
+        final Envelope envelope = envelopes.computeIfAbsent(key, k -> new Envelope(queue, partition));
+        envelope.add(copy(record), length);
+
+        if (envelope.records.size() >= envelopeSize || envelope.bytes >= envelopeBytes) {
+            send(key);
+        }
+    }
+
+    /**
+     * Send all records written so far.
+     * <p>
+     * When this returns, every record written beforehand has been delivered to the broker.
+     * </p>
+     */
+    public synchronized void flush() {
+        for (final String key : new ArrayList<>(envelopes.keySet())) {
+            send(key);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+        } finally {
+            if (timer != null) {
+                timer.shutdownNow();
+            }
+        }
+    }
+
+    // Send the envelope collected for a queue, or a partition of it. If sending fails, the envelope is kept, to be
+    // sent again by the next flush (or write to its queue)
+    private void send(String key) {
+        final Envelope envelope = envelopes.get(key);
+        if (envelope == null) {
+            return;
+        }
+
+        jms.write(envelope.queue, session -> {
+            final Message message = toEnvelope(envelope.records, session, getCompression(envelope.queue));
+            if (envelope.partition > -1) {
+                setPartition(message, envelope.partition);
+            }
+            return message;
+        });
+        envelopes.remove(key);
+        LOG.debug("Sent envelope of {} records to {}", envelope.records.size(), envelope.queue);
+    }
+
+    private void startTimer() {
+        if (timer == null && envelopeTime > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "envelope-send");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(this::sendIfDue, envelopeTime, Math.max(envelopeTime / 4, 1),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void sendIfDue() {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, Envelope> e : new ArrayList<>(envelopes.entrySet())) {
+            if (now - e.getValue().start >= envelopeTime) {
+                try {
+                    send(e.getKey());
+                } catch (final RuntimeException x) {
+                    LOG.warn("Timed send of envelope to {} failed, will re-try", e.getValue().queue, x);
+                }
+            }
+        }
+    }
+
+    // The record's body may not outlive the write, so take a copy of it
+    private static HarvestRecord copy(HarvestRecord record) {
+        final HarvestRecord copy = new HarvestRecord();
+        copy.setRecordInfo(record.getRecordInfo());
+        if (record.getRecordBody() != null) {
+            try {
+                copy.setRecordBody(RecordBody.of(record.getRecordBody().toByteArray()));
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not read record body", e);
+            }
+        }
+        return copy;
+    }
+
+    private static class Envelope {
+
+        final String queue;
+
+        final int partition;
+
+        final List<HarvestRecord> records = new ArrayList<>();
+
+        final long start = System.currentTimeMillis();
+
+        long bytes;
+
+        Envelope(String queue, int partition) {
+            this.queue = queue;
+            this.partition = partition;
+        }
+
+        void add(HarvestRecord record, long length) {
+            records.add(record);
+            bytes += length;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumes from several queues, sharing processing time among them by weight.
+ * <p>
+ * When one listener consumes from a wildcard of queues, the broker delivers messages from them in no particular
+ * order, so a queue holding a large backlog can hold up messages in small queues until the backlog has been drained.
+ * Instead, this consumes from each queue separately, and schedules them by deficit round robin. Queues with messages
+ * take turns. On each turn, a queue is credited with its weight times the quantum, in milliseconds, and is consumed
+ * from until the time spent processing its messages has used up its credit. A queue that overran its credit on one
+ * turn gets less on the next. A queue found empty is skipped, and forfeits its credit, until it is checked again after
+ * the poll interval. So each queue with messages gets a share of processing time in proportion to its weight, and a
+ * message arriving in a small queue waits for at most about one round, however large the other queues' backlogs.
+ * </p>
+ * <p>
+ * Messages are fetched from the broker only as they are scheduled (with a prefetch of zero), each in a transaction of
+ * its own. If the listener throws an exception, the transaction is rolled back, and the message redelivered.
+ * </p>
+ * <p>
+ * Queues are {@link #addQueue(String) added} and {@link #removeQueue(String) removed} as they are discovered, for
+ * example by watching the broker's advisories. The listener is invoked by as many threads at once as the concurrency,
+ * so must be thread safe.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class FairQueueConsumer implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(FairQueueConsumer.class);
+
+    private final JmsClient jms;
+
+    private final MessageListener listener;
+
+    private ToIntFunction<String> weights = q -> 1;
+
+    private int concurrency = 1;
+
+    private long quantum = 100;
+
+    private long pollInterval = 250;
+
+    /* Queues in round robin order; guarded by this */
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+
+    private final List<Lane> order = new ArrayList<>();
+
+    private int next;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private volatile boolean open = true;
+
+    /**
+     * Create a consumer.
+     *
+     * @param jms Client for creating sessions.
+     * @param listener Listener for messages from every queue.
+     */
+    public FairQueueConsumer(JmsClient jms, MessageListener listener) {
+        this.jms = jms;
+        this.listener = listener;
+    }
+
+    /**
+     * Weight of each queue.
+     *
+     * @param weights Gives the weight (at least 1) for the name of a queue. Default is 1 for every queue.
+     * @return configured consumer.
+     */
+    public FairQueueConsumer withWeights(ToIntFunction<String> weights) {
+        this.weights = weights;
+        return this;
+    }
+
+    /**
+     * Number of messages processed at once.
+     *
+     * @param concurrency Number of threads. Default is 1.
+     * @return configured consumer.
+     */
+    public FairQueueConsumer withConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Processing time a queue of weight 1 is credited with on each turn.
+     * <p>
+     * Smaller quanta switch between queues more often, so messages in small queues wait less.
+     * </p>
+     *
+     * @param millis Time in milliseconds. Default is 100.
+     * @return configured consumer.
+     */
+    public FairQueueConsumer withQuantum(long millis) {
+        this.quantum = millis;
+        return this;
+    }
+
+    /**
+     * How long to wait before checking an empty queue for messages again.
+     *
+     * @param millis Time in milliseconds. Default is 250.
+     * @return configured consumer.
+     */
+    public FairQueueConsumer withPollInterval(long millis) {
+        this.pollInterval = millis;
+        return this;
+    }
+
+    /**
+     * Start consuming, with the configured number of threads.
+     */
+    public synchronized void start() {
+        if (!workers.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < concurrency; i++) {
+            final Thread worker = new Thread(this::work, "jms-fair-consumer-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Consume from a queue, if not already.
+     *
+     * @param queue Name of the queue.
+     */
+    public synchronized void addQueue(String queue) {
+        if (lanes.containsKey(queue)) {
+            return;
+        }
+
+        final int weight = weights.applyAsInt(queue);
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight of " + queue + " must be at least 1");
+        }
+
+        final Lane lane = new Lane(queue, weight);
+        lanes.put(queue, lane);
+        order.add(lane);
+        LOG.info("Consuming from {}, with weight {}", queue, weight);
+        notifyAll();
+    }
+
+    /**
+     * Stop consuming from a queue.
+     * <p>
+     * Any message from it being processed is finished first.
+     * </p>
+     *
+     * @param queue Name of the queue.
+     */
+    public synchronized void removeQueue(String queue) {
+        final Lane lane = lanes.remove(queue);
+        if (lane == null) {
+            return;
+        }
+
+        final int index = order.indexOf(lane);
+        order.remove(index);
+        if (next > index) {
+            next--;
+        }
+
+        lane.removed = true;
+        lane.closeIdle();
+        LOG.info("Stopped consuming from {}", queue);
+    }
+
+    /**
+     * Stop consuming, waiting for any messages being processed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            open = false;
+            notifyAll();
+        }
+
+        for (final Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (this) {
+            lanes.values().forEach(Lane::closeIdle);
+        }
+    }
+
+    private void work() {
+        while (open) {
+            final Lane lane;
+            try {
+                lane = schedule();
+            } catch (final InterruptedException e) {
+                return;
+            }
+
+            if (lane != null) {
+                consume(lane);
+            }
+        }
+    }
+
+    /*
+     * Choose the queue to consume from next, waiting while every queue is empty. The queue at the head of the round
+     * keeps its turn while it has credit; otherwise, the round moves on to the next queue that is not known to be
+     * empty, and credits it.
+     */
+    private synchronized Lane schedule() throws InterruptedException {
+        while (open) {
+            final long now = System.currentTimeMillis();
+            long wake = Long.MAX_VALUE;
+            boolean ready = false;
+
+            for (int i = 0; i < order.size(); i++) {
+                if (next >= order.size()) {
+                    next = 0;
+                }
+
+                final Lane lane = order.get(next);
+                if (lane.emptyUntil > now) {
+                    wake = Math.min(wake, lane.emptyUntil);
+                    next++;
+                    continue;
+                }
+
+                if (lane.deficit <= 0 && !lane.credited) {
+                    lane.deficit += lane.weight * quantum;
+                    lane.credited = true;
+                }
+
+                if (lane.deficit > 0) {
+                    return lane;
+                }
+
+                // Its turn is over
+                lane.credited = false;
+                ready = true;
+                next++;
+            }
+
+            // Unless every queue that may have messages is out of credit, so needs another round, wait
+            if (!ready) {
+                if (wake == Long.MAX_VALUE) {
+                    wait();
+                } else {
+                    wait(Math.max(wake - now, 1));
+                }
+            }
+        }
+        return null;
+    }
+
+    // Consume one message from the given queue, if there is one
+    private void consume(Lane lane) {
+        final Pull pull;
+        try {
+            pull = lane.lease();
+        } catch (final RuntimeException e) {
+            LOG.warn("Could not consume from {}: {}", lane.queue, e.getMessage());
+            pause();
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        Message m = null;
+        try {
+            m = pull.consumer.receiveNoWait();
+
+            if (m == null) {
+                empty(lane);
+            } else {
+                try {
+                    listener.onMessage(m);
+                    pull.session.commit();
+                } catch (final RuntimeException e) {
+                    LOG.warn("Listener failed on message from {}, redelivering it", lane.queue, e);
+                    pull.session.rollback();
+                }
+            }
+            lane.giveBack(pull);
+        } catch (final JMSException e) {
+            // Most likely the connection was lost; the message (if any) will be redelivered
+            LOG.info("Could not consume from {}: {}", lane.queue, e.getMessage());
+            pull.close();
+            pause();
+        } finally {
+            if (m != null) {
+                charge(lane, System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    private synchronized void empty(Lane lane) {
+        lane.emptyUntil = System.currentTimeMillis() + pollInterval;
+        lane.deficit = 0;
+        lane.credited = false;
+    }
+
+    private synchronized void charge(Lane lane, long millis) {
+        lane.deficit -= Math.max(millis, 1);
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(pollInterval);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* A queue, and its consumers that are not in use */
+    private class Lane {
+
+        final String queue;
+
+        final int weight;
+
+        /* Remaining credit, in milliseconds, and whether it was credited on its current turn; guarded by outer */
+        long deficit;
+
+        boolean credited;
+
+        /* When the queue was last found empty, the time to check it again; guarded by outer */
+        long emptyUntil;
+
+        volatile boolean removed;
+
+        final Deque<Pull> idle = new ArrayDeque<>();
+
+        Lane(String queue, int weight) {
+            this.queue = queue;
+            this.weight = weight;
+        }
+
+        Pull lease() {
+            synchronized (idle) {
+                if (!idle.isEmpty()) {
+                    return idle.pop();
+                }
+            }
+
+            final Session session = jms.createSession(true);
+            try {
+                return new Pull(session, session.createConsumer(
+                        session.createQueue(queue + "?consumer.prefetchSize=0")));
+            } catch (final JMSException e) {
+                try {
+                    session.close();
+                } catch (final JMSException x) {
+                    LOG.debug("Exception while closing session", x);
+                }
+                throw new RuntimeException("Could not consume from " + queue, e);
+            }
+        }
+
+        void giveBack(Pull pull) {
+            synchronized (idle) {
+                if (!removed && open) {
+                    idle.push(pull);
+                    return;
+                }
+            }
+            pull.close();
+        }
+
+        void closeIdle() {
+            synchronized (idle) {
+                idle.forEach(Pull::close);
+                idle.clear();
+            }
+        }
+    }
+
+    /* A session, and its consumer of a queue, used by one thread at a time */
+    private static class Pull {
+
+        final Session session;
+
+        final MessageConsumer consumer;
+
+        Pull(Session session, MessageConsumer consumer) {
+            this.session = session;
+            this.consumer = consumer;
+        }
+
+        void close() {
+            try {
+                session.close();
+            } catch (final JMSException e) {
+                LOG.debug("Exception while closing session", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import info.rmapproject.loader.RecordBody;
+
+/**
+ * Content addressed blob store in a filesystem directory.
+ * <p>
+ * Each body is stored once, in a file named after the SHA-256 hash of its content (e.g. <code>ab/abcdef...</code>),
+ * no matter how many times it is stored. Each reference is an empty ticket file alongside it (e.g.
+ * <code>ab/abcdef....&lt;uuid&gt;.ref</code>); when the last ticket for a body is released, the body is deleted.
+ * </p>
+ * <p>
+ * The directory may be shared by producers and consumers in different processes (e.g. on a network filesystem, if
+ * it supports locking). Adding and removing tickets is done while holding a lock on a <code>.lock</code> file in the
+ * directory, so that a body is never deleted while a new reference to it is being added.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class FileBlobStore implements BlobStore {
+
+    private static final Pattern REF = Pattern.compile("[0-9a-f]{64}\\.[0-9a-f-]{36}");
+
+    private static final String TICKET_SUFFIX = ".ref";
+
+    /* File locks are held by the whole process, so threads must also exclude each other */
+    private static final Map<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private final Path dir;
+
+    /**
+     * Use the given directory, creating it if necessary.
+     *
+     * @param dir Directory.
+     */
+    public FileBlobStore(Path dir) {
+        try {
+            this.dir = Files.createDirectories(dir).toRealPath();
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not create blob directory " + dir, e);
+        }
+    }
+
+    @Override
+    public String put(RecordBody body) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, "blob-", ".tmp");
+            try (InputStream in = body.openStream();
+                    OutputStream out = new DigestOutputStream(Files.newOutputStream(tmp), digest)) {
+                RecordBody.copy(in, out);
+            }
+
+            final String hash = hex(digest.digest());
+            final String ref = hash + "." + UUID.randomUUID();
+            final Path blob = blobFile(hash);
+            final Path source = tmp;
+
+            locked(() -> {
+                try {
+                    Files.createDirectories(blob.getParent());
+                    if (!Files.exists(blob)) {
+                        Files.move(source, blob, ATOMIC_MOVE);
+                    }
+                    Files.createFile(ticketFile(ref));
+                    return null;
+                } catch (final IOException e) {
+                    throw new RuntimeException("Could not store blob " + hash, e);
+                }
+            });
+
+            return ref;
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not store blob", e);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (final IOException e) {
+                    // Only a leftover temporary file
+                }
+            }
+        }
+    }
+
+    @Override
+    public RecordBody get(String ref) {
+        final Path blob = blobFile(hash(ref));
+        if (!Files.exists(ticketFile(ref)) || !Files.exists(blob)) {
+            throw new RuntimeException("No blob for reference " + ref);
+        }
+        return RecordBody.of(blob, false);
+    }
+
+    @Override
+    public void release(String ref) {
+        final String hash = hash(ref);
+
+        locked(() -> {
+            try {
+                Files.deleteIfExists(ticketFile(ref));
+
+                final Path blob = blobFile(hash);
+                try (DirectoryStream<Path> tickets = Files.newDirectoryStream(blob.getParent(),
+                        hash + ".*" + TICKET_SUFFIX)) {
+                    if (!tickets.iterator().hasNext()) {
+                        Files.deleteIfExists(blob);
+                    }
+                }
+                return null;
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not release blob reference " + ref, e);
+            }
+        });
+    }
+
+    private <T> T locked(Supplier<T> action) {
+        synchronized (MONITORS.computeIfAbsent(dir, d -> new Object())) {
+            try (FileChannel channel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+                    FileLock lock = channel.lock()) {
+                return action.get();
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not lock blob directory " + dir, e);
+            }
+        }
+    }
+
+    private Path blobFile(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path ticketFile(String ref) {
+        return dir.resolve(ref.substring(0, 2)).resolve(ref + TICKET_SUFFIX);
+    }
+
+    // Also validates the reference, since it comes from a message, and is used to build a path
+    private static String hash(String ref) {
+        if (ref == null || !REF.matcher(ref).matches()) {
+            throw new IllegalArgumentException("Invalid blob reference " + ref);
+        }
+        return ref.substring(0, 64);
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
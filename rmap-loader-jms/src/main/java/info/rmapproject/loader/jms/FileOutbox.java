@@ -0,0 +1,414 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.HarvestRecordConverter.readRecord;
+import static info.rmapproject.loader.jms.HarvestRecordConverter.writeRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+
+/**
+ * Append-only queue of records on disk, for holding them while the broker cannot be reached.
+ * <p>
+ * Records are appended to segment files in a directory, named in order, and read back in the same order. Once every
+ * record in a segment has been removed, the segment is deleted. How far the first segment has been read is not saved,
+ * so when the outbox is next opened, it is read again from its start. A record may therefore be sent more than once,
+ * but is never lost.
+ * </p>
+ * <p>
+ * The outbox is bounded by size. Once its segments reach the maximum size, {@link #append(String, HarvestRecord)}
+ * blocks until a segment has been drained.
+ * </p>
+ * <p>
+ * Appends are written through to the operating system, but only forced to the disk by {@link #flush()}, or once the
+ * segment they are in is full.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class FileOutbox implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(FileOutbox.class);
+
+    private static final String SUFFIX = ".outbox";
+
+    private final Path dir;
+
+    private long maxSize = 1L << 30;
+
+    private long segmentSize = 16L << 20;
+
+    /* Segments, oldest first; the last is appended to, and the first read from */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    /* Total size of all segments */
+    private long size;
+
+    /* Records appended, but not yet removed */
+    private long count;
+
+    private FileOutputStream file;
+
+    private DataOutputStream out;
+
+    private DataInputStream in;
+
+    /* Record read, but not yet removed */
+    private Entry next;
+
+    private boolean closed;
+
+    /**
+     * Open an outbox in the given directory, picking up any records left in it.
+     *
+     * @param dir Directory for segment files. It is created if it does not exist.
+     */
+    public FileOutbox(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            for (final Path path : existingSegments()) {
+                final Segment segment = scan(path);
+                segments.add(segment);
+                size += segment.bytes;
+                count += segment.entries;
+            }
+
+            if (segments.isEmpty()) {
+                segments.add(new Segment(dir.resolve(String.format("%020d%s", 0, SUFFIX))));
+            }
+
+            openTail();
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not open outbox in " + dir, e);
+        }
+
+        if (count > 0) {
+            LOG.info("Outbox {} has {} records waiting to be sent", dir, count);
+        }
+    }
+
+    /**
+     * Largest total size of the outbox.
+     *
+     * @param bytes Size in bytes. Default is 1073741824 (1GB).
+     * @return configured outbox.
+     */
+    public synchronized FileOutbox withMaxSize(long bytes) {
+        this.maxSize = bytes;
+        this.segmentSize = Math.min(segmentSize, Math.max(bytes / 4, 1));
+        return this;
+    }
+
+    /**
+     * Append a record, waiting for room if the outbox is full.
+     *
+     * @param queue Name of the queue the record is for.
+     * @param record The record. Its body is read before this returns.
+     */
+    public void append(String queue, HarvestRecord record) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream entry = new DataOutputStream(bytes)) {
+            entry.writeUTF(queue);
+            writeRecord(record, entry);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not read record body", e);
+        }
+
+        synchronized (this) {
+            while (size >= maxSize && !closed) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for room in outbox", e);
+                }
+            }
+
+            if (closed) {
+                throw new IllegalStateException("Outbox is closed");
+            }
+
+            try {
+                if (segments.getLast().bytes >= segmentSize) {
+                    roll();
+                }
+
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+                out.flush();
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not write to outbox " + dir, e);
+            }
+
+            final Segment tail = segments.getLast();
+            tail.bytes += 4 + bytes.size();
+            tail.entries++;
+            size += 4 + bytes.size();
+            count++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the oldest record, without removing it.
+     * <p>
+     * Returns the same record until it is {@link #remove() removed}.
+     * </p>
+     *
+     * @return the oldest record, or null if the outbox has been closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized Entry take() throws InterruptedException {
+        while (next == null) {
+            if (closed) {
+                return null;
+            }
+
+            final Segment head = segments.getFirst();
+            if (head.read < head.entries) {
+                next = read(head);
+            } else if (segments.size() > 1) {
+                dropHead();
+            } else {
+                wait();
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Remove the record returned by {@link #take()}, because it has been sent.
+     */
+    synchronized void remove() {
+        if (next == null) {
+            return;
+        }
+
+        next = null;
+        count--;
+
+        final Segment head = segments.getFirst();
+        if (head.read == head.entries && segments.size() > 1) {
+            dropHead();
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Determine if every record appended has been removed.
+     *
+     * @return true if empty.
+     */
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Number of records waiting to be removed.
+     *
+     * @return the number of records.
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Wait until every record appended has been removed.
+     */
+    public synchronized void awaitEmpty() {
+        while (count > 0 && !closed) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for outbox to drain", e);
+            }
+        }
+    }
+
+    /**
+     * Force records appended so far to the disk.
+     */
+    public synchronized void flush() {
+        try {
+            out.flush();
+            file.getChannel().force(false);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not flush outbox " + dir, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        notifyAll();
+
+        try {
+            out.close();
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private List<Path> existingSegments() throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(paths::add);
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    // Count the entries in a segment, truncating any partial entry left at its end by a crash
+    private static Segment scan(Path path) throws IOException {
+        final Segment segment = new Segment(path);
+        final long length = Files.size(path);
+
+        try (DataInputStream entries = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (segment.bytes + 4 <= length) {
+                final int entry = entries.readInt();
+                if (segment.bytes + 4 + entry > length) {
+                    break;
+                }
+                entries.skipBytes(entry);
+                segment.bytes += 4 + entry;
+                segment.entries++;
+            }
+        }
+
+        if (segment.bytes < length) {
+            LOG.warn("Truncating incomplete record at the end of outbox segment {}", path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(segment.bytes);
+            }
+        }
+
+        return segment;
+    }
+
+    private void openTail() throws IOException {
+        file = new FileOutputStream(segments.getLast().path.toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(file));
+    }
+
+    // Start a new segment, following the current last one
+    private void roll() throws IOException {
+        // A full segment is never written again, and flush() only forces the tail, so force it now
+        out.flush();
+        file.getChannel().force(false);
+        out.close();
+        final String last = segments.getLast().path.getFileName().toString();
+        final long sequence = Long.parseLong(last.substring(0, last.length() - SUFFIX.length())) + 1;
+        segments.add(new Segment(dir.resolve(String.format("%020d%s", sequence, SUFFIX))));
+        openTail();
+    }
+
+    private Entry read(Segment head) {
+        try {
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(head.path)));
+            }
+
+            final byte[] entry = new byte[in.readInt()];
+            in.readFully(entry);
+            head.read++;
+
+            try (DataInputStream fields = new DataInputStream(new ByteArrayInputStream(entry))) {
+                return new Entry(fields.readUTF(), readRecord(fields));
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not read from outbox segment " + head.path, e);
+        }
+    }
+
+    // Delete the first segment, every record of which has been removed
+    private void dropHead() {
+        final Segment head = segments.removeFirst();
+        try {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+            Files.deleteIfExists(head.path);
+        } catch (final IOException e) {
+            LOG.warn("Could not delete outbox segment {}", head.path, e);
+        }
+        size -= head.bytes;
+        notifyAll();
+    }
+
+    /** A record for a queue */
+    static class Entry {
+
+        final String queue;
+
+        final HarvestRecord record;
+
+        Entry(String queue, HarvestRecord record) {
+            this.queue = queue;
+            this.record = record;
+        }
+    }
+
+    private static class Segment {
+
+        final Path path;
+
+        long bytes;
+
+        long entries;
+
+        /* Entries read so far; only the first segment is read from */
+        long read;
+
+        Segment(Path path) {
+            this.path = path;
+        }
+    }
+}
@@ -18,9 +18,25 @@ package info.rmapproject.loader.jms;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.jms.BytesMessage;
 import javax.jms.JMSException;
@@ -29,6 +45,7 @@ import javax.jms.Session;
 import javax.jms.TextMessage;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
 import info.rmapproject.loader.model.HarvestInfo;
 import info.rmapproject.loader.model.RecordInfo;
 
@@ -37,11 +54,113 @@ import info.rmapproject.loader.model.RecordInfo;
  * <p>
  * This is a low-level class typically not used by clients.
  * </p>
+ * <p>
+ * Records are written as a {@link TextMessage} by default, as they always have been, or as a {@link BytesMessage}
+ * containing the raw bytes of the body if {@link Encoding#BYTES} is specified. Either way, the charset of the body is
+ * recorded in the {@link JmsHeaders#PROP_HARVEST_RECORD_CHARSET} header. When reading a {@link TextMessage}, the text
+ * is encoded in that charset, or in UTF-8 if the header is absent (as it is in messages written by earlier versions).
+ * The body of a {@link BytesMessage} is read from the message as it is needed, rather than copied when the record is
+ * created.
+ * </p>
+ * <p>
+ * The body of a {@link BytesMessage} may optionally be compressed, in which case the
+ * {@link JmsHeaders#PROP_HARVEST_RECORD_CONTENT_ENCODING} header names the compression (always {@code deflate}, i.e.
+ * a zlib stream). Compressed bodies are decompressed transparently when read. Whether to compress is decided by the
+ * producer, per destination (see {@link HarvestRecordWriter#setCompression}): a consumer has no way to decline
+ * compressed messages sent to its queue, so only queues whose consumers can inflate should receive them.
+ * </p>
+ * <p>
+ * Many small records may be packed into a single <em>envelope</em> message, which is a {@link BytesMessage} with a
+ * {@link JmsHeaders#PROP_HARVEST_ENVELOPE} header giving the number of records. Its body (which may be compressed, as
+ * above) is the number of records as a 32 bit int, then for each record:
+ * </p>
+ * <ul>
+ * <li>A byte of flags, indicating which record info fields are present: record id (1), date (2), src (4), content type
+ * (8), harvest id (16), harvest date (32), and harvest src (64)</li>
+ * <li>Each present field, in that order, dates as a 64 bit long of milliseconds since the epoch, and others as
+ * modified UTF-8 (as written by {@link DataOutputStream#writeUTF(String)})</li>
+ * <li>The length of the body as a 32 bit int (-1 if there is none), followed by the bytes of the body</li>
+ * </ul>
+ * <p>
+ * All numbers are big-endian.
+ * </p>
+ * <p>
+ * Records may be divided into partitions by a hash of their id (see {@link #partition(URI, int)}), so that every
+ * version of a record is in the same partition. A message is stamped with its partition in the
+ * {@link JmsHeaders#PROP_HARVEST_PARTITION} header, and in the {@link JmsHeaders#PROP_GROUP_ID} header, which makes
+ * it part of an ActiveMQ message group of that name. The broker delivers all messages of a group to one consumer at a
+ * time, in order, so two versions of a record are never processed concurrently. Alternatively, consumers may be
+ * assigned partitions by selectors on the group header.
+ * </p>
  *
  * @author apb@jhu.edu
  */
 public class HarvestRecordConverter implements JmsHeaders {
 
+    /**
+     * Type of message a record body is written as.
+     */
+    public enum Encoding {
+
+        /** A {@link TextMessage}, with the body decoded to text */
+        TEXT,
+
+        /** A {@link BytesMessage}, with the raw bytes of the body */
+        BYTES
+    }
+
+    /**
+     * Whether, and how, to compress record bodies.
+     */
+    public static final class Compression {
+
+        /** Do not compress */
+        public static final Compression NONE = new Compression(false, 0, Deflater.DEFAULT_COMPRESSION);
+
+        final boolean enabled;
+
+        final long threshold;
+
+        final int level;
+
+        private Compression(boolean enabled, long threshold, int level) {
+            this.enabled = enabled;
+            this.threshold = threshold;
+            this.level = level;
+        }
+
+        /**
+         * Compress bodies with deflate, at the default level.
+         *
+         * @param threshold Only compress bodies of at least this many bytes (or of unknown length).
+         * @return Compression settings.
+         */
+        public static Compression deflate(long threshold) {
+            return new Compression(true, threshold, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        /**
+         * Compress bodies with deflate, favouring speed over size.
+         * <p>
+         * Typically several times faster than {@link #deflate(long)}, at the cost of somewhat larger output. The
+         * result is readable the same way.
+         * </p>
+         *
+         * @param threshold Only compress bodies of at least this many bytes (or of unknown length).
+         * @return Compression settings.
+         */
+        public static Compression fast(long threshold) {
+            return new Compression(true, threshold, Deflater.BEST_SPEED);
+        }
+
+        boolean appliesTo(RecordBody body) {
+            return enabled && (body.length() < 0 || body.length() >= threshold);
+        }
+    }
+
+    /** Value of the content encoding header for deflated bodies */
+    public static final String DEFLATE = "deflate";
+
     /**
      * Create a HarvestRecord from a JMS message.
      *
@@ -51,45 +170,418 @@ public class HarvestRecordConverter implements JmsHeaders {
      */
     public static HarvestRecord fromMessage(Message m) throws JMSException {
         final HarvestRecord record = new HarvestRecord();
-        record.setBody(body(m));
+        record.setRecordBody(body(m));
         record.setRecordInfo(getRecordInfo(m));
 
         return record;
     }
 
+    /**
+     * Create a {@link TextMessage} from a HarvestRecord.
+     *
+     * @param record The record.
+     * @param session Session used to create the message.
+     * @return the message.
+     * @throws JMSException
+     */
     public static Message toMessage(HarvestRecord record, Session session) throws JMSException {
-        final TextMessage message = session.createTextMessage();
+        return toMessage(record, session, Encoding.TEXT);
+    }
+
+    /**
+     * Create a message from a HarvestRecord.
+     *
+     * @param record The record.
+     * @param session Session used to create the message.
+     * @param encoding Type of message to create.
+     * @return the message.
+     * @throws JMSException
+     */
+    public static Message toMessage(HarvestRecord record, Session session, Encoding encoding) throws JMSException {
+        return toMessage(record, session, encoding, Compression.NONE);
+    }
+
+    /**
+     * Create a message from a HarvestRecord, possibly compressing its body.
+     *
+     * @param record The record.
+     * @param session Session used to create the message.
+     * @param encoding Type of message to create.
+     * @param compression Compression to apply to the body; only applies to {@link Encoding#BYTES}.
+     * @return the message.
+     * @throws JMSException
+     */
+    public static Message toMessage(HarvestRecord record, Session session, Encoding encoding,
+            Compression compression) throws JMSException {
+        final Message message = encoding == Encoding.TEXT ? session.createTextMessage() : session.createBytesMessage();
 
         final RecordInfo recordInfo = record.getRecordInfo();
         if (recordInfo != null) {
             writeRecordInfo(recordInfo, message);
         }
 
-        if (record.getBody() != null) {
-            message.setText(new String(record.getBody()));
+        final Charset charset = charset(recordInfo);
+        message.setStringProperty(PROP_HARVEST_RECORD_CHARSET, charset.name());
+
+        if (record.getRecordBody() != null) {
+            if (encoding == Encoding.TEXT) {
+                ((TextMessage) message).setText(text(record.getRecordBody(), charset));
+            } else if (compression.appliesTo(record.getRecordBody())) {
+                message.setStringProperty(PROP_HARVEST_RECORD_CONTENT_ENCODING, DEFLATE);
+                writeDeflated(record.getRecordBody(), (BytesMessage) message, compression.level);
+            } else {
+                writeBytes(record.getRecordBody(), (BytesMessage) message);
+            }
         }
+
         return message;
     }
 
-    private static byte[] body(Message m) throws JMSException {
-        if (m instanceof TextMessage) {
-            return ((TextMessage) m).getText().getBytes(UTF_8);
-        } else if (m instanceof BytesMessage) {
+    // The charset parameter of the content type, if present and supported; otherwise UTF-8
+    private static Charset charset(RecordInfo recordInfo) {
+        if (recordInfo == null || recordInfo.getContentType() == null) {
+            return UTF_8;
+        }
 
-            final ByteArrayOutputStream out = new ByteArrayOutputStream();
-            final byte[] buf = new byte[1024];
+        for (final String param : recordInfo.getContentType().split(";")) {
+            final String[] nameValue = param.trim().split("=", 2);
+            if (nameValue.length == 2 && nameValue[0].trim().equalsIgnoreCase("charset")) {
+                final String name = nameValue[1].trim().replace("\"", "");
+                try {
+                    return Charset.forName(name);
+                } catch (final IllegalArgumentException e) {
+                    return UTF_8;
+                }
+            }
+        }
 
+        return UTF_8;
+    }
+
+    // Copied in chunks, so that a large body (e.g. spooled to a file) is never held in memory twice
+    private static void writeBytes(RecordBody body, BytesMessage message) throws JMSException {
+        try {
+            try (InputStream in = body.openStream()) {
+                final byte[] buf = new byte[65536];
+                int len;
+                while ((len = in.read(buf)) > -1) {
+                    message.writeBytes(buf, 0, len);
+                }
+            }
+        } catch (final IOException e) {
+            throw readFailure(e);
+        }
+    }
+
+    private static void writeDeflated(RecordBody body, BytesMessage message, int level) throws JMSException {
+        final Deflater deflater = new Deflater(level);
+        try (InputStream in = body.openStream();
+                OutputStream out = new DeflaterOutputStream(new BytesMessageOutputStream(message), deflater, 65536)) {
+            final byte[] buf = new byte[65536];
             int len;
-            while ((len = ((BytesMessage) m).readBytes(buf)) > -1) {
+            while ((len = in.read(buf)) > -1) {
                 out.write(buf, 0, len);
             }
+        } catch (final IOException e) {
+            throw readFailure(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String text(RecordBody body, Charset charset) throws JMSException {
+        try {
+            // Decoded as it is read, so the body's bytes are never held in memory alongside the text
+            final StringBuilder text = new StringBuilder(
+                    body.length() > -1 ? (int) Math.min(body.length(), Integer.MAX_VALUE - 8) : 8192);
+            try (Reader in = new InputStreamReader(body.openStream(), charset)) {
+                final char[] buf = new char[8192];
+                int len;
+                while ((len = in.read(buf)) > -1) {
+                    text.append(buf, 0, len);
+                }
+            }
+            return text.toString();
+        } catch (final IOException e) {
+            throw readFailure(e);
+        }
+    }
+
+    /**
+     * Determine the partition of a record id.
+     * <p>
+     * This is a 32 bit FNV-1a hash of the id's characters, modulo the number of partitions, so is the same in any
+     * producer.
+     * </p>
+     *
+     * @param id Record id.
+     * @param partitions Number of partitions.
+     * @return the partition, from 0 to one less than the number of partitions.
+     */
+    public static int partition(URI id, int partitions) {
+        final String s = id.toString();
 
-            return out.toByteArray();
+        int h = 0x811c9dc5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+
+        return Math.floorMod(h, partitions);
+    }
+
+    /**
+     * Stamp a message with a partition.
+     *
+     * @param m The message.
+     * @param partition The partition.
+     * @throws JMSException
+     */
+    public static void setPartition(Message m, int partition) throws JMSException {
+        m.setIntProperty(PROP_HARVEST_PARTITION, partition);
+        m.setStringProperty(PROP_GROUP_ID, Integer.toString(partition));
+    }
+
+    /**
+     * Determine if a message is an envelope containing multiple records.
+     *
+     * @param m The message.
+     * @return true if it is an envelope.
+     * @throws JMSException
+     */
+    public static boolean isEnvelope(Message m) throws JMSException {
+        return m.propertyExists(PROP_HARVEST_ENVELOPE);
+    }
+
+    /**
+     * Pack records into an envelope message.
+     *
+     * @param records The records. Their bodies are read into memory.
+     * @param session Session used to create the message.
+     * @param compression Compression to apply to the envelope as a whole.
+     * @return the message.
+     * @throws JMSException
+     */
+    public static Message toEnvelope(List<HarvestRecord> records, Session session, Compression compression)
+            throws JMSException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(records.size());
+            for (final HarvestRecord record : records) {
+                writeRecord(record, out);
+            }
+        } catch (final IOException e) {
+            throw readFailure(e);
+        }
+
+        final BytesMessage message = session.createBytesMessage();
+        message.setIntProperty(PROP_HARVEST_ENVELOPE, records.size());
+
+        final RecordBody body = RecordBody.of(bytes.toByteArray());
+        if (compression.appliesTo(body)) {
+            message.setStringProperty(PROP_HARVEST_RECORD_CONTENT_ENCODING, DEFLATE);
+            writeDeflated(body, message, compression.level);
+        } else {
+            writeBytes(body, message);
+        }
+
+        return message;
+    }
+
+    /**
+     * Unpack the records in an envelope message.
+     * <p>
+     * Record bodies share the memory of the envelope, rather than each being copied.
+     * </p>
+     *
+     * @param m The message.
+     * @return the records, in the order they were packed.
+     * @throws JMSException
+     */
+    public static List<HarvestRecord> fromEnvelope(Message m) throws JMSException {
+        final byte[] content;
+        try {
+            content = body(m).toByteArray();
+        } catch (final IOException e) {
+            throw readFailure(e);
+        }
+
+        try {
+            return unpack(content);
+        } catch (final IOException e) {
+            final JMSException x = new JMSException("Corrupt envelope: " + e.getMessage());
+            x.setLinkedException(e);
+            throw x;
+        }
+    }
+
+    /**
+     * Unpack the records in the body of an envelope, for consumers that do not read it from a JMS message.
+     * <p>
+     * Any compression must already have been undone. The stream is read to the end, but not closed.
+     * </p>
+     *
+     * @param body Stream of the envelope's body.
+     * @return the records, in the order they were packed.
+     * @throws IOException if the body cannot be read, or is not a valid envelope.
+     */
+    public static List<HarvestRecord> fromEnvelope(InputStream body) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        RecordBody.copy(body, content);
+        return unpack(content.toByteArray());
+    }
+
+    // Records of an envelope, whose bodies share its memory
+    private static List<HarvestRecord> unpack(byte[] content) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content))) {
+            final int count = in.readInt();
+            final List<HarvestRecord> records = new ArrayList<>(count);
+            int position = 4;
+            for (int i = 0; i < count; i++) {
+                final HarvestRecord record = new HarvestRecord();
+                record.setRecordInfo(readInfo(in));
+
+                final int length = in.readInt();
+                position = content.length - in.available();
+                if (length > -1) {
+                    record.setRecordBody(RecordBody.of(ByteBuffer.wrap(content, position, length)));
+                    if (in.skip(length) != length) {
+                        throw new IOException("Truncated envelope");
+                    }
+                }
+
+                records.add(record);
+            }
+            return records;
+        }
+    }
+
+    // A record, framed as in an envelope; also used by the outbox
+    static void writeRecord(HarvestRecord record, DataOutputStream out) throws IOException {
+        final RecordInfo info = record.getRecordInfo() != null ? record.getRecordInfo() : new RecordInfo();
+        final HarvestInfo harvest = info.getHarvestInfo() != null ? info.getHarvestInfo() : new HarvestInfo();
+
+        int flags = 0;
+        flags |= info.getId() != null ? 1 : 0;
+        flags |= info.getDate() != null ? 2 : 0;
+        flags |= info.getSrc() != null ? 4 : 0;
+        flags |= info.getContentType() != null ? 8 : 0;
+        flags |= harvest.getId() != null ? 16 : 0;
+        flags |= harvest.getDate() != null ? 32 : 0;
+        flags |= harvest.getSrc() != null ? 64 : 0;
+        out.writeByte(flags);
+
+        if (info.getId() != null) {
+            out.writeUTF(info.getId().toString());
+        }
+        if (info.getDate() != null) {
+            out.writeLong(info.getDate().getTime());
+        }
+        if (info.getSrc() != null) {
+            out.writeUTF(info.getSrc().toString());
+        }
+        if (info.getContentType() != null) {
+            out.writeUTF(info.getContentType());
+        }
+        if (harvest.getId() != null) {
+            out.writeUTF(harvest.getId().toString());
+        }
+        if (harvest.getDate() != null) {
+            out.writeLong(harvest.getDate().getTime());
+        }
+        if (harvest.getSrc() != null) {
+            out.writeUTF(harvest.getSrc().toString());
+        }
+
+        if (record.getRecordBody() == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] body = record.getRecordBody().toByteArray();
+            out.writeInt(body.length);
+            out.write(body);
+        }
+    }
+
+    // Read a record written by writeRecord(), with its body copied into memory
+    static HarvestRecord readRecord(DataInputStream in) throws IOException {
+        final HarvestRecord record = new HarvestRecord();
+        record.setRecordInfo(readInfo(in));
+
+        final int length = in.readInt();
+        if (length > -1) {
+            final byte[] body = new byte[length];
+            in.readFully(body);
+            record.setRecordBody(RecordBody.of(body));
+        }
+
+        return record;
+    }
+
+    private static RecordInfo readInfo(DataInputStream in) throws IOException {
+        final RecordInfo info = new RecordInfo();
+        final HarvestInfo harvest = new HarvestInfo();
+        info.setHarvestInfo(harvest);
+
+        final int flags = in.readByte();
+        if ((flags & 1) != 0) {
+            info.setId(URI.create(in.readUTF()));
+        }
+        if ((flags & 2) != 0) {
+            info.setDate(new Date(in.readLong()));
+        }
+        if ((flags & 4) != 0) {
+            info.setSrc(URI.create(in.readUTF()));
+        }
+        if ((flags & 8) != 0) {
+            info.setContentType(in.readUTF());
+        }
+        if ((flags & 16) != 0) {
+            harvest.setId(URI.create(in.readUTF()));
+        }
+        if ((flags & 32) != 0) {
+            harvest.setDate(new Date(in.readLong()));
+        }
+        if ((flags & 64) != 0) {
+            harvest.setSrc(URI.create(in.readUTF()));
+        }
+
+        return info;
+    }
+
+    private static JMSException readFailure(IOException e) {
+        final JMSException x = new JMSException("Could not read record body: " + e.getMessage());
+        x.setLinkedException(e);
+        return x;
+    }
+
+    private static RecordBody body(Message m) throws JMSException {
+        if (m instanceof TextMessage) {
+            final String text = ((TextMessage) m).getText();
+            return RecordBody.of(text != null ? text.getBytes(messageCharset(m)) : new byte[0]);
+        } else if (m instanceof BytesMessage) {
+            final boolean deflated = m.propertyExists(PROP_HARVEST_RECORD_CONTENT_ENCODING);
+            if (deflated && !DEFLATE.equals(m.getStringProperty(PROP_HARVEST_RECORD_CONTENT_ENCODING))) {
+                throw new JMSException("Unsupported content encoding " +
+                        m.getStringProperty(PROP_HARVEST_RECORD_CONTENT_ENCODING));
+            }
+
+            return new BytesMessageBody((BytesMessage) m, deflated);
         } else {
             throw new JMSException("Unknown message type " + m.getClass());
         }
     }
 
+    private static Charset messageCharset(Message m) throws JMSException {
+        if (m.propertyExists(PROP_HARVEST_RECORD_CHARSET)) {
+            try {
+                return Charset.forName(m.getStringProperty(PROP_HARVEST_RECORD_CHARSET));
+            } catch (final IllegalArgumentException e) {
+                throw new JMSException("Unsupported charset " + m.getStringProperty(PROP_HARVEST_RECORD_CHARSET));
+            }
+        }
+        return UTF_8;
+    }
+
     private static RecordInfo getRecordInfo(Message m) throws JMSException {
 
         final RecordInfo recordInfo = new RecordInfo();
@@ -150,6 +642,110 @@ public class HarvestRecordConverter implements JmsHeaders {
         }
     }
 
+    /** Writes to the body of a BytesMessage */
+    private static class BytesMessageOutputStream extends OutputStream {
+
+        final BytesMessage message;
+
+        BytesMessageOutputStream(BytesMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                message.writeBytes(b, off, len);
+            } catch (final JMSException e) {
+                throw new IOException("Could not write message body", e);
+            }
+        }
+    }
+
+    /**
+     * Body read from a BytesMessage as it is needed, and decompressed on the fly if it is compressed.
+     * <p>
+     * It may be read more than once, as each stream starts again from the beginning of the message.
+     * </p>
+     */
+    private static class BytesMessageBody implements RecordBody {
+
+        final BytesMessage message;
+
+        final boolean deflated;
+
+        BytesMessageBody(BytesMessage message, boolean deflated) {
+            this.message = message;
+            this.deflated = deflated;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            try {
+                // Read from the start (and make the body readable, if the message was never sent)
+                message.reset();
+            } catch (final JMSException e) {
+                throw new IOException("Could not read message body", e);
+            }
+
+            final InputStream in = new BytesMessageInputStream(message);
+            return deflated ? new InflaterInputStream(new BufferedInputStream(in, 65536)) : in;
+        }
+
+        @Override
+        public long length() {
+            if (deflated) {
+                return -1;
+            }
+            try {
+                return message.getBodyLength();
+            } catch (final JMSException e) {
+                return -1;
+            }
+        }
+    }
+
+    /** Reads the body of a BytesMessage */
+    private static class BytesMessageInputStream extends InputStream {
+
+        final BytesMessage message;
+
+        BytesMessageInputStream(BytesMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                if (off == 0) {
+                    return message.readBytes(b, len);
+                }
+
+                final byte[] buf = new byte[len];
+                final int read = message.readBytes(buf, len);
+                if (read > 0) {
+                    System.arraycopy(buf, 0, b, off, read);
+                }
+                return read;
+            } catch (final JMSException e) {
+                throw new IOException("Could not read message body", e);
+            }
+        }
+    }
+
     private static void writeHarvestInfo(HarvestInfo harvestInfo, Message message) throws JMSException {
         if (harvestInfo.getId() != null) {
             message.setStringProperty(PROP_HARVEST_ID, harvestInfo.getId().toString());
@@ -16,11 +16,14 @@
 
 package info.rmapproject.loader.jms;
 
+import static info.rmapproject.loader.jms.HarvestRecordConverter.fromEnvelope;
 import static info.rmapproject.loader.jms.HarvestRecordConverter.fromMessage;
+import static info.rmapproject.loader.jms.HarvestRecordConverter.isEnvelope;
 
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 
@@ -32,15 +35,40 @@ import info.rmapproject.loader.HarvestRecord;
  * Listens for JMS messages. On receipt, it converts to a {@link HarvestRecord} and feeds the given consumer for
  * further processing. On failure, it passes the original message along an error handler, if provided.
  * </p>
+ * <p>
+ * If the message carries a claim check rather than the record body, the body is retrieved from the blob store given
+ * by {@link #withBlobStore(BlobStore)} as the consumer reads it. Once the consumer completes successfully, the claim
+ * check is released, so that the body can be removed from the store.
+ * </p>
+ * <p>
+ * If the message is an envelope of several records, the consumer is fed each in turn. A failure of one record does
+ * not prevent the rest from being consumed; it is passed to the record error handler, if provided, along with the
+ * failed record. Otherwise, the first failure is passed to the error handler along with the whole envelope, once
+ * every record has been tried.
+ * </p>
+ * <p>
+ * Given a {@link DuplicateFilter}, records that have already been consumed successfully are dropped before reaching
+ * the consumer, as are any claim checks they carry. Each record consumed successfully is added to the filter.
+ * </p>
+ * <p>
+ * Records that do not arrive by JMS, such as those passed within a process by an {@link InProcessTransport}, are fed
+ * to the consumer by {@link #onRecord(HarvestRecord)}.
+ * </p>
  *
  * @author apb@jhu.edu
  */
-public class HarvestRecordListener implements MessageListener {
+public class HarvestRecordListener implements MessageListener, JmsHeaders {
 
     private final Consumer<HarvestRecord> consumer;
 
     private BiConsumer<Message, Exception> errorHandler;
 
+    private RecordExceptionHandler recordErrorHandler;
+
+    private BlobStore blobs;
+
+    private DuplicateFilter duplicates;
+
     public HarvestRecordListener(Consumer<HarvestRecord> consumer) {
         this.consumer = consumer;
     }
@@ -53,7 +81,29 @@ public class HarvestRecordListener implements MessageListener {
     public void onMessage(Message m) {
 
         try {
-            consumer.accept(fromMessage(m));
+            if (isEnvelope(m)) {
+                onEnvelope(m);
+                return;
+            }
+
+            final HarvestRecord record = fromMessage(m);
+
+            final String ref = m.propertyExists(PROP_HARVEST_RECORD_BLOB)
+                    ? m.getStringProperty(PROP_HARVEST_RECORD_BLOB)
+                    : null;
+
+            if (ref != null) {
+                if (blobs == null) {
+                    throw new IllegalStateException("Record body was sent by claim check, but there is no blob store");
+                }
+                record.setRecordBody(blobs.get(ref));
+            }
+
+            consume(record);
+
+            if (ref != null) {
+                blobs.release(ref);
+            }
         } catch (final Exception e) {
             if (errorHandler != null) {
                 errorHandler.accept(m, e);
@@ -61,8 +111,103 @@ public class HarvestRecordListener implements MessageListener {
         }
     }
 
+    /**
+     * Feed the consumer a record directly, rather than from a message.
+     * <p>
+     * Duplicates are dropped, as for records from messages. Failures are thrown to the caller, rather than passed to
+     * the error handlers, as there is no message to pass them along with.
+     * </p>
+     *
+     * @param record The record.
+     */
+    public void onRecord(HarvestRecord record) {
+        consume(record);
+    }
+
+    private void onEnvelope(Message m) throws JMSException {
+        Exception failure = null;
+        for (final HarvestRecord record : fromEnvelope(m)) {
+            try {
+                consume(record);
+            } catch (final Exception e) {
+                if (recordErrorHandler != null) {
+                    recordErrorHandler.handle(m, record, e);
+                } else if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null && errorHandler != null) {
+            errorHandler.accept(m, failure);
+        }
+    }
+
+    // Feed the consumer a record, unless it is a duplicate
+    private void consume(HarvestRecord record) {
+        if (duplicates == null) {
+            consumer.accept(record);
+            return;
+        }
+
+        final DuplicateFilter.Key key = duplicates.key(record);
+        if (!duplicates.contains(key)) {
+            consumer.accept(record);
+            duplicates.add(key);
+        }
+    }
+
     public HarvestRecordListener withExceptionHandler(BiConsumer<Message, Exception> errorHandler) {
         this.errorHandler = errorHandler;
         return this;
     }
+
+    /**
+     * Handler for failures of individual records within an envelope.
+     *
+     * @param recordErrorHandler Handler given the envelope, the failed record, and the exception.
+     * @return configured listener.
+     */
+    public HarvestRecordListener withRecordExceptionHandler(RecordExceptionHandler recordErrorHandler) {
+        this.recordErrorHandler = recordErrorHandler;
+        return this;
+    }
+
+    /**
+     * Blob store from which to retrieve record bodies sent by claim check.
+     *
+     * @param store Blob store.
+     * @return configured listener.
+     */
+    public HarvestRecordListener withBlobStore(BlobStore store) {
+        this.blobs = store;
+        return this;
+    }
+
+    /**
+     * Filter for dropping records that have already been consumed.
+     *
+     * @param filter Duplicate filter.
+     * @return configured listener.
+     */
+    public HarvestRecordListener withDuplicateFilter(DuplicateFilter filter) {
+        this.duplicates = filter;
+        return this;
+    }
+
+    /**
+     * Handles the failure of a record within an envelope.
+     */
+    @FunctionalInterface
+    public interface RecordExceptionHandler {
+
+        /**
+         * Handle a failed record.
+         *
+         * @param envelope The envelope message containing the record.
+         * @param record The record.
+         * @param e The exception thrown by the consumer.
+         */
+        void handle(Message envelope, HarvestRecord record, Exception e);
+    }
 }
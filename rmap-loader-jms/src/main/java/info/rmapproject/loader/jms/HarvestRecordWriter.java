@@ -16,28 +16,163 @@
 
 package info.rmapproject.loader.jms;
 
+import static info.rmapproject.loader.jms.HarvestRecordConverter.partition;
+import static info.rmapproject.loader.jms.HarvestRecordConverter.setPartition;
 import static info.rmapproject.loader.jms.HarvestRecordConverter.toMessage;
 
-import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.Session;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Compression;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Encoding;
 
 /**
  * @author apb@jhu.edu
  */
-public class HarvestRecordWriter {
+public class HarvestRecordWriter implements JmsHeaders {
+
+    static final Logger LOG = LoggerFactory.getLogger(HarvestRecordWriter.class);
 
     private JmsClient jms;
 
-    private Supplier<Session> sessions;
+    private Encoding encoding = Encoding.TEXT;
+
+    private Compression compression = Compression.NONE;
+
+    private Predicate<String> compressedQueues = queue -> false;
+
+    private BlobStore blobs;
+
+    private long claimCheckThreshold;
+
+    private FileOutbox outbox;
+
+    private int partitions;
 
     public void setJmsClient(JmsClient client) {
         this.jms = client;
     }
 
+    /**
+     * Set the type of message records are written as.
+     *
+     * @param encoding Message encoding. Default is {@link Encoding#TEXT}.
+     */
+    public void setEncoding(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Compress record bodies written to the given queues.
+     * <p>
+     * Only applies to the {@link Encoding#BYTES} encoding. A consumer cannot turn away compressed messages once they
+     * are on its queue, so compression is opted into per queue: only enable it for queues whose consumers all inflate
+     * (as the loader's own consumers do). Records written to any other queue are sent uncompressed.
+     * </p>
+     *
+     * @param compression Compression. Default is {@link Compression#NONE}.
+     * @param queues Queues to compress record bodies for.
+     */
+    public void setCompression(Compression compression, Predicate<String> queues) {
+        this.compression = compression;
+        this.compressedQueues = queues;
+    }
+
+    /**
+     * Get the compression applied to record bodies written to a queue.
+     *
+     * @param queue The queue.
+     * @return the compression, {@link Compression#NONE} unless the queue was opted in.
+     */
+    public Compression getCompression(String queue) {
+        return compressedQueues.test(queue) ? compression : Compression.NONE;
+    }
+
+    /**
+     * Send large record bodies by claim check.
+     * <p>
+     * Bodies of at least the given size (or of unknown size) are put in the blob store, rather than sent through the
+     * broker. The message carries a reference to the body in the {@link JmsHeaders#PROP_HARVEST_RECORD_BLOB} header
+     * instead. Consumers must have access to the same blob store, and release the reference once done with the body.
+     * </p>
+     *
+     * @param store Blob store, or null to send all bodies through the broker.
+     * @param threshold Size, in bytes, of the smallest body to send by claim check.
+     */
+    public void setClaimCheck(BlobStore store, long threshold) {
+        this.blobs = store;
+        this.claimCheckThreshold = threshold;
+    }
+
+    /**
+     * Keep records in an outbox on disk while the broker cannot be reached.
+     * <p>
+     * While the client is not connected, records are appended to the outbox rather than waiting for the connection.
+     * A background thread sends them, in order, once it is. Until the outbox has been drained, new records are also
+     * appended to it, so that they are not sent ahead of older ones.
+     * </p>
+     * <p>
+     * Only records written by {@link #write(String, HarvestRecord)} or {@link #writeAsync(String, HarvestRecord)} of
+     * this class go through the outbox; batching and enveloping writers do not use it.
+     * </p>
+     *
+     * @param outbox The outbox.
+     */
+    public void setOutbox(FileOutbox outbox) {
+        this.outbox = outbox;
+
+        final Thread drainer = new Thread(this::drain, "outbox-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Divide records into partitions by a hash of their id.
+     * <p>
+     * Each message is stamped with its record's partition, and made part of the message group of that partition, so
+     * that every version of a record is consumed in order, by one consumer at a time (see
+     * {@link HarvestRecordConverter}). Records without an id are not partitioned. Every producer of a queue must use
+     * the same number of partitions.
+     * </p>
+     *
+     * @param partitions Number of partitions, or 0 to not partition records. Default is 0.
+     */
+    public void setPartitions(int partitions) {
+        if (partitions < 0) {
+            throw new IllegalArgumentException("Number of partitions must not be negative");
+        }
+        this.partitions = partitions;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Determine the partition of a record.
+     *
+     * @param record The record.
+     * @return the partition, or -1 if records are not partitioned, or the record has no id.
+     */
+    protected int partitionOf(HarvestRecord record) {
+        if (partitions == 0 || record.getRecordInfo() == null || record.getRecordInfo().getId() == null) {
+            return -1;
+        }
+        return partition(record.getRecordInfo().getId(), partitions);
+    }
+
     public HarvestRecordWriter(JmsClient client) {
         this.jms = client;
         init();
@@ -48,14 +183,166 @@ public class HarvestRecordWriter {
     }
 
     public void write(String queue, HarvestRecord record) {
+        if (outbox != null && (!jms.isConnected() || !outbox.isEmpty())) {
+            outbox.append(queue, record);
+            return;
+        }
+
+        try {
+            send(queue, record);
+        } catch (final RuntimeException e) {
+            if (outbox == null || jms.isConnected()) {
+                throw e;
+            }
+            outbox.append(queue, record);
+        }
+    }
+
+    // With an outbox, fail at once if the connection is lost, so that the record can go to the outbox instead
+    private void send(String queue, HarvestRecord record) {
+        final String ref = checkIn(record);
+        try {
+            jms.write(queue, session -> message(queue, record, ref, session), outbox != null ? 0 : -1);
+        } catch (final RuntimeException e) {
+            release(ref);
+            throw e;
+        }
+    }
+
+    /**
+     * Write a record without waiting for the broker to acknowledge it.
+     * <p>
+     * The record's body is read before this returns, so it may be released as soon as this returns.
+     * </p>
+     *
+     * @param queue Name of the queue.
+     * @param record The record.
+     * @return Future, completed once the broker has acknowledged the record.
+     * @see JmsClient#writeAsync(String, info.rmapproject.loader.jms.JmsClient.MessageCreator)
+     */
+    public CompletableFuture<Void> writeAsync(String queue, HarvestRecord record) {
+        if (outbox != null && (!jms.isConnected() || !outbox.isEmpty())) {
+            outbox.append(queue, record);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final String ref = checkIn(record);
         try {
-            jms.write(queue, toMessage(record, sessions.get()));
-        } catch (final JMSException e) {
-            throw new RuntimeException("Could not write harvest record", e);
+            final CompletableFuture<Void> written = jms.writeAsync(queue,
+                    session -> message(queue, record, ref, session), outbox != null ? 0 : -1).whenComplete((v, e) -> {
+                        if (e != null) {
+                            release(ref);
+                        }
+                    });
+
+            // Lost the connection since checking; the record has not been read yet, so can still go to the outbox
+            if (outbox != null && written.isCompletedExceptionally() && !jms.isConnected()) {
+                outbox.append(queue, record);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return written;
+        } catch (final RuntimeException e) {
+            release(ref);
+            throw e;
+        }
+    }
+
+    /**
+     * Put the record's body in the blob store, if it is to be sent by claim check.
+     *
+     * @param record The record.
+     * @return reference to the body in the blob store, or null if the body is to be sent in the message.
+     */
+    protected String checkIn(HarvestRecord record) {
+        if (blobs == null || record.getRecordBody() == null) {
+            return null;
+        }
+
+        final long length = record.getRecordBody().length();
+        if (length > -1 && length < claimCheckThreshold) {
+            return null;
+        }
+
+        return blobs.put(record.getRecordBody());
+    }
+
+    /**
+     * Release a claim check, if there is one, because the message carrying it was not sent.
+     *
+     * @param ref Reference returned by {@link #checkIn(HarvestRecord)}, or null.
+     */
+    protected void release(String ref) {
+        if (ref != null) {
+            blobs.release(ref);
+        }
+    }
+
+    /**
+     * Create the message for a record.
+     *
+     * @param queue Queue the message is written to.
+     * @param record The record.
+     * @param ref Claim check for its body, or null if the body goes in the message.
+     * @param session Session used to create the message.
+     * @return the message.
+     * @throws JMSException
+     */
+    protected Message message(String queue, HarvestRecord record, String ref, Session session) throws JMSException {
+        final Message message;
+        if (ref == null) {
+            message = toMessage(record, session, encoding, getCompression(queue));
+        } else {
+            final HarvestRecord withoutBody = new HarvestRecord();
+            withoutBody.setRecordInfo(record.getRecordInfo());
+
+            message = toMessage(withoutBody, session, encoding, Compression.NONE);
+            message.setStringProperty(PROP_HARVEST_RECORD_BLOB, ref);
+        }
+
+        final int partition = partitionOf(record);
+        if (partition > -1) {
+            setPartition(message, partition);
+        }
+        return message;
+    }
+
+    // Send records from the outbox, oldest first, until it is closed
+    private void drain() {
+        long delay = 0;
+        while (true) {
+            final FileOutbox.Entry entry;
+            try {
+                entry = outbox.take();
+            } catch (final InterruptedException e) {
+                return;
+            }
+
+            if (entry == null) {
+                return;
+            }
+
+            try {
+                send(entry.queue, entry.record);
+                outbox.remove();
+                delay = 0;
+            } catch (final RuntimeException e) {
+                // Back off as the client does when re-connecting, so drainers do not all hit a recovering broker
+                delay = jms.nextReconnectDelay(delay);
+                final long wait = JmsClient.jittered(delay);
+                LOG.info("Could not send record from outbox, will re-try in {}ms: {}", wait, e.getMessage());
+                try {
+                    Thread.sleep(wait);
+                } catch (final InterruptedException i) {
+                    return;
+                }
+            }
         }
     }
 
     public void init() {
-        this.sessions = jms.getSessionSupplier();
+        if (jms == null) {
+            throw new IllegalStateException("No JmsClient has been set");
+        }
     }
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
+
+/**
+ * Passes records between stages of a pipeline within one process, without a broker.
+ * <p>
+ * Each named queue is a {@link RecordRing}. Records written to a queue by a {@link #writer() writer} are taken from
+ * its ring by the threads {@link #listen(String, HarvestRecordListener, int) listening} to it, and fed to a
+ * {@link HarvestRecordListener}, so stages written for JMS can be chained as they are. Since a ring is bounded, a
+ * writer waits once its queue is full, so a fast stage cannot get more than the ring's capacity ahead of a slow one.
+ * </p>
+ * <p>
+ * Unlike a broker, nothing is persisted: records in the rings are lost if the process stops. Queues are matched by
+ * name exactly; there are no wildcards. Records are consumed in the order they were written only if a queue has a
+ * single listening thread.
+ * </p>
+ * <p>
+ * A listener's failures are passed to the error handler, along with the failed record, if one is given; otherwise
+ * they are logged. Once consumed (or failed), the record's body is closed.
+ * </p>
+ * <p>
+ * Records are tracked by the thread that wrote them: a record written by a listener while consuming another is
+ * tracked along with the other. So a thread extracting an archive can {@link #awaitIdle() wait} for that archive's
+ * records to pass through every stage, while other threads keep writing theirs.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class InProcessTransport implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(InProcessTransport.class);
+
+    private static final long POLL_MILLIS = 100;
+
+    /* In the order they were created */
+    private final Map<String, RecordRing> rings = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private final Map<String, List<Thread>> listeners = new ConcurrentHashMap<>();
+
+    /* Tracks the records written by each thread */
+    private final ThreadLocal<Tracker> origin = ThreadLocal.withInitial(Tracker::new);
+
+    /* Tracker of each record written, but not yet consumed */
+    private final Map<HarvestRecord, Tracker> origins = new ConcurrentHashMap<>();
+
+    private int capacity = 1024;
+
+    private long maxInMemory = 16 * 1024 * 1024;
+
+    private BiConsumer<HarvestRecord, Exception> errorHandler = (r, e) -> LOG.warn("Failed on record {}",
+            r.getRecordInfo() != null ? r.getRecordInfo().getId() : null, e);
+
+    /**
+     * Number of records each queue holds before writers wait.
+     *
+     * @param capacity Capacity, rounded up to a power of two. Default is 1024.
+     * @return configured transport.
+     */
+    public InProcessTransport withCapacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    /**
+     * Largest record body copied into memory when written; larger ones are spooled to a temporary file.
+     *
+     * @param bytes Size in bytes. Default is 16MB.
+     * @return configured transport.
+     */
+    public InProcessTransport withMaxInMemory(long bytes) {
+        this.maxInMemory = bytes;
+        return this;
+    }
+
+    /**
+     * Handler for records that fail.
+     *
+     * @param handler Handler given the failed record, and the exception. Default logs the failure.
+     * @return configured transport.
+     */
+    public InProcessTransport withExceptionHandler(BiConsumer<HarvestRecord, Exception> handler) {
+        this.errorHandler = handler;
+        return this;
+    }
+
+    /**
+     * Get the ring of a queue, creating it if necessary.
+     *
+     * @param queue Name of the queue.
+     * @return the ring.
+     */
+    public RecordRing ring(String queue) {
+        return rings.computeIfAbsent(queue, q -> new RecordRing(capacity));
+    }
+
+    /**
+     * Create a writer of records to this transport's queues.
+     * <p>
+     * As with a JMS writer, the record's body is read (into memory, or a temporary file if large) before writing
+     * returns, so the caller may release the record as soon as it does. Settings for encoding, compression, claim
+     * checks, outboxes and partitions have no effect.
+     * </p>
+     *
+     * @return the writer.
+     */
+    public HarvestRecordWriter writer() {
+        return new HarvestRecordWriter() {
+
+            @Override
+            public void write(String queue, HarvestRecord record) {
+                put(queue, record);
+            }
+
+            @Override
+            public CompletableFuture<Void> writeAsync(String queue, HarvestRecord record) {
+                put(queue, record);
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+    }
+
+    /**
+     * Feed the records written to a queue to a listener.
+     * <p>
+     * The listener is invoked by the given number of threads at once, so must be thread safe if there is more than
+     * one. The threads run until the queue is {@link #close(String) closed}, and empty.
+     * </p>
+     *
+     * @param queue Name of the queue.
+     * @param listener Listener for records.
+     * @param threads Number of threads.
+     */
+    public void listen(String queue, HarvestRecordListener listener, int threads) {
+        final RecordRing ring = ring(queue);
+        final List<Thread> workers = listeners.computeIfAbsent(queue, q -> new ArrayList<>());
+
+        synchronized (workers) {
+            for (int i = 0; i < threads; i++) {
+                final Thread worker = new Thread(() -> consume(ring, listener), queue + "-" + workers.size());
+                workers.add(worker);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Wait until every record written by the calling thread has been consumed.
+     * <p>
+     * A record written by a listener while consuming another is tracked along with the other, and counted before the
+     * other is done, so once idle, the records this thread wrote have passed through every stage. Records written by
+     * other threads are not waited for.
+     * </p>
+     *
+     * @return the number of those records that failed in any stage, since this was last called.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public long awaitIdle() throws InterruptedException {
+        return origin.get().await();
+    }
+
+    /**
+     * Accept no more records to a queue, and wait for its listening threads to consume what remains.
+     *
+     * @param queue Name of the queue.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void close(String queue) throws InterruptedException {
+        ring(queue).close();
+
+        final List<Thread> workers = listeners.getOrDefault(queue, new ArrayList<>());
+        synchronized (workers) {
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+        }
+    }
+
+    /**
+     * Close every queue, in the order they were created, waiting for each to be consumed.
+     */
+    @Override
+    public void close() {
+        final List<String> queues;
+        synchronized (rings) {
+            queues = new ArrayList<>(rings.keySet());
+        }
+
+        for (final String queue : queues) {
+            try {
+                close(queue);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void put(String queue, HarvestRecord record) {
+        final HarvestRecord copy = copy(record);
+
+        final Tracker tracker = origin.get();
+        tracker.add();
+        origins.put(copy, tracker);
+        try {
+            ring(queue).put(copy);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done(copy);
+            throw new RuntimeException("Interrupted writing to " + queue, e);
+        } catch (final RuntimeException e) {
+            done(copy);
+            throw e;
+        }
+    }
+
+    private void consume(RecordRing ring, HarvestRecordListener listener) {
+        while (true) {
+            final HarvestRecord record;
+            try {
+                record = ring.take(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                return;
+            }
+
+            if (record == null) {
+                if (ring.isClosed() && ring.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+
+            final Tracker tracker = origins.get(record);
+            origin.set(tracker);
+            try {
+                listener.onRecord(record);
+            } catch (final Exception e) {
+                tracker.failed();
+                errorHandler.accept(record, e);
+            } finally {
+                origin.remove();
+                done(record);
+            }
+        }
+    }
+
+    // Release a record's body, and count it as consumed
+    private void done(HarvestRecord record) {
+        if (record.getRecordBody() != null) {
+            try {
+                record.getRecordBody().close();
+            } catch (final IOException e) {
+                LOG.warn("Could not release body of record {}", record.getRecordInfo().getId(), e);
+            }
+        }
+
+        origins.remove(record).done();
+    }
+
+    // The writer's caller may release the record once written, so take a copy of its body
+    private HarvestRecord copy(HarvestRecord record) {
+        final HarvestRecord copy = new HarvestRecord();
+        copy.setRecordInfo(record.getRecordInfo());
+
+        final RecordBody body = record.getRecordBody();
+        if (body != null) {
+            try (InputStream in = body.openStream()) {
+                copy.setRecordBody(RecordBody.read(in, body.length(), maxInMemory));
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not read body of record " + record.getRecordInfo().getId(), e);
+            }
+        }
+
+        return copy;
+    }
+
+    /** Counts the records written by one thread, and those written while consuming them */
+    private static class Tracker {
+
+        private long inFlight;
+
+        private long failed;
+
+        synchronized void add() {
+            inFlight++;
+        }
+
+        synchronized void failed() {
+            failed++;
+        }
+
+        synchronized void done() {
+            if (--inFlight == 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized long await() throws InterruptedException {
+            while (inFlight > 0) {
+                wait();
+            }
+            final long count = failed;
+            failed = 0;
+            return count;
+        }
+    }
+}
@@ -1,201 +1,956 @@
-/*
- * Copyright 2017 Johns Hopkins University
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package info.rmapproject.loader.jms;
-
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
-
-import javax.jms.Connection;
-import javax.jms.ConnectionFactory;
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageListener;
-import javax.jms.MessageProducer;
-import javax.jms.Session;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * @author apb@jhu.edu
- */
-public class JmsClient implements AutoCloseable {
-
-    private Connection conn;
-
-    private volatile boolean connected = false;
-
-    private static final Logger LOG = LoggerFactory.getLogger(JmsClient.class);
-
-    private ConnectionFactory connectionFactory;
-
-    private final List<Consumer<Session>> sessionListeners = Collections.synchronizedList(new ArrayList<>());
-
-    private MessageProducer producer;
-
-    private Session session;
-
-    public void setConnectionFactory(ConnectionFactory factory) {
-        this.connectionFactory = factory;
-    }
-
-    public JmsClient(ConnectionFactory factory) {
-        this.connectionFactory = factory;
-        init();
-    }
-
-    public JmsClient() {
-
-    }
-
-    public void init() {
-
-        if (this.producer == null) {
-            addSessionListener(s -> {
-                try {
-                    this.producer = session.createProducer(null);
-                } catch (final JMSException e) {
-                    throw new JmsRuntimeException(e);
-                }
-            });
-        }
-
-        connect();
-    }
-
-    private void addSessionListener(Consumer<Session> listener) {
-        this.sessionListeners.add(listener);
-        if (connected) {
-            listener.accept(session);
-        }
-    }
-
-    public void listen(String queue, MessageListener listener) {
-        this.addSessionListener(s -> {
-            try {
-                final Destination dest = s.createQueue(queue);
-                s.createConsumer(dest).setMessageListener(listener);
-                LOG.info("Listening on " + dest);
-            } catch (final JMSException e) {
-                throw new JmsRuntimeException(e);
-            }
-        });
-    }
-
-    public Supplier<Session> getSessionSupplier() {
-        return () -> {
-            while (!connected) {
-                try {
-                    Thread.sleep(1000);
-                } catch (final InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException("Interrupted", e);
-                }
-            }
-
-            return session;
-        };
-    }
-
-    public synchronized void write(String queue, Message message) {
-        LOG.debug("Sending message to queue {}", queue);
-        while (!connected) {
-            try {
-                Thread.sleep(1000);
-            } catch (final InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException("Interrupted", e);
-            }
-        }
-
-        try {
-            producer.send(session.createQueue(queue), message);
-        } catch (final JMSException e) {
-            throw new RuntimeException("Error writing to queue " + queue, e);
-        }
-    }
-
-    private void connect() {
-        while (!connected) {
-            try {
-                conn = connectionFactory.createConnection();
-                conn.start();
-
-                session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
-                sessionListeners.forEach(s -> s.accept(session));
-
-                conn.setExceptionListener(e -> {
-                    if (connected) {
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Connection disrupted", e);
-                        } else {
-                            LOG.info("Connection disrupted", e.getMessage());
-                        }
-                        close();
-                        connect();
-                    }
-
-                });
-                connected = true;
-            } catch (final JMSException e) {
-                try {
-                    if (conn != null) {
-                        conn.close();
-                    }
-                } catch (final JMSException j) {
-                    LOG.warn("Error closing connection, j");
-                }
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("JMS error, re-trying", e);
-                } else {
-                    LOG.info("JMS error: {}, re-connecting", e.getMessage());
-                }
-                try {
-                    Thread.sleep(1000);
-                } catch (final InterruptedException i) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        }
-    }
-
-    @Override
-    public void close() {
-        try {
-            LOG.info("Closing ActiveMQ Sessions");
-            connected = false;
-            producer.close();
-            session.close();
-            conn.close();
-        } catch (final JMSException j) {
-            LOG.debug("Exception while closing connection", j);
-        }
-    }
-
-    @SuppressWarnings("serial")
-    private class JmsRuntimeException extends RuntimeException {
-
-        public JmsRuntimeException(Throwable e) {
-            super(e.getMessage(), e);
-        }
-    }
-}
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.AsyncCallback;
+import org.apache.activemq.jms.pool.PooledSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.jms.ConsumerOptions.Acknowledgement;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class JmsClient implements AutoCloseable {
+
+    private volatile Connection conn;
+
+    private volatile boolean connected = false;
+
+    /* Set once closed for good, rather than to re-connect */
+    private volatile boolean closed = false;
+
+    private final Object connection = new Object();
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmsClient.class);
+
+    private ConnectionFactory connectionFactory;
+
+    private final List<Consumer<Session>> sessionListeners = Collections.synchronizedList(new ArrayList<>());
+
+    private Session session;
+
+    /* Idle sessions for writing, most recently used first */
+    private final BlockingDeque<PooledProducer> idle = new LinkedBlockingDeque<>();
+
+    /* Incremented whenever the connection is closed, making any pooled sessions from before then stale */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private int maxIdleSessions = 16;
+
+    private int maxInFlight = 100;
+
+    /* Permits for asynchronous writes; fair, so that awaitAsyncWrites() is not starved by new writes */
+    private volatile Semaphore inFlight = new Semaphore(maxInFlight, true);
+
+    private ExecutorService asyncExecutor;
+
+    private long listenerIdleTime = 60000;
+
+    private long minReconnectDelay = 1000;
+
+    private long maxReconnectDelay = 60000;
+
+    /* Scales consumers of listeners, and acknowledges their batches on time, while connected */
+    private ScheduledExecutorService listenerTimer;
+
+    public void setConnectionFactory(ConnectionFactory factory) {
+        this.connectionFactory = factory;
+    }
+
+    /**
+     * Set the largest number of idle sessions kept for writing.
+     * <p>
+     * Each concurrent write uses its own session, so this is roughly the number of threads expected to write at once.
+     * Sessions beyond this are closed after use rather than kept.
+     * </p>
+     *
+     * @param max Number of idle sessions. Default is 16.
+     */
+    public void setMaxIdleSessions(int max) {
+        this.maxIdleSessions = max;
+    }
+
+    /**
+     * Set the largest number of asynchronous writes that may be in flight at once.
+     * <p>
+     * Once this many are awaiting completion, {@link #writeAsync(String, MessageCreator)} blocks until one completes.
+     * Must be set before writing.
+     * </p>
+     *
+     * @param max Number of writes. Default is 100.
+     */
+    public void setMaxInFlight(int max) {
+        this.maxInFlight = max;
+        this.inFlight = new Semaphore(max, true);
+    }
+
+    /**
+     * Set how long a consumer of a listener must receive nothing before it is removed.
+     * <p>
+     * Only applies to listeners with more than their minimum number of consumers; see
+     * {@link #listen(String, MessageListener, int, int)}.
+     * </p>
+     *
+     * @param millis Time in milliseconds. Default is 60000.
+     */
+    public void setListenerIdleTime(long millis) {
+        this.listenerIdleTime = millis;
+    }
+
+    /**
+     * Set how long to wait between attempts to connect.
+     * <p>
+     * After each failed attempt, the delay doubles, up to the maximum. Each wait is a random time between half the
+     * delay and the whole of it, so that many clients of a broker that has restarted do not all re-connect at once.
+     * </p>
+     *
+     * @param min Delay after the first failure, in milliseconds. Default is 1000.
+     * @param max Longest delay, in milliseconds. Default is 60000.
+     */
+    public void setReconnectDelay(long min, long max) {
+        this.minReconnectDelay = min;
+        this.maxReconnectDelay = max;
+    }
+
+    /**
+     * Delay before the next attempt to reach the broker, doubling each time as for re-connection.
+     *
+     * @param delay The previous delay, or 0 for the first attempt.
+     * @return the next delay, in milliseconds.
+     * @see #setReconnectDelay(long, long)
+     */
+    long nextReconnectDelay(long delay) {
+        return delay <= 0 ? minReconnectDelay : Math.min(delay * 2, maxReconnectDelay);
+    }
+
+    /**
+     * Random wait between half the given delay and the whole of it, so that retries from many clients are spread out.
+     *
+     * @param delay The delay, in milliseconds.
+     * @return the time to wait, in milliseconds.
+     */
+    static long jittered(long delay) {
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public JmsClient(ConnectionFactory factory) {
+        this.connectionFactory = factory;
+        init();
+    }
+
+    public JmsClient() {
+
+    }
+
+    public void init() {
+        connect();
+    }
+
+    /**
+     * Connect in a background thread, rather than waiting for the connection.
+     * <p>
+     * Used instead of {@link #init()}, so that a client can be used with an outbox (see
+     * {@link HarvestRecordWriter#setOutbox(FileOutbox)}) while the broker is unavailable.
+     * </p>
+     */
+    public void initInBackground() {
+        final Thread connector = new Thread(this::connect, "jms-connect");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /**
+     * Determine if the client is currently connected to the broker.
+     *
+     * @return true if connected.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    private void addSessionListener(Consumer<Session> listener) {
+        this.sessionListeners.add(listener);
+        if (connected) {
+            listener.accept(session);
+        }
+    }
+
+    public void listen(String queue, MessageListener listener) {
+        listen(queue, listener, new ConsumerOptions());
+    }
+
+    /**
+     * Listen to a queue with several consumers at once.
+     * <p>
+     * Each consumer has a session of its own, all on this client's one connection, so the listener is invoked by as
+     * many threads at once as there are consumers. It must therefore be thread safe.
+     * </p>
+     * <p>
+     * Listening starts with the given number of consumers. If the maximum is greater, consumers are added, one per
+     * second, for as long as every consumer spends nearly all its time processing messages (meaning messages are
+     * waiting), and removed once they have received nothing for the {@link #setListenerIdleTime(long) idle time}, down
+     * to the starting number.
+     * </p>
+     * <p>
+     * Note that the broker may prefetch many messages for each consumer, and a new consumer cannot take over messages
+     * already prefetched by others. To spread a backlog evenly, prefetch should be small; see
+     * {@link ConsumerOptions#withPrefetch(int)}.
+     * </p>
+     *
+     * @param queue Name of the queue, or a wildcard pattern of queues.
+     * @param listener Listener for messages.
+     * @param concurrency Number of consumers to start with, and keep at least.
+     * @param maxConcurrency Largest number of consumers.
+     */
+    public void listen(String queue, MessageListener listener, int concurrency, int maxConcurrency) {
+        listen(queue, listener, new ConsumerOptions().withConcurrency(concurrency, maxConcurrency));
+    }
+
+    /**
+     * Listen to a queue, with the given number of consumers, prefetch, and acknowledgement.
+     *
+     * @param queue Name of the queue, or a wildcard pattern of queues.
+     * @param listener Listener for messages. Must be thread safe, if there may be more than one consumer.
+     * @param options Consumer options.
+     * @see #listen(String, MessageListener, int, int)
+     */
+    public void listen(String queue, MessageListener listener, ConsumerOptions options) {
+        options.validate();
+        final ConsumerGroup group = new ConsumerGroup(queue, listener, options);
+        this.addSessionListener(s -> group.start());
+    }
+
+    public Supplier<Session> getSessionSupplier() {
+        return () -> {
+            awaitConnection();
+            return session;
+        };
+    }
+
+    /**
+     * Create a new session, separate from the shared one.
+     * <p>
+     * The caller owns the session, and is responsible for closing it. The session does not survive a re-connection;
+     * after one, any use of it fails, and a new session must be created.
+     * </p>
+     *
+     * @param transacted Whether the session is transacted; otherwise it uses auto acknowledgement.
+     * @return the session.
+     */
+    public Session createSession(boolean transacted) {
+        awaitConnection();
+        try {
+            return conn.createSession(transacted, transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
+        } catch (final JMSException e) {
+            throw new JmsRuntimeException(e);
+        }
+    }
+
+    /**
+     * Write a message to a queue.
+     * <p>
+     * May be called by multiple threads at once; each write borrows a session and producer of its own from a pool.
+     * </p>
+     *
+     * @param queue Name of the queue.
+     * @param message The message.
+     */
+    public void write(String queue, Message message) {
+        write(queue, s -> message);
+    }
+
+    /**
+     * Create a message, and write it to a queue.
+     * <p>
+     * The message is created with the same session that sends it, so it is safe for multiple threads to write at
+     * once.
+     * </p>
+     *
+     * @param queue Name of the queue.
+     * @param creator Creates the message to send.
+     */
+    public void write(String queue, MessageCreator creator) {
+        write(queue, creator, -1);
+    }
+
+    /**
+     * Create a message, and write it to a queue, waiting only so long for a connection.
+     * <p>
+     * For callers that have somewhere else to put the message while the broker is unavailable, such as an outbox,
+     * rather than waiting for it to return.
+     * </p>
+     *
+     * @param queue Name of the queue.
+     * @param creator Creates the message to send.
+     * @param connectWait Longest time to wait for a connection, in milliseconds; 0 to fail at once if there is none,
+     *        or -1 to wait as long as it takes.
+     * @throws IllegalStateException if there is no connection within the given time.
+     */
+    public void write(String queue, MessageCreator creator, long connectWait) {
+        LOG.debug("Sending message to queue {}", queue);
+        awaitConnection(connectWait);
+
+        final PooledProducer pooled = lease();
+        try {
+            pooled.producer.send(pooled.session.createQueue(queue), creator.create(pooled.session));
+        } catch (final JMSException e) {
+            pooled.failed = true;
+            throw new RuntimeException("Error writing to queue " + queue, e);
+        } finally {
+            giveBack(pooled);
+        }
+    }
+
+    /**
+     * Create a message, and write it to a queue without waiting for the broker to acknowledge it.
+     * <p>
+     * With ActiveMQ (including through a pooled connection factory), messages are sent asynchronously by ActiveMQ's
+     * own producer, which calls back once the broker has acknowledged each. With other providers, each message is sent
+     * by a thread from a pool of up to {@link #setMaxInFlight(int) max in flight} threads, each with a session of its
+     * own, so that many sends may await acknowledgement at once.
+     * </p>
+     * <p>
+     * The message is created before this returns, so anything it is created from may be discarded on return.
+     * </p>
+     * <p>
+     * If the maximum number of writes are already in flight, this blocks until one of them completes.
+     * </p>
+     *
+     * @param queue Name of the queue.
+     * @param creator Creates the message to send.
+     * @return Future, completed when the broker has acknowledged the message, or exceptionally if it could not be
+     *         written (including if the client is closed, or the thread interrupted, while waiting for a connection).
+     */
+    public CompletableFuture<Void> writeAsync(String queue, MessageCreator creator) {
+        return writeAsync(queue, creator, -1);
+    }
+
+    /**
+     * Create a message, and write it to a queue without waiting for the broker to acknowledge it, waiting only so
+     * long for a connection.
+     *
+     * @param queue Name of the queue.
+     * @param creator Creates the message to send.
+     * @param connectWait Longest time to wait for a connection, in milliseconds; 0 to fail at once if there is none,
+     *        or -1 to wait as long as it takes.
+     * @return Future, completed when the broker has acknowledged the message, or exceptionally if it could not be
+     *         written. If there is no connection within the given time, it is completed exceptionally before this
+     *         returns.
+     * @see #writeAsync(String, MessageCreator)
+     */
+    public CompletableFuture<Void> writeAsync(String queue, MessageCreator creator, long connectWait) {
+        final Semaphore permits = inFlight;
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted", e);
+        }
+
+        // The future is completed on every path, so that the permit is always released
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        future.whenComplete((v, e) -> permits.release());
+
+        PooledProducer pooled = null;
+        try {
+            awaitConnection(connectWait);
+            pooled = lease();
+
+            // The message is always created here, so that the caller is free to discard its content on return
+            final Message message = creator.create(pooled.session);
+
+            if (pooled.producer instanceof ActiveMQMessageProducer) {
+                ((ActiveMQMessageProducer) pooled.producer).send(pooled.session.createQueue(queue), message,
+                        new AsyncCallback() {
+
+                            @Override
+                            public void onSuccess() {
+                                future.complete(null);
+                            }
+
+                            @Override
+                            public void onException(JMSException e) {
+                                future.completeExceptionally(new RuntimeException("Error writing to queue " + queue,
+                                        e));
+                            }
+                        });
+            } else {
+                writeInBackground(queue, s -> message, connectWait, future);
+            }
+        } catch (final JMSException e) {
+            pooled.failed = true;
+            future.completeExceptionally(new RuntimeException("Error writing to queue " + queue, e));
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+        } catch (final Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (pooled != null) {
+                giveBack(pooled);
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Wait until all asynchronous writes begun so far have completed, successfully or not.
+     */
+    public void awaitAsyncWrites() {
+        final Semaphore permits = inFlight;
+        final int max = maxInFlight;
+        try {
+            permits.acquire(max);
+            permits.release(max);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted", e);
+        }
+    }
+
+    // Fallback for providers other than ActiveMQ; a synchronous write, in another thread.
+    private void writeInBackground(String queue, MessageCreator creator, long connectWait,
+            CompletableFuture<Void> future) {
+        asyncExecutor().execute(() -> {
+            try {
+                write(queue, creator, connectWait);
+                future.complete(null);
+            } catch (final Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    private synchronized ExecutorService asyncExecutor() {
+        if (asyncExecutor == null) {
+            final ThreadPoolExecutor exe = new ThreadPoolExecutor(maxInFlight, maxInFlight, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        final Thread t = new Thread(r, "jms-async-write");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            exe.allowCoreThreadTimeOut(true);
+            asyncExecutor = exe;
+        }
+        return asyncExecutor;
+    }
+
+    // Borrow an idle session from the pool, or create one if there are none
+    private PooledProducer lease() {
+        PooledProducer pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (pooled.generation == generation.get()) {
+                return pooled;
+            }
+            pooled.close();
+        }
+
+        final int current = generation.get();
+        try {
+            final Session s = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+            // A pooled session's own producers cannot send asynchronously, but those of the session it wraps can
+            final Session target = s instanceof PooledSession ? ((PooledSession) s).getInternalSession() : s;
+            return new PooledProducer(s, target.createProducer(null), current);
+        } catch (final JMSException e) {
+            throw new JmsRuntimeException(e);
+        }
+    }
+
+    // Return a session to the pool, unless it is no longer usable or the pool is full
+    private void giveBack(PooledProducer pooled) {
+        if (pooled.failed || pooled.generation != generation.get() || idle.size() >= maxIdleSessions) {
+            pooled.close();
+        } else {
+            idle.offerFirst(pooled);
+        }
+    }
+
+    private void awaitConnection() {
+        awaitConnection(-1);
+    }
+
+    // Wait for a connection for up to the given time, or for as long as it takes if negative
+    private void awaitConnection(long millis) {
+        final long deadline = System.currentTimeMillis() + millis;
+        synchronized (connection) {
+            while (!connected) {
+                if (closed) {
+                    throw new IllegalStateException("JmsClient is closed");
+                }
+
+                final long remaining = deadline - System.currentTimeMillis();
+                if (millis >= 0 && remaining <= 0) {
+                    throw new IllegalStateException("Not connected to the broker");
+                }
+                try {
+                    connection.wait(millis >= 0 ? remaining : 0);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted", e);
+                }
+            }
+        }
+    }
+
+    private void connect() {
+        long delay = nextReconnectDelay(0);
+        while (!connected && !closed) {
+            try {
+                conn = connectionFactory.createConnection();
+                conn.start();
+
+                session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+                sessionListeners.forEach(s -> s.accept(session));
+
+                conn.setExceptionListener(e -> {
+                    if (connected) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Connection disrupted", e);
+                        } else {
+                            LOG.info("Connection disrupted", e.getMessage());
+                        }
+                        disconnect();
+                        connect();
+                    }
+
+                });
+                synchronized (connection) {
+                    connected = true;
+                    connection.notifyAll();
+                }
+
+                // Closed while connecting in the background
+                if (closed) {
+                    disconnect();
+                }
+            } catch (final JMSException e) {
+                try {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                } catch (final JMSException j) {
+                    LOG.warn("Error closing connection, j");
+                }
+                final long wait = jittered(delay);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("JMS error, re-trying in {}ms", wait, e);
+                } else {
+                    LOG.info("JMS error: {}, re-connecting in {}ms", e.getMessage(), wait);
+                }
+                try {
+                    Thread.sleep(wait);
+                } catch (final InterruptedException i) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                delay = nextReconnectDelay(delay);
+            }
+        }
+    }
+
+    // Periodically run a task, until the connection is closed
+    private synchronized void schedule(Runnable task, long millis) {
+        if (listenerTimer == null) {
+            listenerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "jms-listener-timer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        listenerTimer.scheduleWithFixedDelay(task, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopTimer() {
+        if (listenerTimer != null) {
+            listenerTimer.shutdownNow();
+            listenerTimer = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        disconnect();
+        synchronized (connection) {
+            connection.notifyAll();
+        }
+    }
+
+    private void disconnect() {
+        try {
+            LOG.info("Closing ActiveMQ Sessions");
+            connected = false;
+            stopTimer();
+            generation.incrementAndGet();
+            PooledProducer pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                pooled.close();
+            }
+            if (session != null) {
+                session.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (final JMSException j) {
+            LOG.debug("Exception while closing connection", j);
+        }
+    }
+
+    /**
+     * Creates a message using the given session.
+     */
+    @FunctionalInterface
+    public interface MessageCreator {
+
+        Message create(Session session) throws JMSException;
+    }
+
+    /*
+     * Consumers of a queue on sessions of their own. They are created anew on each connection; the old ones are closed
+     * along with the old connection.
+     */
+    private class ConsumerGroup {
+
+        final String queue;
+
+        final MessageListener listener;
+
+        final ConsumerOptions options;
+
+        /* Consumers on the current connection, oldest first; guarded by this */
+        final List<ListeningConsumer> consumers = new ArrayList<>();
+
+        ConsumerGroup(String queue, MessageListener listener, ConsumerOptions options) {
+            this.queue = queue;
+            this.listener = listener;
+            this.options = options;
+        }
+
+        synchronized void start() {
+            consumers.forEach(c -> c.open = false);
+            consumers.clear();
+            for (int i = 0; i < options.concurrency; i++) {
+                add();
+            }
+
+            if (options.maxConcurrency > options.concurrency) {
+                schedule(this::scale, 1000);
+            }
+        }
+
+        // Add a consumer if all are busy, or remove the newest if it has been idle long enough
+        synchronized void scale() {
+            if (!connected) {
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            try {
+                final long busy = consumers.stream().filter(c -> c.busy(now)).count();
+                if (consumers.size() < options.maxConcurrency && busy == consumers.size()) {
+                    add();
+                    LOG.debug("Added consumer of {}, now {}", queue, consumers.size());
+                } else if (consumers.size() > options.concurrency) {
+                    final ListeningConsumer newest = consumers.get(consumers.size() - 1);
+                    if (now - newest.lastMessage > listenerIdleTime) {
+                        consumers.remove(newest);
+                        newest.close();
+                        LOG.debug("Removed idle consumer of {}, now {}", queue, consumers.size());
+                    }
+                }
+            } catch (final RuntimeException e) {
+                LOG.warn("Could not adjust number of consumers of {}", queue, e);
+            }
+        }
+
+        private void add() {
+            try {
+                final boolean transacted = options.acknowledgement == Acknowledgement.TRANSACTED;
+                final Session s = conn.createSession(transacted, transacted ? Session.SESSION_TRANSACTED
+                        : options.batched() ? Session.CLIENT_ACKNOWLEDGE : Session.AUTO_ACKNOWLEDGE);
+                final Destination dest = s.createQueue(options.destination(queue));
+                final ListeningConsumer consumer = new ListeningConsumer(s, listener, options);
+                final String selector = options.selector(consumers.size());
+                consumer.start(s.createConsumer(dest, selector), queue);
+                consumers.add(consumer);
+                if (selector != null) {
+                    LOG.info("Listening on {} for {}", dest, selector);
+                } else if (consumers.size() == 1) {
+                    LOG.info("Listening on " + dest);
+                }
+            } catch (final JMSException e) {
+                throw new JmsRuntimeException(e);
+            }
+        }
+    }
+
+    /*
+     * A consumer's session, and the listener it invokes, noting how much of the time it is busy. When acknowledging
+     * in batches, messages are received by a thread of its own rather than delivered by the provider, so that the
+     * session is only ever used by that thread, and batches can be acknowledged on time even when no more messages
+     * arrive.
+     */
+    private static class ListeningConsumer implements MessageListener {
+
+        final Session session;
+
+        final MessageListener listener;
+
+        final ConsumerOptions options;
+
+        /* When the message being processed was received, or 0 if none is */
+        volatile long started;
+
+        /* Total time spent processing messages */
+        volatile long busyTime;
+
+        volatile long lastMessage = System.currentTimeMillis();
+
+        /* As of the last call to busy(); only used by the scaler */
+        long lastTick = lastMessage;
+
+        long lastBusyTime;
+
+        /* Thread receiving messages, when acknowledging in batches */
+        Thread receiver;
+
+        volatile boolean open = true;
+
+        /* Messages processed but not yet acknowledged, the last of them, and when the first was processed */
+        final List<String> unacknowledged = new ArrayList<>();
+
+        Message lastUnacknowledged;
+
+        long firstUnacknowledged;
+
+        /* Messages processed successfully before the session was recovered, to be acknowledged on redelivery */
+        final Set<String> recovered = new HashSet<>();
+
+        ListeningConsumer(Session session, MessageListener listener, ConsumerOptions options) {
+            this.session = session;
+            this.listener = listener;
+            this.options = options;
+        }
+
+        void start(MessageConsumer consumer, String queue) throws JMSException {
+            if (!options.batched()) {
+                consumer.setMessageListener(this);
+                return;
+            }
+
+            receiver = new Thread(() -> receive(consumer), "jms-listener-" + queue);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        @Override
+        public void onMessage(Message m) {
+            final long start = System.currentTimeMillis();
+            started = start;
+            lastMessage = start;
+            try {
+                listener.onMessage(m);
+            } finally {
+                started = 0;
+                busyTime += System.currentTimeMillis() - start;
+            }
+        }
+
+        // Whether the consumer has spent nearly all its time since the last call processing messages
+        boolean busy(long now) {
+            final long start = started;
+            final long total = busyTime + (start > 0 ? now - start : 0);
+            final boolean busy = total - lastBusyTime >= (now - lastTick) * 9 / 10;
+            lastBusyTime = total;
+            lastTick = now;
+            return busy;
+        }
+
+        // Receive and process messages until closed, acknowledging each full or overdue batch
+        private void receive(MessageConsumer consumer) {
+            final long poll = options.ackTime > 0 ? Math.max(options.ackTime / 4, 1) : 1000;
+            try {
+                while (open) {
+                    final Message m = consumer.receive(poll);
+
+                    if (m != null) {
+                        final boolean processed = recovered.remove(m.getJMSMessageID());
+                        if (!processed) {
+                            try {
+                                onMessage(m);
+                            } catch (final RuntimeException e) {
+                                LOG.warn("Listener failed, redelivering it after the {} messages processed before it",
+                                        unacknowledged.size(), e);
+                                recover();
+                                continue;
+                            }
+                        }
+
+                        if (unacknowledged.isEmpty()) {
+                            firstUnacknowledged = System.currentTimeMillis();
+                        }
+                        unacknowledged.add(m.getJMSMessageID());
+                        lastUnacknowledged = m;
+
+                        // Acknowledge those processed before a failure once redelivered, before the failed one is
+                        if (processed && recovered.isEmpty()) {
+                            acknowledge();
+                        }
+                    }
+
+                    if (unacknowledged.size() >= options.ackBatch || !unacknowledged.isEmpty() && options.ackTime > 0
+                            && System.currentTimeMillis() - firstUnacknowledged >= options.ackTime) {
+                        acknowledge();
+                    }
+                }
+
+                if (!unacknowledged.isEmpty()) {
+                    acknowledge();
+                }
+            } catch (final JMSException e) {
+                // The connection has been closed; anything unacknowledged will be redelivered
+                LOG.debug("Stopped receiving: {}", e.getMessage());
+            }
+        }
+
+        private void acknowledge() {
+            try {
+                if (options.acknowledgement == Acknowledgement.TRANSACTED) {
+                    session.commit();
+                } else {
+                    lastUnacknowledged.acknowledge();
+                }
+                LOG.debug("Acknowledged {} messages", unacknowledged.size());
+            } catch (final JMSException e) {
+                // They will be redelivered
+                LOG.warn("Could not acknowledge {} messages: {}", unacknowledged.size(), e.getMessage());
+            } finally {
+                unacknowledged.clear();
+                lastUnacknowledged = null;
+            }
+        }
+
+        // Redeliver the failed message, and those processed before it, which will be acknowledged without processing
+        private void recover() {
+            recovered.addAll(unacknowledged);
+            try {
+                if (options.acknowledgement == Acknowledgement.TRANSACTED) {
+                    session.rollback();
+                } else {
+                    session.recover();
+                }
+            } catch (final JMSException e) {
+                LOG.warn("Could not recover session: {}", e.getMessage());
+                recovered.clear();
+            } finally {
+                unacknowledged.clear();
+                lastUnacknowledged = null;
+            }
+        }
+
+        // Stop receiving, acknowledging what has been processed, then close; waits for any message being processed
+        void close() {
+            open = false;
+            if (receiver != null) {
+                try {
+                    receiver.join();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            try {
+                session.close();
+            } catch (final JMSException e) {
+                LOG.debug("Exception while closing consumer session", e);
+            }
+        }
+    }
+
+    /* A session and producer for writing, and the connection generation they belong to */
+    private static class PooledProducer {
+
+        final Session session;
+
+        final MessageProducer producer;
+
+        final int generation;
+
+        boolean failed;
+
+        PooledProducer(Session session, MessageProducer producer, int generation) {
+            this.session = session;
+            this.producer = producer;
+            this.generation = generation;
+        }
+
+        void close() {
+            try {
+                // Closing a pooled session only returns it to its pool, without closing producers of the session within
+                producer.close();
+                session.close();
+            } catch (final JMSException e) {
+                LOG.debug("Exception while closing pooled session", e);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class JmsRuntimeException extends RuntimeException {
+
+        public JmsRuntimeException(Throwable e) {
+            super(e.getMessage(), e);
+        }
+    }
+}
@@ -28,6 +28,9 @@ public interface JmsHeaders {
      */
     public static final String PROP_HARVEST_EXCEPTION = "rmap.harvest.exception";
 
+    /** Number of times a message has been retried after failing */
+    public static final String PROP_HARVEST_RETRY = "rmap.harvest.retry";
+
     /** Identifies a harvest action (required) */
     public static final String PROP_HARVEST_ID = "rmap.harvest.id";
 
@@ -47,4 +50,25 @@ public interface JmsHeaders {
     public static final String PROP_HARVEST_RECORD_SRC = "rmap.harvest.record.src";
 
     public static final String PROP_HARVEST_RECORD_CONTENT_TYPE = "Content-Type";
+
+    /** Charset of the record body, e.g. UTF-8 (optional) */
+    public static final String PROP_HARVEST_RECORD_CHARSET = "rmap.harvest.record.charset";
+
+    /**
+     * Compression applied to the record body, e.g. deflate; absent if uncompressed (optional). Unlike the other
+     * headers, its name has no dots, so that it is a valid selector identifier.
+     */
+    public static final String PROP_HARVEST_RECORD_CONTENT_ENCODING = "rmap_content_encoding";
+
+    /** Reference to the record body in a blob store, if it was sent by claim check rather than in the message */
+    public static final String PROP_HARVEST_RECORD_BLOB = "rmap.harvest.record.blob";
+
+    /** Number of records in an envelope message; absent if the message contains a single record */
+    public static final String PROP_HARVEST_ENVELOPE = "rmap.harvest.envelope";
+
+    /** Partition of the record, derived from a hash of its id; absent if records are not partitioned (optional) */
+    public static final String PROP_HARVEST_PARTITION = "rmap.harvest.partition";
+
+    /** ActiveMQ message group; each group is consumed by only one consumer at a time, in order */
+    public static final String PROP_GROUP_ID = "JMSXGroupID";
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import info.rmapproject.loader.HarvestRecord;
+
+/**
+ * Bounded, lock-free queue of records, for handing them from one thread to another within a process.
+ * <p>
+ * Records are held in a ring of slots, each with a sequence number that says whether it is ready to be written or
+ * read on the current lap of the ring (as in Dmitry Vyukov's bounded MPMC queue). Any number of threads may put and
+ * take at once; each claims a slot by a compare-and-set of the tail or head position, and never waits on a lock.
+ * </p>
+ * <p>
+ * When the ring is full, {@link #put(HarvestRecord)} waits for room, so a producer can never get more than the
+ * capacity ahead of its consumers. Waiting threads spin briefly, then park for increasing times, up to a millisecond.
+ * Once the ring is {@link #close() closed}, no more records may be put, and takers receive null once it is empty.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class RecordRing {
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int mask;
+
+    private final AtomicReferenceArray<HarvestRecord> slots;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Create a ring.
+     *
+     * @param capacity Number of records it can hold, rounded up to a power of two.
+     */
+    public RecordRing(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Put a record, if there is room.
+     *
+     * @param record The record.
+     * @return true if it was put; false if the ring is full.
+     */
+    public boolean offer(HarvestRecord record) {
+        if (closed) {
+            throw new IllegalStateException("Ring is closed");
+        }
+
+        long pos = tail.get();
+        while (true) {
+            final int slot = (int) (pos & mask);
+            final long diff = sequences.get(slot) - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(slot, record);
+                    sequences.set(slot, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take a record, if there is one.
+     *
+     * @return the record, or null if the ring is empty.
+     */
+    public HarvestRecord poll() {
+        long pos = head.get();
+        while (true) {
+            final int slot = (int) (pos & mask);
+            final long diff = sequences.get(slot) - (pos + 1);
+
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final HarvestRecord record = slots.get(slot);
+                    slots.set(slot, null);
+                    sequences.set(slot, pos + mask + 1);
+                    return record;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Put a record, waiting for room if the ring is full.
+     *
+     * @param record The record.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void put(HarvestRecord record) throws InterruptedException {
+        for (int attempt = 0; !offer(record); attempt++) {
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Take a record, waiting up to the given time for one.
+     *
+     * @param timeout Longest time to wait.
+     * @param unit Unit of the timeout.
+     * @return the record, or null if none arrived in time, or the ring is closed and empty.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public HarvestRecord take(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0;; attempt++) {
+            final HarvestRecord record = poll();
+            if (record != null || closed && isEmpty() || System.nanoTime() - deadline >= 0) {
+                return record;
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Number of records in the ring.
+     *
+     * @return the number of records, which may be out of date as soon as it is returned.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * Accept no more records; those already in the ring may still be taken.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private static void backOff(int attempt) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        } else if (attempt < 16) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(attempt - 16, 10)));
+        }
+    }
+}
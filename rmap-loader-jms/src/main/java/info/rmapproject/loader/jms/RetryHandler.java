@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.HarvestRecordConverter.setPartition;
+import static info.rmapproject.loader.jms.HarvestRecordConverter.toMessage;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Enumeration;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.jms.HarvestRecordListener.RecordExceptionHandler;
+
+/**
+ * Handles failed messages by retrying them later, or routing them to an error queue.
+ * <p>
+ * Failures that the {@link RetryPolicy} deems worth retrying are sent back to the queue they came from, with a delay
+ * given in the ActiveMQ {@value #SCHEDULED_DELAY} header, and the number of retries so far in the
+ * {@link JmsHeaders#PROP_HARVEST_RETRY} header. The broker must have scheduler support enabled
+ * (<code>schedulerSupport="true"</code>), otherwise retries are delivered immediately.
+ * </p>
+ * <p>
+ * Other failures, and those that have been retried too often, are sent to an error queue, with the stack trace of the
+ * failure in the {@link JmsHeaders#PROP_HARVEST_EXCEPTION} header.
+ * </p>
+ * <p>
+ * Used as the exception handler of a {@link HarvestRecordListener}. It may also be used as its record exception
+ * handler, in which case a failed record from an envelope is retried (or routed to the error queue) alone.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class RetryHandler implements BiConsumer<Message, Exception>, RecordExceptionHandler, JmsHeaders {
+
+    static final Logger LOG = LoggerFactory.getLogger(RetryHandler.class);
+
+    /** ActiveMQ header giving the time, in milliseconds, for the broker to hold a message before delivering it */
+    public static final String SCHEDULED_DELAY = "AMQ_SCHEDULED_DELAY";
+
+    private static final int MAX_TRACE_LENGTH = 8192;
+
+    private final JmsClient jms;
+
+    private final RetryPolicy policy;
+
+    private final UnaryOperator<String> errorQueue;
+
+    /**
+     * Create a handler.
+     *
+     * @param jms Client for sending retries and errors.
+     * @param policy Retry policy.
+     * @param errorQueue Gives the name of the error queue for the name of a queue.
+     */
+    public RetryHandler(JmsClient jms, RetryPolicy policy, UnaryOperator<String> errorQueue) {
+        this.jms = jms;
+        this.policy = policy;
+        this.errorQueue = errorQueue;
+    }
+
+    @Override
+    public void accept(Message m, Exception e) {
+        try {
+            handle(queue(m), retries(m), e, s -> copy(m, s));
+        } catch (final JMSException j) {
+            throw new RuntimeException("Error handling failed message: " + j.getMessage(), j);
+        }
+    }
+
+    @Override
+    public void handle(Message envelope, HarvestRecord record, Exception e) {
+        try {
+            final int partition = envelope.propertyExists(PROP_HARVEST_PARTITION)
+                    ? envelope.getIntProperty(PROP_HARVEST_PARTITION)
+                    : -1;
+
+            handle(queue(envelope), retries(envelope), e, s -> {
+                final Message m = toMessage(record, s);
+                if (partition > -1) {
+                    setPartition(m, partition);
+                }
+                return m;
+            });
+        } catch (final JMSException j) {
+            throw new RuntimeException("Error handling failed record: " + j.getMessage(), j);
+        }
+    }
+
+    private void handle(String queue, int retries, Exception e, JmsClient.MessageCreator message) {
+        if (policy.shouldRetry(e, retries)) {
+            final long delay = policy.delay(retries + 1);
+            LOG.info("Failed on {}, will retry in {}ms (retry {}): {}", queue, delay, retries + 1, e.getMessage());
+
+            jms.write(queue, s -> {
+                final Message retry = message.create(s);
+                retry.setIntProperty(PROP_HARVEST_RETRY, retries + 1);
+                retry.setLongProperty(SCHEDULED_DELAY, delay);
+                return retry;
+            });
+        } else {
+            final String dest = errorQueue.apply(queue);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed on {}, after {} retries", queue, retries, e);
+            }
+            LOG.info("Failed on {}, routing to {}: {}", queue, dest, e.getMessage());
+
+            jms.write(dest, s -> {
+                final Message error = message.create(s);
+                error.setStringProperty(PROP_HARVEST_EXCEPTION, stackTrace(e));
+                return error;
+            });
+        }
+    }
+
+    private static String queue(Message m) throws JMSException {
+        if (m.getJMSDestination() instanceof Queue) {
+            return ((Queue) m.getJMSDestination()).getQueueName();
+        }
+        return m.getJMSDestination().toString().replace("queue://", "");
+    }
+
+    private static int retries(Message m) throws JMSException {
+        return m.propertyExists(PROP_HARVEST_RETRY) ? m.getIntProperty(PROP_HARVEST_RETRY) : 0;
+    }
+
+    // Received messages are read-only, so headers can only be added to a copy
+    private static Message copy(Message m, Session session) throws JMSException {
+        final Message copy;
+        if (m instanceof BytesMessage) {
+            final BytesMessage bytes = (BytesMessage) m;
+            bytes.reset();
+            final byte[] body = new byte[(int) bytes.getBodyLength()];
+            bytes.readBytes(body);
+            final BytesMessage b = session.createBytesMessage();
+            b.writeBytes(body);
+            copy = b;
+        } else if (m instanceof TextMessage) {
+            copy = session.createTextMessage(((TextMessage) m).getText());
+        } else {
+            throw new JMSException("Cannot copy message of type " + m.getClass().getName());
+        }
+
+        final Enumeration<?> names = m.getPropertyNames();
+        while (names.hasMoreElements()) {
+            final String property = (String) names.nextElement();
+            if (!property.startsWith("JMSX") && !property.equals(SCHEDULED_DELAY)) {
+                copy.setObjectProperty(property, m.getObjectProperty(property));
+            }
+        }
+
+        // Stay in the same message group, if any
+        if (m.getStringProperty(PROP_GROUP_ID) != null) {
+            copy.setStringProperty(PROP_GROUP_ID, m.getStringProperty(PROP_GROUP_ID));
+        }
+
+        return copy;
+    }
+
+    private static String stackTrace(Exception e) {
+        final StringWriter writer = new StringWriter();
+        e.printStackTrace(new PrintWriter(writer));
+        final String trace = writer.toString();
+        return trace.length() > MAX_TRACE_LENGTH ? trace.substring(0, MAX_TRACE_LENGTH) : trace;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import info.rmapproject.loader.RetryableException;
+
+/**
+ * Decides whether, and when, a failed message is retried.
+ * <p>
+ * Only failures classified as transient are retried. By default, these are failures caused by a
+ * {@link RetryableException} or an {@link IOException}. Each retry waits twice as long as the one before, up to a
+ * maximum delay.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class RetryPolicy {
+
+    private int maxRetries = 5;
+
+    private long delay = 10000;
+
+    private long maxDelay = 600000;
+
+    private Predicate<Throwable> transientFailure = e -> e instanceof RetryableException || e instanceof IOException;
+
+    /**
+     * Number of times to retry a message before giving up on it.
+     *
+     * @param retries Number of retries. Default is 5.
+     * @return configured policy.
+     */
+    public RetryPolicy withMaxRetries(int retries) {
+        this.maxRetries = retries;
+        return this;
+    }
+
+    /**
+     * Time to wait before retrying.
+     *
+     * @param millis Delay before the first retry, in milliseconds. Default is 10000.
+     * @param max Longest delay before any retry, in milliseconds. Default is 600000 (10 minutes).
+     * @return configured policy.
+     */
+    public RetryPolicy withDelay(long millis, long max) {
+        this.delay = millis;
+        this.maxDelay = max;
+        return this;
+    }
+
+    /**
+     * Classify failures as transient, and so worth retrying.
+     * <p>
+     * The test is applied to the exception, and to each of its causes in turn; if it passes for any of them, the
+     * failure is transient.
+     * </p>
+     *
+     * @param test Test for transient failures.
+     * @return configured policy.
+     */
+    public RetryPolicy withTransientFailures(Predicate<Throwable> test) {
+        this.transientFailure = test;
+        return this;
+    }
+
+    /**
+     * Determine if a failure should be retried.
+     *
+     * @param e The failure.
+     * @param retries Number of times the message has been retried already.
+     * @return true if it should be retried.
+     */
+    public boolean shouldRetry(Throwable e, int retries) {
+        return retries < maxRetries && isTransient(e);
+    }
+
+    /**
+     * Time to wait before a retry.
+     *
+     * @param retry Which retry, counting from 1.
+     * @return the delay in milliseconds.
+     */
+    public long delay(int retry) {
+        final long wait = delay << Math.min(retry - 1, 30);
+        return wait < 0 || wait > maxDelay ? maxDelay : wait;
+    }
+
+    private boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (transientFailure.test(cause)) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+}
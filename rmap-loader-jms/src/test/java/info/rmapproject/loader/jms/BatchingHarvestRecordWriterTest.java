@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.HarvestRecordListener.onHarvestRecord;
+import static info.rmapproject.loader.jms.JmsTestUtil.awaitCount;
+import static info.rmapproject.loader.jms.JmsTestUtil.record;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.junit.EmbeddedActiveMQBroker;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class BatchingHarvestRecordWriterTest {
+
+    @Rule
+    public EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
+
+    @Test
+    public void batchSizeTest() throws Exception {
+        final String queue = "batch.test.queue";
+        final List<URI> received = new CopyOnWriteArrayList<>();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            jms.listen(queue, onHarvestRecord(r -> received.add(r.getRecordInfo().getId())));
+
+            try (BatchingHarvestRecordWriter writer = new BatchingHarvestRecordWriter(jms)
+                    .withBatchSize(3)
+                    .withBatchTime(0)) {
+
+                for (int i = 0; i < 5; i++) {
+                    writer.write(queue, record(i));
+                }
+
+                // Only the first batch has been committed
+                awaitCount(received, 3);
+                Thread.sleep(500);
+                assertEquals(3, received.size());
+            }
+
+            // The rest are committed on close
+            awaitCount(received, 5);
+            assertEquals(URI.create("test:4"), received.get(4));
+        }
+    }
+
+    @Test
+    public void batchTimeTest() throws Exception {
+        final String queue = "batch.time.test.queue";
+        final List<URI> received = new CopyOnWriteArrayList<>();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory());
+                BatchingHarvestRecordWriter writer = new BatchingHarvestRecordWriter(jms)
+                        .withBatchSize(100)
+                        .withBatchTime(200)) {
+
+            jms.listen(queue, onHarvestRecord(r -> received.add(r.getRecordInfo().getId())));
+
+            writer.write(queue, record(0));
+            awaitCount(received, 1);
+        }
+    }
+
+    /* A batch re-sent after a failure is not sent again by a later failure */
+    @Test
+    public void retryTest() throws Exception {
+        final String queue = "batch.retry.test.queue";
+        final List<URI> received = new CopyOnWriteArrayList<>();
+        final AtomicBoolean failSend = new AtomicBoolean();
+        final AtomicBoolean failCommit = new AtomicBoolean();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory()) {
+
+            @Override
+            public Session createSession(boolean transacted) {
+                return failing(super.createSession(transacted), failSend, failCommit);
+            }
+        }) {
+            jms.listen(queue, onHarvestRecord(r -> received.add(r.getRecordInfo().getId())));
+
+            try (BatchingHarvestRecordWriter writer = new BatchingHarvestRecordWriter(jms)
+                    .withBatchSize(10)
+                    .withBatchTime(0)) {
+
+                writer.write(queue, record(0));
+
+                // Re-sends and commits records 0 and 1
+                failSend.set(true);
+                writer.write(queue, record(1));
+
+                // Re-sends and commits record 2 only
+                writer.write(queue, record(2));
+                failCommit.set(true);
+                writer.commit();
+            }
+
+            awaitCount(received, 3);
+            Thread.sleep(500);
+            assertEquals(3, received.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(URI.create("test:" + i), received.get(i));
+            }
+        }
+    }
+
+    // Session whose next send, or next commit, fails once when asked to
+    private static Session failing(Session session, AtomicBoolean failSend, AtomicBoolean failCommit) {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("commit") && failCommit.getAndSet(false)) {
+                        throw new JMSException("Commit failed");
+                    }
+
+                    final Object result = invoke(session, method, args);
+                    if (result instanceof MessageProducer) {
+                        final MessageProducer producer = (MessageProducer) result;
+                        return Proxy.newProxyInstance(Session.class.getClassLoader(),
+                                new Class<?>[] { MessageProducer.class }, (p, m, a) -> {
+                                    if (m.getName().equals("send") && failSend.getAndSet(false)) {
+                                        throw new JMSException("Send failed");
+                                    }
+                                    return invoke(producer, m, a);
+                                });
+                    }
+                    return result;
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
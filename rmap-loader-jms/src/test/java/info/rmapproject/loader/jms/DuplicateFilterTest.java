@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.HarvestRecordConverter.toMessage;
+import static info.rmapproject.loader.jms.HarvestRecordListener.onHarvestRecord;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Session;
+
+import org.apache.activemq.junit.EmbeddedActiveMQBroker;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class DuplicateFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
+
+    @Test
+    public void keyTest() {
+        final DuplicateFilter filter = new DuplicateFilter(10);
+
+        filter.add(filter.key(record("test:0", 1000, "body")));
+
+        assertTrue(filter.contains(filter.key(record("test:0", 1000, "body"))));
+        assertFalse(filter.contains(filter.key(record("test:1", 1000, "body"))));
+        assertFalse(filter.contains(filter.key(record("test:0", 2000, "body"))));
+        assertFalse(filter.contains(filter.key(record("test:0", 1000, "other body"))));
+    }
+
+    @Test
+    public void lruTest() {
+        final DuplicateFilter filter = new DuplicateFilter(2);
+
+        filter.add(filter.key(record("test:0", 0, "body")));
+        filter.add(filter.key(record("test:1", 0, "body")));
+        assertTrue(filter.contains(filter.key(record("test:0", 0, "body"))));
+
+        // test:1 is now the least recently used
+        filter.add(filter.key(record("test:2", 0, "body")));
+        assertTrue(filter.contains(filter.key(record("test:0", 0, "body"))));
+        assertFalse(filter.contains(filter.key(record("test:1", 0, "body"))));
+    }
+
+    @Test
+    public void bloomFilterTest() {
+        final Path file = folder.getRoot().toPath().resolve("seen.bloom");
+
+        try (DuplicateFilter filter = new DuplicateFilter(1).withBloomFilter(file, 1000, 1e-6)) {
+            for (int i = 0; i < 1000; i++) {
+                filter.add(filter.key(record("test:" + i, 0, "body")));
+            }
+        }
+
+        // Re-opened with different parameters, the filter keeps those it was created with
+        try (DuplicateFilter filter = new DuplicateFilter(1).withBloomFilter(file, 10, 0.5)) {
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(filter.contains(filter.key(record("test:" + i, 0, "body"))));
+            }
+
+            int falsePositives = 0;
+            for (int i = 1000; i < 11000; i++) {
+                if (filter.contains(filter.key(record("test:" + i, 0, "body")))) {
+                    falsePositives++;
+                }
+            }
+            assertTrue(falsePositives < 5);
+        }
+    }
+
+    @Test
+    public void listenerTest() throws Exception {
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final HarvestRecordListener listener = onHarvestRecord(r -> {
+            // Fail the first attempt
+            if (attempts.incrementAndGet() == 1) {
+                throw new RuntimeException("Failed");
+            }
+            consumed.incrementAndGet();
+        }).withDuplicateFilter(new DuplicateFilter(10));
+
+        try (Connection conn = broker.createConnectionFactory().createConnection();
+                Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+
+            // A failed record is not a duplicate when it is retried, but a consumed one is
+            for (int i = 0; i < 3; i++) {
+                listener.onMessage(toMessage(record("test:0", 0, "body"), session));
+            }
+            assertEquals(2, attempts.get());
+            assertEquals(1, consumed.get());
+
+            listener.onMessage(toMessage(record("test:0", 1, "body"), session));
+            assertEquals(2, consumed.get());
+        }
+    }
+
+    private static HarvestRecord record(String id, long date, String body) {
+        final RecordInfo info = new RecordInfo();
+        info.setId(URI.create(id));
+        info.setDate(new Date(date));
+
+        final HarvestRecord record = new HarvestRecord();
+        record.setRecordInfo(info);
+        record.setBody(body.getBytes());
+        return record;
+    }
+}
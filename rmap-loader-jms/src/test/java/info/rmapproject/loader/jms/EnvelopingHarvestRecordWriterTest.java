@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.HarvestRecordListener.onHarvestRecord;
+import static info.rmapproject.loader.jms.JmsTestUtil.awaitCount;
+import static info.rmapproject.loader.jms.JmsTestUtil.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.activemq.junit.EmbeddedActiveMQBroker;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class EnvelopingHarvestRecordWriterTest {
+
+    @Rule
+    public EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
+
+    @Test
+    public void envelopeTest() throws Exception {
+        final String queue = "envelope.test.queue";
+        final List<URI> received = new CopyOnWriteArrayList<>();
+        final AtomicInteger messages = new AtomicInteger();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            final HarvestRecordListener listener = onHarvestRecord(r -> received.add(r.getRecordInfo().getId()));
+            jms.listen(queue, m -> {
+                messages.incrementAndGet();
+                listener.onMessage(m);
+            });
+
+            try (EnvelopingHarvestRecordWriter writer = new EnvelopingHarvestRecordWriter(jms)
+                    .withEnvelopeSize(3)
+                    .withEnvelopeTime(0)
+                    .withMaxRecordSize(100)) {
+
+                for (int i = 0; i < 4; i++) {
+                    writer.write(queue, record(i, 10));
+                }
+
+                // Too big for an envelope, so the waiting record is sent first, then this one on its own
+                writer.write(queue, record(4, 1000));
+                writer.write(queue, record(5, 10));
+
+                awaitCount(received, 5);
+                Thread.sleep(500);
+                assertEquals(5, received.size());
+                assertEquals(3, messages.get());
+            }
+
+            // The rest are sent on close, in order
+            awaitCount(received, 6);
+            assertEquals(4, messages.get());
+            for (int i = 0; i < 6; i++) {
+                assertEquals(URI.create("test:" + i), received.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void recordFailureTest() throws Exception {
+        final String queue = "envelope.failure.test.queue";
+        final List<URI> received = new CopyOnWriteArrayList<>();
+        final List<URI> failed = new CopyOnWriteArrayList<>();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory());
+                EnvelopingHarvestRecordWriter writer = new EnvelopingHarvestRecordWriter(jms)
+                        .withEnvelopeSize(5)) {
+
+            jms.listen(queue, onHarvestRecord(r -> {
+                if (r.getRecordInfo().getId().equals(URI.create("test:2"))) {
+                    throw new RuntimeException("Bad record");
+                }
+                received.add(r.getRecordInfo().getId());
+            }).withRecordExceptionHandler((m, r, e) -> failed.add(r.getRecordInfo().getId())));
+
+            for (int i = 0; i < 5; i++) {
+                writer.write(queue, record(i, 10));
+            }
+
+            // The failure of one record does not stop the others from being consumed
+            awaitCount(received, 4);
+            awaitCount(failed, 1);
+            assertEquals(URI.create("test:2"), failed.get(0));
+        }
+    }
+
+    /* An envelope that fails to send is kept, and sent by the next flush */
+    @Test
+    public void sendFailureTest() throws Exception {
+        final String queue = "envelope.send.failure.test.queue";
+        final List<URI> received = new CopyOnWriteArrayList<>();
+        final AtomicInteger failures = new AtomicInteger(2);
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory()) {
+
+            @Override
+            public void write(String q, MessageCreator creator) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new RuntimeException("Send failed");
+                }
+                super.write(q, creator);
+            }
+        }; EnvelopingHarvestRecordWriter writer = new EnvelopingHarvestRecordWriter(jms)
+                .withEnvelopeSize(2)
+                .withEnvelopeTime(50)) {
+
+            jms.listen(queue, onHarvestRecord(r -> received.add(r.getRecordInfo().getId())));
+
+            writer.write(queue, record(0, 10));
+            try {
+                writer.write(queue, record(1, 10));
+                fail("Expected the send to fail");
+            } catch (final RuntimeException e) {
+                // expected
+            }
+
+            // The timed send fails too
+            Thread.sleep(200);
+
+            writer.flush();
+
+            awaitCount(received, 2);
+            assertEquals(URI.create("test:0"), received.get(0));
+            assertEquals(URI.create("test:1"), received.get(1));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+
+import org.apache.activemq.junit.EmbeddedActiveMQBroker;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class FairQueueConsumerTest {
+
+    @Rule
+    public EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
+
+    @Test
+    public void weightTest() throws Exception {
+        final List<String> consumed = new CopyOnWriteArrayList<>();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            for (int i = 0; i < 100; i++) {
+                jms.write("fair.big", s -> s.createTextMessage("big"));
+            }
+            for (int i = 0; i < 10; i++) {
+                jms.write("fair.small", s -> s.createTextMessage("small"));
+            }
+
+            try (FairQueueConsumer fair = new FairQueueConsumer(jms, m -> {
+                consumed.add(queue(m));
+                sleep(5);
+            }).withWeights(q -> q.equals("fair.small") ? 2 : 1).withQuantum(20)) {
+
+                fair.addQueue("fair.big");
+                fair.addQueue("fair.small");
+                fair.start();
+
+                final long start = System.currentTimeMillis();
+                while (consumed.size() < 110 && System.currentTimeMillis() - start < 20000) {
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        assertEquals(110, consumed.size());
+
+        // The small queue gets twice the time of the big one, so is drained long before it
+        final int lastSmall = consumed.lastIndexOf("fair.small");
+        assertTrue("Last small message was consumed at " + lastSmall, lastSmall < 30);
+    }
+
+    @Test
+    public void removeQueueTest() throws Exception {
+        final List<String> consumed = new CopyOnWriteArrayList<>();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            jms.write("fair.kept", s -> s.createTextMessage("kept"));
+            jms.write("fair.removed", s -> s.createTextMessage("removed"));
+
+            try (FairQueueConsumer fair = new FairQueueConsumer(jms, m -> consumed.add(queue(m)))) {
+                fair.addQueue("fair.kept");
+                fair.addQueue("fair.removed");
+                fair.removeQueue("fair.removed");
+                fair.start();
+
+                final long start = System.currentTimeMillis();
+                while (consumed.isEmpty() && System.currentTimeMillis() - start < 10000) {
+                    Thread.sleep(50);
+                }
+                Thread.sleep(500);
+            }
+        }
+
+        assertEquals(1, consumed.size());
+        assertEquals("fair.kept", consumed.get(0));
+    }
+
+    private static String queue(Message m) {
+        try {
+            return ((Queue) m.getJMSDestination()).getQueueName();
+        } catch (final JMSException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
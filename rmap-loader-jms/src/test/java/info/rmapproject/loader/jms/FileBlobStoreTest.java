@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rmapproject.loader.RecordBody;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class FileBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void releaseTest() throws Exception {
+        final Path dir = folder.getRoot().toPath();
+        final FileBlobStore store = new FileBlobStore(dir);
+
+        final byte[] content = "large record".getBytes();
+
+        final String first = store.put(RecordBody.of(content));
+        final String second = store.put(RecordBody.of(content));
+        assertNotEquals(first, second);
+
+        // Same content is only stored once
+        assertEquals(1, blobs(dir));
+
+        assertArrayEquals(content, store.get(first).toByteArray());
+
+        store.release(first);
+        assertArrayEquals(content, store.get(second).toByteArray());
+
+        store.release(second);
+        assertEquals(0, blobs(dir));
+
+        try {
+            store.get(second);
+            fail("Released blob should be gone");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidReferenceTest() throws Exception {
+        new FileBlobStore(folder.getRoot().toPath()).get("../../etc/passwd");
+    }
+
+    private static long blobs(Path dir) throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(f -> f.getFileName().toString().matches("[0-9a-f]{64}"))
+                    .count();
+        }
+    }
+}
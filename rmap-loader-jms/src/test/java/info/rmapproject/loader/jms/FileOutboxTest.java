@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.JmsTestUtil.record;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class FileOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void orderTest() throws Exception {
+        final Path dir = folder.getRoot().toPath();
+
+        // Small enough that the records span several segments
+        try (FileOutbox outbox = new FileOutbox(dir).withMaxSize(12000)) {
+            for (int i = 0; i < 10; i++) {
+                outbox.append("queue." + i, record(i, 500 + i));
+            }
+            assertTrue(segments(dir) > 1);
+
+            for (int i = 0; i < 10; i++) {
+                final FileOutbox.Entry entry = outbox.take();
+                assertEquals("queue." + i, entry.queue);
+                assertEquals(URI.create("test:" + i), entry.record.getRecordInfo().getId());
+                assertArrayEquals(record(i, 500 + i).getBody(), entry.record.getBody());
+                outbox.remove();
+            }
+
+            assertTrue(outbox.isEmpty());
+            assertEquals(1, segments(dir));
+        }
+    }
+
+    @Test
+    public void reopenTest() throws Exception {
+        final Path dir = folder.getRoot().toPath();
+
+        try (FileOutbox outbox = new FileOutbox(dir)) {
+            for (int i = 0; i < 3; i++) {
+                outbox.append("queue", record(i, 500 + i));
+            }
+            outbox.take();
+            outbox.remove();
+
+            // Read, but not removed
+            outbox.take();
+        }
+
+        try (FileOutbox outbox = new FileOutbox(dir)) {
+            assertEquals(3, outbox.size());
+            assertEquals(URI.create("test:0"), outbox.take().record.getRecordInfo().getId());
+        }
+    }
+
+    private static long segments(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -16,16 +16,29 @@
 
 package info.rmapproject.loader.jms;
 
+import static info.rmapproject.loader.jms.HarvestRecordConverter.fromEnvelope;
 import static info.rmapproject.loader.jms.HarvestRecordConverter.fromMessage;
+import static info.rmapproject.loader.jms.HarvestRecordConverter.isEnvelope;
+import static info.rmapproject.loader.jms.HarvestRecordConverter.toEnvelope;
 import static info.rmapproject.loader.jms.HarvestRecordConverter.toMessage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.unitils.reflectionassert.ReflectionAssert.assertReflectionEquals;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.Message;
 import javax.jms.Session;
+import javax.jms.TextMessage;
 
 import org.apache.activemq.junit.EmbeddedActiveMQBroker;
 import org.junit.Rule;
@@ -33,6 +46,9 @@ import org.junit.Test;
 import org.unitils.reflectionassert.ReflectionComparatorMode;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Compression;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Encoding;
 import info.rmapproject.loader.model.HarvestInfo;
 import info.rmapproject.loader.model.RecordInfo;
 
@@ -67,9 +83,135 @@ public class HarvestRecordConverterTest {
                 final Message msg = toMessage(record, session);
                 final HarvestRecord roundTripped = fromMessage(msg);
 
+                assertTrue(msg instanceof TextMessage);
                 assertReflectionEquals(record, roundTripped, ReflectionComparatorMode.LENIENT_ORDER);
 
             }
         }
     }
+
+    @Test
+    public void textCharsetTest() throws Exception {
+        try (Connection conn = broker.createConnectionFactory().createConnection()) {
+            try (Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                final RecordInfo recordInfo = new RecordInfo();
+                recordInfo.setContentType("text/plain; charset=ISO-8859-1");
+
+                final byte[] latin1 = "caf\u00e9".getBytes(StandardCharsets.ISO_8859_1);
+
+                final HarvestRecord record = new HarvestRecord();
+                record.setRecordInfo(recordInfo);
+                record.setBody(latin1);
+
+                final Message msg = toMessage(record, session, Encoding.TEXT);
+                assertEquals("caf\u00e9", ((TextMessage) msg).getText());
+                assertEquals("ISO-8859-1", msg.getStringProperty(JmsHeaders.PROP_HARVEST_RECORD_CHARSET));
+
+                assertArrayEquals(latin1, fromMessage(msg).getBody());
+            }
+        }
+    }
+
+    @Test
+    public void compressionTest() throws Exception {
+        try (Connection conn = broker.createConnectionFactory().createConnection()) {
+            try (Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                final StringBuilder xml = new StringBuilder();
+                for (int i = 0; i < 1000; i++) {
+                    xml.append("<record><id>").append(i).append("</id></record>");
+                }
+                final byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+                final HarvestRecord big = new HarvestRecord();
+                big.setRecordInfo(new RecordInfo());
+                big.setBody(body);
+
+                final BytesMessage msg = (BytesMessage) toMessage(big, session, Encoding.BYTES,
+                        Compression.deflate(1024));
+                assertEquals("deflate", msg.getStringProperty(JmsHeaders.PROP_HARVEST_RECORD_CONTENT_ENCODING));
+                msg.reset();
+                assertTrue(msg.getBodyLength() < body.length / 5);
+                assertArrayEquals(body, fromMessage(msg).getBody());
+
+                // Inflated as it is read, as many times as it is read
+                final RecordBody inflated = fromMessage(msg).getRecordBody();
+                assertArrayEquals(body, inflated.toByteArray());
+                assertArrayEquals(body, inflated.toByteArray());
+
+                // Below the threshold
+                final HarvestRecord small = new HarvestRecord();
+                small.setRecordInfo(new RecordInfo());
+                small.setBody("<record/>".getBytes(StandardCharsets.UTF_8));
+
+                final Message smallMsg = toMessage(small, session, Encoding.BYTES, Compression.fast(1024));
+                assertFalse(smallMsg.propertyExists(JmsHeaders.PROP_HARVEST_RECORD_CONTENT_ENCODING));
+                assertArrayEquals(small.getBody(), fromMessage(smallMsg).getBody());
+            }
+        }
+    }
+
+    @Test
+    public void envelopeTest() throws Exception {
+        try (Connection conn = broker.createConnectionFactory().createConnection()) {
+            try (Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                final RecordInfo fullInfo = new RecordInfo();
+                fullInfo.setContentType("test/stuff");
+                fullInfo.setDate(new Date(1234));
+                fullInfo.setId(URI.create("http://example.org/recordId"));
+                fullInfo.setSrc(URI.create("http://example.org/source"));
+
+                final HarvestInfo harvestInfo = new HarvestInfo();
+                fullInfo.setHarvestInfo(harvestInfo);
+                harvestInfo.setDate(new Date(5678));
+                harvestInfo.setId(URI.create("http://example.org/HarvestId"));
+                harvestInfo.setSrc(URI.create("http://example.org/src"));
+
+                final HarvestRecord full = new HarvestRecord();
+                full.setRecordInfo(fullInfo);
+                full.setBody("HELLO".getBytes());
+
+                final RecordInfo sparseInfo = new RecordInfo();
+                sparseInfo.setId(URI.create("http://example.org/sparse"));
+
+                final HarvestRecord sparse = new HarvestRecord();
+                sparse.setRecordInfo(sparseInfo);
+                sparse.setBody("GOODBYE".getBytes());
+
+                final HarvestRecord noBody = new HarvestRecord();
+                noBody.setRecordInfo(new RecordInfo());
+
+                final Message msg = toEnvelope(Arrays.asList(full, sparse, noBody), session, Compression.deflate(0));
+                assertTrue(isEnvelope(msg));
+                assertFalse(isEnvelope(toMessage(full, session)));
+                assertEquals("deflate", msg.getStringProperty(JmsHeaders.PROP_HARVEST_RECORD_CONTENT_ENCODING));
+
+                final List<HarvestRecord> records = fromEnvelope(msg);
+                assertEquals(3, records.size());
+
+                assertReflectionEquals(fullInfo, records.get(0).getRecordInfo(),
+                        ReflectionComparatorMode.LENIENT_ORDER);
+                assertArrayEquals(full.getBody(), records.get(0).getBody());
+
+                assertEquals(sparseInfo.getId(), records.get(1).getRecordInfo().getId());
+                assertNull(records.get(1).getRecordInfo().getDate());
+                assertNull(records.get(1).getRecordInfo().getHarvestInfo().getId());
+                assertArrayEquals(sparse.getBody(), records.get(1).getBody());
+
+                assertNull(records.get(2).getRecordBody());
+            }
+        }
+    }
+
+    @Test
+    public void legacyTextTest() throws Exception {
+        try (Connection conn = broker.createConnectionFactory().createConnection()) {
+            try (Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+
+                // No charset header, as written by earlier versions
+                final Message msg = session.createTextMessage("\u00fcber");
+
+                assertArrayEquals("\u00fcber".getBytes(StandardCharsets.UTF_8), fromMessage(msg).getBody());
+            }
+        }
+    }
 }
@@ -17,21 +17,40 @@
 package info.rmapproject.loader.jms;
 
 import static info.rmapproject.loader.jms.HarvestRecordListener.onHarvestRecord;
+import static info.rmapproject.loader.jms.JmsTestUtil.record;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.unitils.reflectionassert.ReflectionAssert.assertReflectionEquals;
 
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
+import javax.jms.Message;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.junit.EmbeddedActiveMQBroker;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.unitils.reflectionassert.ReflectionComparatorMode;
 
 import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Compression;
+import info.rmapproject.loader.jms.HarvestRecordConverter.Encoding;
 import info.rmapproject.loader.model.HarvestInfo;
 import info.rmapproject.loader.model.RecordInfo;
 
@@ -43,6 +62,9 @@ public class HarvestRecordWriterTest {
     @Rule
     public EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void successfulSendTest() throws Exception {
         try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
@@ -81,6 +103,75 @@ public class HarvestRecordWriterTest {
         }
     }
 
+    @Test
+    public void claimCheckTest() throws Exception {
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            final String queue = "claimCheck.test.queue";
+            final BlobStore blobs = new FileBlobStore(folder.getRoot().toPath());
+
+            final byte[] body = new byte[100000];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) i;
+            }
+
+            final HarvestRecord record = new HarvestRecord();
+            record.setRecordInfo(new RecordInfo());
+            record.setBody(body);
+
+            final HarvestRecordWriter writer = new HarvestRecordWriter(jms);
+            writer.setClaimCheck(blobs, 1024);
+            writer.write(queue, record);
+
+            final AtomicReference<byte[]> receivedBody = new AtomicReference<>();
+            final CountDownLatch messageReceived = new CountDownLatch(1);
+
+            jms.listen(queue, onHarvestRecord(received -> {
+                receivedBody.set(received.getBody());
+                messageReceived.countDown();
+            }).withBlobStore(blobs));
+
+            assertTrue(messageReceived.await(10, TimeUnit.SECONDS));
+            assertArrayEquals(body, receivedBody.get());
+
+            // Blob is removed once consumed
+            Thread.sleep(200);
+            try (Stream<Path> files = Files.walk(folder.getRoot().toPath())) {
+                assertFalse(files.anyMatch(f -> f.getFileName().toString().matches("[0-9a-f]{64}")));
+            }
+        }
+    }
+
+    /* Only queues opted into compression receive compressed records */
+    @Test(timeout = 30000)
+    public void compressionTest() throws Exception {
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            final String compressedQueue = "compressed.test.queue";
+            final String plainQueue = "plain.test.queue";
+
+            final HarvestRecord record = record(1, 4096);
+
+            final HarvestRecordWriter writer = new HarvestRecordWriter(jms);
+            writer.setEncoding(Encoding.BYTES);
+            writer.setCompression(Compression.deflate(0), compressedQueue::equals);
+            writer.write(compressedQueue, record);
+            writer.write(plainQueue, record);
+
+            final Map<String, Message> received = new ConcurrentHashMap<>();
+            jms.listen(compressedQueue, m -> received.put(compressedQueue, m));
+            jms.listen(plainQueue, m -> received.put(plainQueue, m));
+
+            while (received.size() < 2) {
+                Thread.sleep(50);
+            }
+
+            assertEquals("deflate", received.get(compressedQueue).getStringProperty(
+                    JmsHeaders.PROP_HARVEST_RECORD_CONTENT_ENCODING));
+            assertNull(received.get(plainQueue).getStringProperty(JmsHeaders.PROP_HARVEST_RECORD_CONTENT_ENCODING));
+            assertArrayEquals(record.getBody(), HarvestRecordConverter.fromMessage(received.get(compressedQueue))
+                    .getBody());
+        }
+    }
+
     @Test
     public void errorTest() throws Exception {
         try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
@@ -104,4 +195,49 @@ public class HarvestRecordWriterTest {
             assertTrue(errorReceived.await(10, TimeUnit.SECONDS));
         }
     }
+
+    @Test
+    public void outboxTest() throws Exception {
+        final String queue = "outbox.test.queue";
+        final List<URI> received = new CopyOnWriteArrayList<>();
+
+        // No broker yet
+        final JmsClient jms = new JmsClient();
+        jms.setConnectionFactory(new ActiveMQConnectionFactory("vm://outbox-test?create=false"));
+        jms.setReconnectDelay(50, 200);
+        jms.initInBackground();
+
+        final BrokerService late = new BrokerService();
+        late.setBrokerName("outbox-test");
+        late.setPersistent(false);
+        late.setUseJmx(false);
+
+        try (FileOutbox outbox = new FileOutbox(folder.newFolder().toPath())) {
+            final HarvestRecordWriter writer = new HarvestRecordWriter(jms);
+            writer.setOutbox(outbox);
+
+            // Written without waiting for the broker
+            for (int i = 0; i < 5; i++) {
+                writer.write(queue, record(i));
+            }
+            assertEquals(5, outbox.size());
+
+            late.start();
+            jms.listen(queue, onHarvestRecord(r -> received.add(r.getRecordInfo().getId())));
+
+            outbox.awaitEmpty();
+            final long start = System.currentTimeMillis();
+            while (received.size() < 5 && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+
+            assertEquals(5, received.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(URI.create("test:" + i), received.get(i));
+            }
+        } finally {
+            jms.close();
+            late.stop();
+        }
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RecordBody;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class InProcessTransportTest {
+
+    @Test
+    public void ringTest() throws Exception {
+        final RecordRing ring = new RecordRing(3);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(record("test:" + i)));
+        }
+
+        // Capacity is rounded up to 4
+        assertFalse(ring.offer(record("test:4")));
+        assertEquals(4, ring.size());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(URI.create("test:" + i), ring.poll().getRecordInfo().getId());
+        }
+        assertNull(ring.poll());
+
+        ring.close();
+        assertNull(ring.take(1, TimeUnit.MINUTES));
+    }
+
+    /* Every record put by several threads is taken exactly once, however small the ring */
+    @Test
+    public void concurrentRingTest() throws Exception {
+        final RecordRing ring = new RecordRing(8);
+        final int perThread = 10000;
+
+        final List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            final int producer = p;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    try {
+                        ring.put(record("test:" + producer + "-" + i));
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }));
+        }
+
+        final Set<URI> taken = Collections.synchronizedSet(new HashSet<>());
+        final AtomicInteger count = new AtomicInteger();
+        final List<Thread> consumers = new ArrayList<>();
+        for (int c = 0; c < 4; c++) {
+            consumers.add(new Thread(() -> {
+                try {
+                    HarvestRecord r;
+                    while ((r = ring.take(10, TimeUnit.SECONDS)) != null) {
+                        taken.add(r.getRecordInfo().getId());
+                        count.incrementAndGet();
+                    }
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }));
+        }
+
+        producers.forEach(Thread::start);
+        consumers.forEach(Thread::start);
+        for (final Thread t : producers) {
+            t.join();
+        }
+        ring.close();
+        for (final Thread t : consumers) {
+            t.join();
+        }
+
+        assertEquals(4 * perThread, count.get());
+        assertEquals(4 * perThread, taken.size());
+    }
+
+    /* Records pass through two stages; the writer's caller may release each record once written */
+    @Test
+    public void pipelineTest() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final List<HarvestRecord> failed = Collections.synchronizedList(new ArrayList<>());
+
+        try (InProcessTransport transport = new InProcessTransport()
+                .withCapacity(2)
+                .withExceptionHandler((r, e) -> failed.add(r))) {
+
+            final HarvestRecordWriter writer = transport.writer();
+
+            transport.listen("first", new HarvestRecordListener(r -> {
+                if (r.getRecordInfo().getId().equals(URI.create("test:fail"))) {
+                    throw new RuntimeException("Failed");
+                }
+                final HarvestRecord upper = record(r.getRecordInfo().getId().toString());
+                upper.setBody(new String(r.getBody(), UTF_8).toUpperCase().getBytes(UTF_8));
+                writer.write("second", upper);
+            }), 2);
+
+            transport.listen("second", new HarvestRecordListener(r -> {
+                received.add(new String(r.getBody(), UTF_8));
+            }), 1);
+
+            for (int i = 0; i < 100; i++) {
+                final AtomicBoolean released = new AtomicBoolean();
+                final HarvestRecord r = record("test:" + i);
+                r.setRecordBody(new ReleasedBody(("body " + i).getBytes(UTF_8), released));
+
+                writer.write("first", r);
+                r.getRecordBody().close();
+                assertTrue(released.get());
+            }
+            writer.write("first", record("test:fail"));
+
+            assertEquals(1, transport.awaitIdle());
+
+            assertEquals(100, received.size());
+            assertTrue(received.contains("BODY 99"));
+            assertEquals(1, failed.size());
+        }
+    }
+
+    /* Each writing thread waits only for its own records, and those written while consuming them */
+    @Test(timeout = 10000)
+    public void awaitIdleTest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        try (InProcessTransport transport = new InProcessTransport()) {
+            final HarvestRecordWriter writer = transport.writer();
+
+            transport.listen("first", new HarvestRecordListener(r -> writer.write("second", r)), 2);
+            transport.listen("second", new HarvestRecordListener(r -> {
+                if (r.getRecordInfo().getId().equals(URI.create("test:stuck"))) {
+                    await(release);
+                } else if (r.getRecordInfo().getId().equals(URI.create("test:fail"))) {
+                    throw new RuntimeException("Failed");
+                }
+            }), 2);
+
+            final Thread other = new Thread(() -> writer.write("first", record("test:stuck")));
+            other.start();
+            other.join();
+
+            writer.write("first", record("test:ok"));
+            writer.write("first", record("test:fail"));
+            assertEquals(1, transport.awaitIdle());
+
+            // Failures are counted once
+            assertEquals(0, transport.awaitIdle());
+
+            release.countDown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static HarvestRecord record(String id) {
+        final RecordInfo info = new RecordInfo();
+        info.setId(URI.create(id));
+
+        final HarvestRecord record = new HarvestRecord();
+        record.setRecordInfo(info);
+        record.setBody(id.getBytes(UTF_8));
+        return record;
+    }
+
+    /* Body that can no longer be read once released */
+    private static class ReleasedBody implements RecordBody {
+
+        final byte[] bytes;
+
+        final AtomicBoolean released;
+
+        ReleasedBody(byte[] bytes, AtomicBoolean released) {
+            this.bytes = bytes;
+            this.released = released;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            if (released.get()) {
+                throw new IOException("Released");
+            }
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+
+        @Override
+        public void close() {
+            released.set(true);
+        }
+    }
+}
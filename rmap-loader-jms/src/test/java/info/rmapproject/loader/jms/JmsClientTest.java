@@ -16,19 +16,38 @@
 
 package info.rmapproject.loader.jms;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.jms.TextMessage;
 
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.jms.pool.PooledConnectionFactory;
 import org.apache.activemq.junit.EmbeddedActiveMQBroker;
 import org.junit.Rule;
 import org.junit.Test;
 
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.jms.ConsumerOptions.Acknowledgement;
+import info.rmapproject.loader.model.RecordInfo;
+
 /**
  * @author apb@jhu.edu
  */
@@ -60,4 +79,281 @@ public class JmsClientTest {
             }
         }
     }
+
+    @Test
+    public void concurrentWriteTest() throws Exception {
+        final String queue = "concurrent.test.queue";
+        final int THREADS = 8;
+        final int COUNT = 50;
+
+        final CountDownLatch received = new CountDownLatch(THREADS * COUNT);
+        try (final JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+
+            jms.listen(queue, m -> received.countDown());
+
+            final ExecutorService exe = Executors.newFixedThreadPool(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                exe.execute(() -> {
+                    for (int i = 0; i < COUNT; i++) {
+                        jms.write(queue, session -> session.createTextMessage("hello"));
+                    }
+                });
+            }
+            exe.shutdown();
+
+            assertTrue(exe.awaitTermination(30, TimeUnit.SECONDS));
+            assertTrue(received.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void asyncWriteTest() throws Exception {
+        final String queue = "async.test.queue";
+        final int COUNT = 200;
+
+        final CountDownLatch received = new CountDownLatch(COUNT);
+        try (final JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            jms.setMaxInFlight(10);
+
+            jms.listen(queue, m -> received.countDown());
+
+            final CompletableFuture<?>[] sent = new CompletableFuture<?>[COUNT];
+            for (int i = 0; i < COUNT; i++) {
+                sent[i] = jms.writeAsync(queue, session -> session.createTextMessage("hello"));
+            }
+
+            jms.awaitAsyncWrites();
+            for (final CompletableFuture<?> future : sent) {
+                assertTrue(future.isDone());
+                assertFalse(future.isCompletedExceptionally());
+            }
+
+            assertTrue(received.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    /* Through a pooled connection factory, ActiveMQ's own asynchronous sends are used, not background threads */
+    @Test
+    public void asyncPooledWriteTest() throws Exception {
+        final String queue = "async.pooled.test.queue";
+        final int COUNT = 50;
+
+        final PooledConnectionFactory pool = new PooledConnectionFactory();
+        pool.setConnectionFactory(broker.createConnectionFactory());
+
+        final CountDownLatch received = new CountDownLatch(COUNT);
+        try (final JmsClient jms = new JmsClient(pool)) {
+            jms.listen(queue, m -> received.countDown());
+
+            final CompletableFuture<?>[] sent = new CompletableFuture<?>[COUNT];
+            for (int i = 0; i < COUNT; i++) {
+                sent[i] = jms.writeAsync(queue, session -> session.createTextMessage("hello"));
+            }
+
+            jms.awaitAsyncWrites();
+            for (final CompletableFuture<?> future : sent) {
+                assertFalse(future.isCompletedExceptionally());
+            }
+            assertFalse(Thread.getAllStackTraces().keySet().stream()
+                    .anyMatch(t -> t.getName().equals("jms-async-write")));
+
+            assertTrue(received.await(30, TimeUnit.SECONDS));
+        } finally {
+            pool.stop();
+        }
+    }
+
+    /* A write that cannot begin fails its future, and does not hold on to its permit */
+    @Test
+    public void asyncWriteFailureTest() throws Exception {
+        final JmsClient jms = new JmsClient(broker.createConnectionFactory());
+        jms.setMaxInFlight(2);
+        jms.close();
+
+        for (int i = 0; i < 3; i++) {
+            final CompletableFuture<?> future = jms.writeAsync("async.failure.test.queue",
+                    session -> session.createTextMessage("hello"));
+            assertTrue(future.isCompletedExceptionally());
+        }
+
+        jms.awaitAsyncWrites();
+    }
+
+    /* Without a connection, a write with a bounded wait fails rather than waiting for the broker */
+    @Test
+    public void connectWaitTest() throws Exception {
+        final JmsClient jms = new JmsClient();
+        jms.setConnectionFactory(new ActiveMQConnectionFactory("vm://no-such-broker?create=false"));
+        jms.setReconnectDelay(50, 200);
+        jms.initInBackground();
+
+        try {
+            final long start = System.currentTimeMillis();
+            try {
+                jms.write("connect.wait.test.queue", s -> s.createTextMessage("hello"), 200);
+                fail("Expected the write to fail");
+            } catch (final IllegalStateException e) {
+                final long waited = System.currentTimeMillis() - start;
+                assertTrue(waited >= 200 && waited < 5000);
+            }
+
+            assertTrue(jms.writeAsync("connect.wait.test.queue", s -> s.createTextMessage("hello"), 0)
+                    .isCompletedExceptionally());
+        } finally {
+            jms.close();
+        }
+    }
+
+    @Test
+    public void concurrentListenTest() throws Exception {
+        final String queue = "concurrent.listen.test.queue";
+        final int COUNT = 60;
+
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch received = new CountDownLatch(COUNT);
+
+        final ActiveMQConnectionFactory factory = broker.createConnectionFactory();
+        factory.getPrefetchPolicy().setQueuePrefetch(1);
+
+        try (final JmsClient jms = new JmsClient(factory)) {
+            jms.listen(queue, m -> {
+                peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(100);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                active.decrementAndGet();
+                received.countDown();
+            }, 2, 4);
+
+            for (int i = 0; i < COUNT; i++) {
+                jms.write(queue, session -> session.createTextMessage("hello"));
+            }
+
+            assertTrue(received.await(30, TimeUnit.SECONDS));
+
+            // Started with two, and a backlog of several seconds' work is enough to add the rest
+            assertEquals(4, peak.get());
+        }
+    }
+
+    @Test
+    public void partitionTest() throws Exception {
+        final String queue = "partition.test.queue";
+        final int COUNT = 40;
+
+        final List<Message> received = new CopyOnWriteArrayList<>();
+
+        try (final JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            jms.listen(queue, received::add, new ConsumerOptions()
+                    .withConcurrency(2, 2)
+                    .withPartitions(0, 3));
+
+            final HarvestRecordWriter writer = new HarvestRecordWriter(jms);
+            writer.setPartitions(8);
+
+            int expected = 0;
+            for (int i = 0; i < COUNT; i++) {
+                final RecordInfo info = new RecordInfo();
+                info.setId(URI.create("test:" + i));
+                final HarvestRecord record = new HarvestRecord();
+                record.setRecordInfo(info);
+                record.setBody("hello".getBytes());
+                writer.write(queue, record);
+
+                if (HarvestRecordConverter.partition(info.getId(), 8) < 4) {
+                    expected++;
+                }
+            }
+
+            final long start = System.currentTimeMillis();
+            while (received.size() < expected && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(200);
+
+            // Only partitions 0 to 3 are consumed
+            assertEquals(expected, received.size());
+            for (final Message m : received) {
+                final int partition = m.getIntProperty(JmsHeaders.PROP_HARVEST_PARTITION);
+                assertTrue(partition < 4);
+                assertEquals(Integer.toString(partition), m.getStringProperty(JmsHeaders.PROP_GROUP_ID));
+            }
+        }
+
+        // Divided evenly among consumers
+        final ConsumerOptions options = new ConsumerOptions().withConcurrency(3, 3).withPartitions(0, 7);
+        assertEquals("JMSXGroupID IN ('0', '1')", options.selector(0));
+        assertEquals("JMSXGroupID IN ('2', '3', '4')", options.selector(1));
+        assertEquals("JMSXGroupID IN ('5', '6', '7')", options.selector(2));
+    }
+
+    @Test
+    public void batchAcknowledgementTest() throws Exception {
+        final String queue = "batch.ack.test.queue";
+
+        final ConsumerOptions options = new ConsumerOptions()
+                .withPrefetch(1)
+                .withAcknowledgement(Acknowledgement.TRANSACTED, 5, 0);
+
+        final CountDownLatch first = new CountDownLatch(7);
+        try (final JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            jms.listen(queue, m -> first.countDown(), options);
+
+            for (int i = 0; i < 7; i++) {
+                jms.write(queue, session -> session.createTextMessage("hello"));
+            }
+
+            assertTrue(first.await(10, TimeUnit.SECONDS));
+        }
+
+        // Only the first batch of five was committed, so the other two are redelivered
+        final AtomicInteger redelivered = new AtomicInteger();
+        try (final JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            jms.listen(queue, m -> redelivered.incrementAndGet(),
+                    new ConsumerOptions().withAcknowledgement(Acknowledgement.CLIENT, 1, 0));
+
+            final long start = System.currentTimeMillis();
+            while (redelivered.get() < 2 && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(500);
+            assertEquals(2, redelivered.get());
+        }
+    }
+
+    @Test
+    public void batchFailureTest() throws Exception {
+        final String queue = "batch.failure.test.queue";
+
+        final List<String> processed = new CopyOnWriteArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(5);
+        try (final JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            jms.listen(queue, m -> {
+                try {
+                    final String text = ((TextMessage) m).getText();
+                    if (text.equals("2") && failures.getAndIncrement() == 0) {
+                        throw new RuntimeException("fail");
+                    }
+                    processed.add(text);
+                    done.countDown();
+                } catch (final JMSException e) {
+                    throw new RuntimeException(e);
+                }
+            }, new ConsumerOptions().withPrefetch(1).withAcknowledgement(Acknowledgement.TRANSACTED, 10, 0));
+
+            for (int i = 0; i < 5; i++) {
+                final String text = Integer.toString(i);
+                jms.write(queue, session -> session.createTextMessage(text));
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+
+        // Messages processed before the failure are not processed again
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4"), processed);
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.Collection;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * Records and waits shared by tests, here and in modules that depend on this one.
+ *
+ * @author apb@jhu.edu
+ */
+public class JmsTestUtil {
+
+    /**
+     * A record with id <code>test:i</code>, and body <code>record i</code>.
+     *
+     * @param i Number of the record.
+     * @return the record.
+     */
+    public static HarvestRecord record(int i) {
+        return record(i, ("record " + i).getBytes());
+    }
+
+    /**
+     * A record with id <code>test:i</code>, and a body of the given size.
+     *
+     * @param i Number of the record.
+     * @param size Size of its body, in bytes.
+     * @return the record.
+     */
+    public static HarvestRecord record(int i, int size) {
+        return record(i, new byte[size]);
+    }
+
+    private static HarvestRecord record(int i, byte[] body) {
+        final RecordInfo info = new RecordInfo();
+        info.setId(URI.create("test:" + i));
+
+        final HarvestRecord record = new HarvestRecord();
+        record.setRecordInfo(info);
+        record.setBody(body);
+        return record;
+    }
+
+    /**
+     * Wait up to ten seconds for a collection, filled by other threads, to reach the given size.
+     *
+     * @param collection The collection; must be thread safe.
+     * @param count Expected size.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static void awaitCount(Collection<?> collection, int count) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (collection.size() < count && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, collection.size());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.jms;
+
+import static info.rmapproject.loader.jms.HarvestRecordListener.onHarvestRecord;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.jms.Message;
+
+import org.apache.activemq.junit.EmbeddedActiveMQBroker;
+import org.junit.Rule;
+import org.junit.Test;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.RetryableException;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * @author apb@jhu.edu
+ */
+public class RetryHandlerTest {
+
+    @Rule
+    public EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
+
+    @Test
+    public void transientFailureTest() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final List<Message> errors = run("retry.transient", r -> {
+            attempts.incrementAndGet();
+            throw new RetryableException("Service unavailable");
+        });
+
+        // The first attempt, then two retries
+        assertEquals(3, attempts.get());
+        assertEquals(2, errors.get(0).getIntProperty(JmsHeaders.PROP_HARVEST_RETRY));
+        assertTrue(errors.get(0).getStringProperty(JmsHeaders.PROP_HARVEST_EXCEPTION).contains("Service unavailable"));
+        assertEquals(URI.create("test:0"), HarvestRecordConverter.fromMessage(errors.get(0)).getRecordInfo().getId());
+    }
+
+    @Test
+    public void permanentFailureTest() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final List<Message> errors = run("retry.permanent", r -> {
+            attempts.incrementAndGet();
+            throw new IllegalArgumentException("Bad record");
+        });
+
+        assertEquals(1, attempts.get());
+        assertFalse(errors.get(0).propertyExists(JmsHeaders.PROP_HARVEST_RETRY));
+        assertTrue(errors.get(0).getStringProperty(JmsHeaders.PROP_HARVEST_EXCEPTION).contains("Bad record"));
+    }
+
+    @Test
+    public void delayTest() {
+        final RetryPolicy policy = new RetryPolicy().withDelay(100, 1000);
+        assertEquals(100, policy.delay(1));
+        assertEquals(400, policy.delay(3));
+        assertEquals(1000, policy.delay(5));
+        assertEquals(1000, policy.delay(100));
+    }
+
+    // Send a record to a queue with a failing consumer, and return what reaches its error queue
+    private List<Message> run(String queue, Consumer<HarvestRecord> consumer) throws Exception {
+        final List<Message> errors = new CopyOnWriteArrayList<>();
+
+        try (JmsClient jms = new JmsClient(broker.createConnectionFactory())) {
+            final RetryHandler failures = new RetryHandler(jms, new RetryPolicy()
+                    .withMaxRetries(2)
+                    .withDelay(1, 1), q -> "error." + q);
+
+            jms.listen(queue, onHarvestRecord(consumer).withExceptionHandler(failures));
+            jms.listen("error." + queue, errors::add);
+
+            final RecordInfo info = new RecordInfo();
+            info.setId(URI.create("test:0"));
+            final HarvestRecord record = new HarvestRecord();
+            record.setRecordInfo(info);
+            record.setBody("record".getBytes());
+            new HarvestRecordWriter(jms).write(queue, record);
+
+            final long start = System.currentTimeMillis();
+            while (errors.isEmpty() && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(200);
+        }
+
+        assertEquals(1, errors.size());
+        return errors;
+    }
+}
@@ -20,6 +20,8 @@ import static info.rmapproject.loader.util.ConfigUtil.integer;
 import static info.rmapproject.loader.util.ConfigUtil.string;
 import static info.rmapproject.loader.util.LogUtil.adjustLogLevels;
 
+import java.nio.file.Paths;
+
 import javax.jms.ConnectionFactory;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
@@ -31,6 +33,8 @@ import org.apache.camel.impl.DefaultCamelContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import info.rmapproject.loader.jms.FileBlobStore;
+
 /**
  * @author apb@jhu.edu
  */
@@ -51,6 +55,9 @@ public class Main {
         xsl.setDestUri("msg:queue:" + string("jms.queue.dest", "rmap.harvest.disco.transformed"));
         xsl.setOutputContentType(string("content.type", "application/vnd.rmap-project.disco+rdf+xml"));
         xsl.setXsltFile(string("xslt.file", null));
+        if (string("claim.check.dir", null) != null) {
+            xsl.setBlobStore(new FileBlobStore(Paths.get(string("claim.check.dir", null))));
+        }
 
         xsl.addRoutesToCamelContext(cxt);
 
@@ -22,11 +22,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 
 import org.apache.camel.Exchange;
-import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import info.rmapproject.loader.jms.BlobStore;
 import info.rmapproject.loader.model.RecordInfo;
 
 /**
@@ -45,7 +45,7 @@ public class XSLTransformService extends RouteBuilder {
 
     public static final String PROP_HARVEST_RECORD_ID = "rmap.harvest.record.id";
 
-    private final Processor xsltSplit = new Xslt2Splitter();
+    private final Xslt2Splitter xsltSplit = new Xslt2Splitter();
 
     /**
      * Absolute or relative path to XSLT file.
@@ -81,6 +81,10 @@ public class XSLTransformService extends RouteBuilder {
         this.xslt_file = fileName;
     }
 
+    public void setBlobStore(BlobStore store) {
+        xsltSplit.withBlobStore(store);
+    }
+
     @Override
     public void configure() throws Exception {
 
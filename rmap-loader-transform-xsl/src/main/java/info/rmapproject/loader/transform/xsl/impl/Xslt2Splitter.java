@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.InflaterInputStream;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -45,6 +46,7 @@ import org.apache.camel.builder.xml.ResultHandlerFactory;
 import org.apache.camel.builder.xml.StreamResultHandler;
 import org.apache.camel.builder.xml.StringResultHandlerFactory;
 import org.apache.camel.model.ProcessorDefinition;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.apache.xml.resolver.tools.CatalogResolver;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
@@ -57,6 +59,13 @@ import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.jms.BlobStore;
+import info.rmapproject.loader.jms.HarvestRecordConverter;
+import info.rmapproject.loader.jms.JmsHeaders;
+import info.rmapproject.loader.model.HarvestInfo;
+import info.rmapproject.loader.model.RecordInfo;
+
 /**
  * Camel {@link Processor} that applies an XSLT 1.0 or 2.0 template, producing a list of result documents.
  * <p>
@@ -79,6 +88,21 @@ import net.sf.saxon.s9api.XsltTransformer;
  * route, as in <code>...process(xsltSplit).split(body())...</code>, where <code>xsltsplit</code> is an instance of
  * {@link Xslt2Splitter}
  * </p>
+ * <p>
+ * If the message has a {@link #HEADER_CONTENT_ENCODING} header of <code>deflate</code> (as set by the loader's JMS
+ * writers when compressing records), its body is inflated before it is transformed, and the header is dropped from
+ * the results, which are not compressed.
+ * </p>
+ * <p>
+ * If the message carries a claim check in its {@link #HEADER_RECORD_BLOB} header rather than a body, the body is read
+ * from the blob store given by {@link #withBlobStore(BlobStore)}, and the header is dropped from the results. The
+ * claim check is released once the exchange has completed successfully.
+ * </p>
+ * <p>
+ * If the message is an envelope of several records (it has a {@link #HEADER_ENVELOPE} header), each record is
+ * transformed on its own. The results of each carry the record's own headers (id, date, and so on), as if it had been
+ * sent in a message of its own, and the envelope header is dropped.
+ * </p>
  *
  * @author apb18
  */
@@ -91,10 +115,71 @@ public class Xslt2Splitter
 
     public static final String HEADER_XSLT_FILE_NAME = "xslt2split.xsl_file";
 
+    /** Compression applied to the message body, if any; the loader's JMS content encoding header */
+    public static final String HEADER_CONTENT_ENCODING = "rmap_content_encoding";
+
+    /** Reference to the message body in a blob store, if it was sent by claim check */
+    public static final String HEADER_RECORD_BLOB = JmsHeaders.PROP_HARVEST_RECORD_BLOB;
+
+    /** Number of records in an envelope message */
+    public static final String HEADER_ENVELOPE = JmsHeaders.PROP_HARVEST_ENVELOPE;
+
+    private BlobStore blobs;
+
+    /**
+     * Blob store from which to read message bodies sent by claim check.
+     *
+     * @param store Blob store.
+     * @return this splitter.
+     */
+    public Xslt2Splitter withBlobStore(BlobStore store) {
+        this.blobs = store;
+        return this;
+    }
+
     @Override
     public void process(Exchange exchange) throws Exception {
         final Message msg = exchange.getIn();
 
+        final List<Message> splitMessages = new LinkedList<>();
+
+        final String ref = msg.getHeader(HEADER_RECORD_BLOB, String.class);
+
+        try (InputStream body = body(msg, ref)) {
+            if (msg.getHeader(HEADER_ENVELOPE) != null) {
+                msg.removeHeader(HEADER_ENVELOPE);
+                for (final HarvestRecord record : HarvestRecordConverter.fromEnvelope(body)) {
+                    if (record.getRecordBody() == null) {
+                        throw new RuntimeException("Record in envelope has no body");
+                    }
+
+                    final Message recordMsg = msg.copy();
+                    setRecordHeaders(recordMsg, record.getRecordInfo());
+                    try (InputStream recordBody = record.getRecordBody().openStream()) {
+                        splitMessages.addAll(transform(recordMsg, recordBody));
+                    }
+                }
+            } else {
+                splitMessages.addAll(transform(msg, body));
+            }
+        }
+
+        msg.setBody(splitMessages);
+
+        if (ref != null) {
+            // Only once the results have been sent on is the body no longer needed
+            exchange.addOnCompletion(new SynchronizationAdapter() {
+
+                @Override
+                public void onComplete(Exchange e) {
+                    blobs.release(ref);
+                }
+            });
+        }
+    }
+
+    // Transform a document, giving a message for each result
+    private List<Message> transform(Message msg, InputStream body) throws Exception {
         final CaptureTransformer transform = new CaptureTransformer(getTransformer(msg),
                 new StringResultHandlerFactory());
 
@@ -113,7 +198,7 @@ public class Xslt2Splitter
         });
 
         for (final Map.Entry<String, ResultHandler> result : transform
-                .transform(new SAXSource(reader, new InputSource(msg.getBody(InputStream.class)))).entrySet()) {
+                .transform(new SAXSource(reader, new InputSource(body))).entrySet()) {
 
             final Message outputDoc = msg.copy();
             outputDoc.setHeader(Exchange.FILE_NAME, result.getKey());
@@ -121,7 +206,64 @@ public class Xslt2Splitter
             splitMessages.add(outputDoc);
         }
 
-        msg.setBody(splitMessages);
+        return splitMessages;
+    }
+
+    // Give a record from an envelope the headers it would have had in a message of its own
+    private static void setRecordHeaders(Message msg, RecordInfo info) {
+        if (info == null) {
+            return;
+        }
+
+        if (info.getId() != null) {
+            msg.setHeader(JmsHeaders.PROP_HARVEST_RECORD_ID, info.getId().toString());
+        }
+        if (info.getDate() != null) {
+            msg.setHeader(JmsHeaders.PROP_HARVEST_RECORD_DATE, info.getDate().getTime());
+        }
+        if (info.getSrc() != null) {
+            msg.setHeader(JmsHeaders.PROP_HARVEST_RECORD_SRC, info.getSrc().toString());
+        }
+        if (info.getContentType() != null) {
+            msg.setHeader(JmsHeaders.PROP_HARVEST_RECORD_CONTENT_TYPE, info.getContentType());
+        }
+
+        final HarvestInfo harvest = info.getHarvestInfo();
+        if (harvest != null) {
+            if (harvest.getId() != null) {
+                msg.setHeader(JmsHeaders.PROP_HARVEST_ID, harvest.getId().toString());
+            }
+            if (harvest.getDate() != null) {
+                msg.setHeader(JmsHeaders.PROP_HARVEST_DATE, harvest.getDate().getTime());
+            }
+            if (harvest.getSrc() != null) {
+                msg.setHeader(JmsHeaders.PROP_HARVEST_SRC, harvest.getSrc().toString());
+            }
+        }
+    }
+
+    private InputStream body(Message msg, String ref) throws IOException {
+        final InputStream in;
+        if (ref != null) {
+            if (blobs == null) {
+                throw new IllegalStateException("Record body was sent by claim check, but there is no blob store");
+            }
+            msg.removeHeader(HEADER_RECORD_BLOB);
+            in = blobs.get(ref).openStream();
+        } else {
+            in = msg.getBody(InputStream.class);
+        }
+
+        final Object encoding = msg.getHeader(HEADER_CONTENT_ENCODING);
+        if (encoding == null) {
+            return in;
+        } else if (!"deflate".equals(encoding)) {
+            in.close();
+            throw new RuntimeException("Unsupported content encoding " + encoding);
+        }
+
+        msg.removeHeader(HEADER_CONTENT_ENCODING);
+        return new InflaterInputStream(in);
     }
 
     private XsltTransformer getTransformer(Message msg) {
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.transform.xsl.impl;
+
+import static info.rmapproject.loader.transform.xsl.impl.Xslt2Splitter.HEADER_XSLT_FILE_NAME;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+
+import info.rmapproject.loader.HarvestRecord;
+import info.rmapproject.loader.model.HarvestInfo;
+import info.rmapproject.loader.model.RecordInfo;
+
+/**
+ * Applies an XSLT transform to records directly, rather than as part of a Camel route.
+ * <p>
+ * For running the transform within the same process as the stages before and after it. Each record is transformed
+ * by an {@link Xslt2Splitter}, with the record's metadata given as headers named as in JMS messages (so available to
+ * the transform as parameters, as they are in {@link XSLTransformService}). Each output document becomes a record,
+ * with the same {@link RecordInfo} as the original, apart from its content type.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class XsltRecordTransformer implements Function<HarvestRecord, List<HarvestRecord>> {
+
+    private final Xslt2Splitter xsltSplit = new Xslt2Splitter();
+
+    private final CamelContext cxt = new DefaultCamelContext();
+
+    private final String xsltFile;
+
+    private String contentType;
+
+    /**
+     * Create a transformer.
+     *
+     * @param xsltFile Path to the XSLT file.
+     */
+    public XsltRecordTransformer(String xsltFile) {
+        if (xsltFile == null || !new File(xsltFile).exists()) {
+            throw new IllegalArgumentException("XSLT file '" + xsltFile + "' does not exist");
+        }
+        this.xsltFile = xsltFile;
+    }
+
+    /**
+     * Content type of output records.
+     *
+     * @param contentType Content type, or null to keep that of the original record.
+     * @return configured transformer.
+     */
+    public XsltRecordTransformer withOutputContentType(String contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+    @Override
+    public List<HarvestRecord> apply(HarvestRecord record) {
+        final Exchange exchange = new DefaultExchange(cxt);
+        final Message in = exchange.getIn();
+
+        try (InputStream body = record.getRecordBody().openStream()) {
+            in.setBody(body);
+            in.setHeader(HEADER_XSLT_FILE_NAME, xsltFile);
+            setHeaders(in, record.getRecordInfo());
+
+            xsltSplit.process(exchange);
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new RuntimeException("Could not transform record " + record.getRecordInfo().getId(), e);
+        }
+
+        final List<HarvestRecord> output = new ArrayList<>();
+        for (final Object doc : in.getBody(List.class)) {
+            final HarvestRecord transformed = new HarvestRecord();
+            transformed.setRecordInfo(copy(record.getRecordInfo()));
+            transformed.setBody(((Message) doc).getBody(String.class).getBytes(UTF_8));
+            output.add(transformed);
+        }
+
+        return output;
+    }
+
+    private static void setHeaders(Message m, RecordInfo info) {
+        if (info.getId() != null) {
+            m.setHeader("rmap.harvest.record.id", info.getId().toString());
+        }
+        if (info.getDate() != null) {
+            m.setHeader("rmap.harvest.record.date", info.getDate().getTime());
+        }
+        if (info.getSrc() != null) {
+            m.setHeader("rmap.harvest.record.src", info.getSrc().toString());
+        }
+        if (info.getContentType() != null) {
+            m.setHeader(Exchange.CONTENT_TYPE, info.getContentType());
+        }
+
+        final HarvestInfo harvest = info.getHarvestInfo();
+        if (harvest != null) {
+            if (harvest.getId() != null) {
+                m.setHeader("rmap.harvest.id", harvest.getId().toString());
+            }
+            if (harvest.getDate() != null) {
+                m.setHeader("rmap.harvest.date", harvest.getDate().getTime());
+            }
+            if (harvest.getSrc() != null) {
+                m.setHeader("rmap.harvest.src", harvest.getSrc().toString());
+            }
+        }
+    }
+
+    private RecordInfo copy(RecordInfo info) {
+        final RecordInfo copy = new RecordInfo();
+        copy.setId(info.getId());
+        copy.setDate(info.getDate());
+        copy.setSrc(info.getSrc());
+        copy.setHarvestInfo(info.getHarvestInfo());
+        copy.setContentType(contentType != null ? contentType : info.getContentType());
+        return copy;
+    }
+}
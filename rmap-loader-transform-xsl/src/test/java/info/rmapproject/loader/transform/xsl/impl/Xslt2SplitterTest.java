@@ -16,9 +16,16 @@
 
 package info.rmapproject.loader.transform.xsl.impl;
 
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
 
 import org.apache.camel.EndpointInject;
 import org.apache.camel.Produce;
@@ -26,7 +33,14 @@ import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
 import org.apache.camel.test.junit4.CamelTestSupport;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rmapproject.loader.RecordBody;
+import info.rmapproject.loader.jms.BlobStore;
+import info.rmapproject.loader.jms.FileBlobStore;
+import info.rmapproject.loader.jms.JmsHeaders;
 
 public class Xslt2SplitterTest
         extends CamelTestSupport {
@@ -49,6 +63,11 @@ public class Xslt2SplitterTest
     @EndpointInject(uri = "mock:out")
     private MockEndpoint mock_out;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BlobStore blobs;
+
     /* Verifies that result-document are captured */
     @Test
     public void outputFileCountTest() throws Exception {
@@ -93,10 +112,98 @@ public class Xslt2SplitterTest
         mock_out.assertIsSatisfied();
     }
 
+    /* Verifies that deflated bodies are inflated, and results are not marked as compressed */
+    @Test
+    public void deflatedInputTest() throws Exception {
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (InputStream in = getClass().getResourceAsStream("/xslt2/input.xml");
+                OutputStream out = new DeflaterOutputStream(deflated)) {
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > -1) {
+                out.write(buf, 0, len);
+            }
+        }
+
+        final Map<String, Object> headers = new HashMap<>();
+        headers.put(Xslt2Splitter.HEADER_XSLT_FILE_NAME, basedir + "/transform.xsl");
+        headers.put(Xslt2Splitter.HEADER_CONTENT_ENCODING, "deflate");
+
+        mock_out.setExpectedCount(5);
+        mock_out.allMessages().header(Xslt2Splitter.HEADER_CONTENT_ENCODING).isNull();
+
+        template.sendBodyAndHeaders("direct:in", deflated.toByteArray(), headers);
+
+        mock_out.assertIsSatisfied();
+    }
+
+    /* Verifies that bodies sent by claim check are read from the blob store, and released once transformed */
+    @Test
+    public void claimCheckTest() throws Exception {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = getClass().getResourceAsStream("/xslt2/input.xml")) {
+            RecordBody.copy(in, content);
+        }
+        final String ref = blobs.put(RecordBody.of(content.toByteArray()));
+
+        final Map<String, Object> headers = new HashMap<>();
+        headers.put(Xslt2Splitter.HEADER_XSLT_FILE_NAME, basedir + "/transform.xsl");
+        headers.put(Xslt2Splitter.HEADER_RECORD_BLOB, ref);
+
+        mock_out.setExpectedCount(5);
+        mock_out.allMessages().header(Xslt2Splitter.HEADER_RECORD_BLOB).isNull();
+
+        template.sendBodyAndHeaders("direct:in", "", headers);
+
+        mock_out.assertIsSatisfied();
+
+        try {
+            blobs.get(ref);
+            fail("Claim check should have been released");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+    }
+
+    /* Verifies that each record in an envelope is transformed, with its own headers */
+    @Test
+    public void envelopeTest() throws Exception {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = getClass().getResourceAsStream("/xslt2/input.xml")) {
+            RecordBody.copy(in, content);
+        }
+
+        // Two records with only an id, as packed by the loader's JMS writers
+        final ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(envelope)) {
+            out.writeInt(2);
+            for (final String id : new String[] { "test:0", "test:1" }) {
+                out.writeByte(1);
+                out.writeUTF(id);
+                out.writeInt(content.size());
+                content.writeTo(out);
+            }
+        }
+
+        final Map<String, Object> headers = new HashMap<>();
+        headers.put(Xslt2Splitter.HEADER_XSLT_FILE_NAME, basedir + "/transform.xsl");
+        headers.put(Xslt2Splitter.HEADER_ENVELOPE, 2);
+
+        mock_out.setExpectedCount(10);
+        mock_out.allMessages().header(Xslt2Splitter.HEADER_ENVELOPE).isNull();
+        mock_out.message(0).header(JmsHeaders.PROP_HARVEST_RECORD_ID).isEqualTo("test:0");
+        mock_out.message(9).header(JmsHeaders.PROP_HARVEST_RECORD_ID).isEqualTo("test:1");
+
+        template.sendBodyAndHeaders("direct:in", envelope.toByteArray(), headers);
+
+        mock_out.assertIsSatisfied();
+    }
+
     @Override
     protected RouteBuilder createRouteBuilder() throws Exception {
 
-        final Xslt2Splitter xslt = new Xslt2Splitter();
+        blobs = new FileBlobStore(folder.newFolder().toPath());
+        final Xslt2Splitter xslt = new Xslt2Splitter().withBlobStore(blobs);
 
         return new RouteBuilder() {
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.rmapproject.loader.util;
+
+import java.util.function.Consumer;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import org.apache.activemq.advisory.AdvisorySupport;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.DestinationInfo;
+import org.apache.activemq.filter.DestinationFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers the queues matching a wildcard, as they are created and removed on an ActiveMQ broker.
+ * <p>
+ * Listens to the broker's queue advisory topic. On subscribing, the broker announces every existing queue, so queues
+ * that already exist are discovered as well as new ones. If the connection is lost, it is re-established, and
+ * existing queues announced again; so a queue may be reported as added more than once.
+ * </p>
+ *
+ * @author apb@jhu.edu
+ */
+public class QueueDiscovery implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(QueueDiscovery.class);
+
+    private static final long RECONNECT_DELAY = 5000;
+
+    private final ConnectionFactory factory;
+
+    private final DestinationFilter filter;
+
+    private Consumer<String> added;
+
+    private Consumer<String> removed;
+
+    private Connection conn;
+
+    private volatile boolean closed;
+
+    /**
+     * Create a discovery of queues.
+     *
+     * @param factory Connection factory of an ActiveMQ broker.
+     * @param pattern Name of queues to discover, which may contain ActiveMQ wildcards, e.g.
+     *        <code>rmap.harvest.disco.&gt;</code>
+     */
+    public QueueDiscovery(ConnectionFactory factory, String pattern) {
+        this.factory = factory;
+        this.filter = DestinationFilter.parseFilter(new ActiveMQQueue(pattern));
+    }
+
+    /**
+     * Determine if a queue name matches a pattern.
+     *
+     * @param pattern Queue name, which may contain ActiveMQ wildcards.
+     * @param queue Queue name.
+     * @return true if it matches.
+     */
+    public static boolean matches(String pattern, String queue) {
+        return DestinationFilter.parseFilter(new ActiveMQQueue(pattern)).matches(new ActiveMQQueue(queue));
+    }
+
+    /**
+     * Start discovering queues.
+     *
+     * @param added Given the name of each queue found, including those that already exist.
+     * @param removed Given the name of each queue removed.
+     */
+    public void start(Consumer<String> added, Consumer<String> removed) {
+        this.added = added;
+        this.removed = removed;
+        connect();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        disconnect();
+    }
+
+    private synchronized void connect() {
+        try {
+            conn = factory.createConnection();
+            conn.setExceptionListener(e -> {
+                LOG.info("Lost connection for discovering queues: {}", e.getMessage());
+                reconnect();
+            });
+
+            final Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            session.createConsumer(AdvisorySupport.QUEUE_ADVISORY_TOPIC).setMessageListener(this::onAdvisory);
+            conn.start();
+        } catch (final JMSException e) {
+            disconnect();
+            throw new RuntimeException("Could not listen for queue advisories", e);
+        }
+    }
+
+    private void onAdvisory(Message m) {
+        if (!(m instanceof ActiveMQMessage) ||
+                !(((ActiveMQMessage) m).getDataStructure() instanceof DestinationInfo)) {
+            return;
+        }
+
+        final DestinationInfo info = (DestinationInfo) ((ActiveMQMessage) m).getDataStructure();
+        final ActiveMQDestination dest = info.getDestination();
+        if (!dest.isQueue() || dest.isTemporary() || !filter.matches(dest)) {
+            return;
+        }
+
+        try {
+            if (info.isAddOperation()) {
+                LOG.debug("Discovered queue {}", dest.getPhysicalName());
+                added.accept(dest.getPhysicalName());
+            } else if (info.isRemoveOperation()) {
+                LOG.debug("Queue {} was removed", dest.getPhysicalName());
+                removed.accept(dest.getPhysicalName());
+            }
+        } catch (final RuntimeException e) {
+            LOG.warn("Could not handle discovery of queue {}", dest.getPhysicalName(), e);
+        }
+    }
+
+    // Keep trying to connect again, in the background
+    private void reconnect() {
+        final Thread reconnector = new Thread(() -> {
+            synchronized (this) {
+                disconnect();
+            }
+
+            while (!closed) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                    synchronized (this) {
+                        if (!closed) {
+                            connect();
+                        }
+                    }
+                    LOG.info("Re-connected for discovering queues");
+                    return;
+                } catch (final InterruptedException e) {
+                    return;
+                } catch (final RuntimeException e) {
+                    LOG.debug("Could not re-connect for discovering queues: {}", e.getMessage());
+                }
+            }
+        }, "queue-discovery-reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    private void disconnect() {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (final JMSException e) {
+                LOG.debug("Exception while closing connection", e);
+            }
+            conn = null;
+        }
+    }
+}